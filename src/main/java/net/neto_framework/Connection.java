@@ -18,22 +18,27 @@
 
 package net.neto_framework;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import javax.crypto.BadPaddingException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Supplier;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
+import net.neto_framework.buffer.BufferPool;
+import net.neto_framework.compression.CompressionCodec;
+import net.neto_framework.compression.DeflateCodec;
 
 /**
  * An interface to send and receive data from TCP and UDP.
@@ -54,9 +59,73 @@ public final class Connection {
     public static int HANDSHAKE_TIMEOUT = 10000;
     
     /**
-     * The window time allowed to prevent replay attacks.
+     * The window time allowed to prevent replay attacks on TCP packets. UDP datagrams are checked
+     * against a {@link net.neto_framework.ReplayWindow ReplayWindow} of sequence numbers instead.
      */
     public static long REPLAY_WINDOW = 2000;
+    
+    /**
+     * The maximum length of a single frame in bytes.
+     */
+    public static int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    
+    /**
+     * The size of the buffer used when reading frames from a blocking socket. Kept small as it is
+     * held by every connection, frames larger than it are read straight into the frame buffer.
+     */
+    public static int SOCKET_READ_BUFFER_SIZE = 2048;
+    
+    /**
+     * The maximum size of a datagram that batched UDP packets are packed into, larger frames are
+     * fragmented. 1472 bytes fills a 1500 byte Ethernet MTU over IPv4, but tunnels, VPNs and
+     * IPv6 headers leave less room and datagrams that are too large are dropped, so the default
+     * is the 1200 bytes QUIC assumes every path carries. Raise it only on known networks. (Must
+     * be set before connections are created)
+     */
+    public static int MAX_DATAGRAM_SIZE = 1200;
+    
+    /**
+     * If new connections encode packet IDs, timestamps and string and byte array lengths as
+     * variable length integers, so that small values take a single byte. (Must be the same on
+     * server and client)
+     */
+    public static boolean COMPACT_HEADERS = false;
+    
+    /**
+     * The maximum number of distinct strings each side of a TCP connection remembers for
+     * {@link #sendCachedString(String) sendCachedString()}, 0 to disable the string table. (Must
+     * be the same on server and client)
+     */
+    public static int STRING_TABLE_SIZE = 1024;
+    
+    /**
+     * Frames with a payload of at least this many bytes are compressed, -1 to never compress.
+     * While enabled every frame starts with a byte saying how it was compressed. (Whether it is
+     * enabled must be the same on server and client)
+     */
+    public static int COMPRESSION_THRESHOLD = -1;
+    
+    /**
+     * Creates the {@link net.neto_framework.compression.CompressionCodec CompressionCodecs} new
+     * connections compress frames with. (Must be the same on server and client)
+     */
+    public static Supplier<CompressionCodec> COMPRESSION_CODEC = DeflateCodec::new;
+    
+    /**
+     * The length of the session ID every datagram starts with.
+     */
+    public static final int SESSION_ID_LENGTH = 4;
+    
+    /**
+     * The session ID handshake datagrams start with in place of one given by the server. (Never
+     * given to a session)
+     */
+    public static final int HANDSHAKE_SESSION_ID = 0;
+    
+    /**
+     * The length of the hashed random a client in the handshake process sends over UDP.
+     */
+    public static final int HASHED_RANDOM_LENGTH = 64;
 
     /**
      * TCP Socket of connection.
@@ -78,35 +147,160 @@ public final class Connection {
      */
     private final int port;
     
+    /**
+     * Address and port datagrams are sent to. (Null if protocol is TCP)
+     */
+    private final InetSocketAddress socketAddress;
+    
     /**
      * The protocol this connection is using.
      */
     private Protocol protocol;
     
     /**
-     * The stream to read data from when using UDP.
+     * If data is read from and written to pooled buffers by the caller instead of the socket.
+     * (UDP and event loop driven TCP connections).
+     */
+    private final boolean isBuffered;
+    
+    /**
+     * The frame currently being read. (Pooled, read mode)
+     */
+    private ByteBuffer inputBuffer;
+    
+    /**
+     * Encrypted TCP records read from the socket before they are opened. (Pooled, lazily
+     * acquired)
+     */
+    private ByteBuffer recordBuffer;
+    
+    /**
+     * Buffered stream used to read whole frames from the socket. (Null if buffered)
+     */
+    private DataInputStream socketInputStream;
+    
+    /**
+     * The frame currently being written. Every send call appends to this buffer and the whole
+     * frame is written to the socket at once when flushed. (Pooled, write mode)
+     */
+    private ByteBuffer outputBuffer;
+    
+    /**
+     * Sealed records waiting to be written. (Pooled, lazily acquired)
+     */
+    private ByteBuffer sealedBuffer;
+    
+    /**
+     * The offset of the frame payload within the output buffer.
+     */
+    private int frameOffset;
+    
+    /**
+     * If a frame has been started since the last one was collected.
+     */
+    private boolean isFrameStarted;
+    
+    /**
+     * The end of the last frame held back to start the next frame. (Pooled, lazily acquired,
+     * write mode)
+     */
+    private ByteBuffer carryBuffer;
+    
+    /**
+     * If the carry buffer holds data for the next frame.
+     */
+    private boolean hasCarry;
+    
+    /**
+     * The {@link net.neto_framework.RecordCipher RecordCipher} used to seal outgoing records.
+     */
+    private RecordCipher encryptCipher;
+    
+    /**
+     * The {@link net.neto_framework.RecordCipher RecordCipher} used to open incoming records.
+     */
+    private RecordCipher decryptCipher;
+    
+    /**
+     * The sequence number of the next record sent.
+     */
+    private long sendSequence;
+    
+    /**
+     * The sequence number of the next TCP record received.
+     */
+    private long receiveSequence;
+    
+    /**
+     * The sequence numbers of the UDP records most recently received.
      */
-    private ByteArrayInputStream udpDataInputStream;
+    private final ReplayWindow replayWindow = new ReplayWindow();
     
     /**
-     * The stream to write to when using UDP.
+     * If frames sent are sealed into records.
      */
-    private ByteArrayOutputStream udpDataOutputStream;
+    private volatile boolean isEncrypted;
     
     /**
-     * SecretKey used for encryption/decryption.
+     * If frames received are opened from records.
      */
-    private SecretKey secretKey;
+    private volatile boolean isDecrypted;
     
     /**
-     * IvParameterSpec used for cipher.
+     * If packet IDs and lengths are encoded as variable length integers.
      */
-    private IvParameterSpec iv;
+    private final boolean isCompactHeaders = Connection.COMPACT_HEADERS;
     
     /**
-     * If the connection is encrypted.
+     * The time compact timestamps are sent relative to.
      */
-    private boolean isEncrypted;
+    private volatile long timestampBase;
+    
+    /**
+     * The minimum payload length of compressed frames, -1 if frames are never compressed.
+     */
+    private final int compressionThreshold = Connection.COMPRESSION_THRESHOLD;
+    
+    /**
+     * The codec used to compress outgoing frames. (Lazily created)
+     */
+    private CompressionCodec compressor;
+    
+    /**
+     * The codec used to decompress incoming frames. (Lazily created)
+     */
+    private CompressionCodec decompressor;
+    
+    /**
+     * Compressed frames waiting to be sealed or written. (Pooled, lazily acquired)
+     */
+    private ByteBuffer compressedBuffer;
+    
+    /**
+     * Spare buffer incoming frames are decompressed into, swapped with the input buffer.
+     * (Pooled, lazily acquired)
+     */
+    private ByteBuffer decompressedBuffer;
+    
+    /**
+     * The maximum number of strings in each string table, 0 if strings are never cached.
+     */
+    private final int stringTableSize;
+    
+    /**
+     * Indexes of the strings sent with sendCachedString() so far. (Lazily created)
+     */
+    private HashMap<String, Integer> sentStrings;
+    
+    /**
+     * Strings received with receiveCachedString() so far, by index. (Lazily created)
+     */
+    private String[] receivedStrings;
+    
+    /**
+     * Number of strings received with receiveCachedString() so far.
+     */
+    private int receivedStringCount;
 
     /**
      * @param socket {@link java.net.Socket Socket}.
@@ -119,6 +313,34 @@ public final class Connection {
 
         this.address = null;
         this.port = 0;
+        this.socketAddress = null;
+        
+        this.isBuffered = false;
+        this.stringTableSize = Connection.STRING_TABLE_SIZE;
+        this.initBuffers();
+    }
+    
+    /**
+     * A TCP connection driven by an event loop. Data is never read from or written to the channel
+     * directly, instead the event loop provides received data with
+     * {@link #receiveFrame(java.nio.ByteBuffer) receiveFrame()} and collects data to send with
+     * {@link #getBufferedFrame() getBufferedFrame()}.
+     * 
+     * @param channel Non-blocking {@link java.nio.channels.SocketChannel SocketChannel}.
+     */
+    public Connection(SocketChannel channel) {
+        this.protocol = Protocol.TCP;
+
+        this.tcpSocket = channel.socket();
+        this.udpSocket = null;
+
+        this.address = null;
+        this.port = 0;
+        this.socketAddress = null;
+        
+        this.isBuffered = true;
+        this.stringTableSize = Connection.STRING_TABLE_SIZE;
+        this.initBuffers();
     }
     
     /**
@@ -134,39 +356,115 @@ public final class Connection {
 
         this.address = address;
         this.port = port;
+        this.socketAddress = new InetSocketAddress(address, port);
         
-        this.flush();
+        // Datagrams may be lost or reordered, so strings can not be cached.
+        this.isBuffered = true;
+        this.stringTableSize = 0;
+        this.initBuffers();
     }
-
+    
     /**
-     * Send byte array to connection.
+     * Acquire the input and output buffers from the pool.
+     */
+    private void initBuffers() {
+        this.inputBuffer = BufferPool.HEAP.acquire(BufferPool.MIN_CAPACITY);
+        this.inputBuffer.limit(0);
+        this.outputBuffer = BufferPool.HEAP.acquire(BufferPool.MIN_CAPACITY);
+    }
+    
+    /**
+     * Get the output buffer with room for the given number of bytes, starting a new frame if the
+     * last one has been collected.
      * 
-     * @param data Byte array data.
-     * @throws IOException If failed to send
+     * @param length Number of bytes about to be written.
+     * @return Output buffer.
      */
-    public void send(byte[] data) throws IOException {
+    private ByteBuffer writable(int length) {
+        if(!this.isFrameStarted) {
+            this.startFrame();
+        }
+        
+        if(this.outputBuffer.remaining() < length) {
+            this.outputBuffer = BufferPool.HEAP.grow(this.outputBuffer,
+                    this.outputBuffer.position() + length);
+        }
+        
+        return this.outputBuffer;
+    }
+    
+    /**
+     * Start a new frame in the output buffer, beginning with any data carried over from the last
+     * frame.
+     */
+    private void startFrame() {
+        // Leave room for the length prefix of plain TCP frames, the sequence number of plain
+        // datagrams and the compression header.
         if(this.isEncrypted) {
-            try {
-                Cipher cipher;
-                try {
-                    cipher = Cipher.getInstance("DESede/CFB8/NoPadding");
-                } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-                    throw new RuntimeException("Failed to enable encryptin on connection.", e);
-                }
-                
-                cipher.init(Cipher.ENCRYPT_MODE, this.secretKey, this.iv);
-                data = cipher.doFinal(data);
-            } catch (InvalidKeyException | InvalidAlgorithmParameterException |
-                    IllegalBlockSizeException | BadPaddingException e) {
-                throw new IOException("Failed to encrypt data when sending.", e);
+            this.frameOffset = 0;
+        } else {
+            this.frameOffset = (this.protocol == Protocol.TCP) ? 4 : 8;
+        }
+        
+        if(this.compressionThreshold >= 0) {
+            this.frameOffset++;
+        }
+        this.outputBuffer.clear();
+        this.outputBuffer.position(this.frameOffset);
+        this.isFrameStarted = true;
+        
+        if(this.hasCarry) {
+            this.carryBuffer.flip();
+            
+            if(this.outputBuffer.remaining() < this.carryBuffer.remaining()) {
+                this.outputBuffer = BufferPool.HEAP.grow(this.outputBuffer,
+                        this.frameOffset + this.carryBuffer.remaining());
             }
+            
+            this.outputBuffer.put(this.carryBuffer);
+            this.carryBuffer.clear();
+            this.hasCarry = false;
+        }
+    }
+    
+    /**
+     * Get the input buffer, ensuring the given number of bytes are left in the current frame.
+     * 
+     * @param length Number of bytes about to be read.
+     * @return Input buffer.
+     * @throws EOFException If not enough data is left in the current frame.
+     */
+    private ByteBuffer readable(int length) throws EOFException {
+        if(this.inputBuffer.remaining() < length) {
+            throw new EOFException("Not enough data left in frame.");
         }
         
-        if (this.protocol == Protocol.TCP) {
-            this.tcpSocket.getOutputStream().write(data);
-        } else {
-            this.udpDataOutputStream.write(data);
+        return this.inputBuffer;
+    }
+    
+    /**
+     * @param buffer Pooled buffer whose contents may be discarded.
+     * @param capacity The minimum capacity.
+     * @return The given buffer, or a larger pooled buffer in its place.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if(buffer != null && buffer.capacity() >= capacity) {
+            return buffer;
         }
+        
+        BufferPool.HEAP.release(buffer);
+        return BufferPool.HEAP.acquire(capacity);
+    }
+
+    /**
+     * Append byte array to the frame being written to the connection. Nothing is written to the
+     * socket until the connection is {@link #flush() flushed}.
+     * 
+     * @param data Byte array data.
+     * @throws IOException If failed to send
+     */
+    public void send(byte[] data) throws IOException {
+        this.writable(data.length).put(data);
     }
 
     /**
@@ -175,55 +473,488 @@ public final class Connection {
      * @param buffer Buffer.
      * @return Byte array data.
      * @throws IOException If failed to read.
+     * @throws EOFException If not enough data is left in the current frame to fill the buffer.
      */
     public byte[] receive(byte[] buffer) throws IOException {
-        if (this.protocol == Protocol.TCP) {
-            if(!this.tcpSocket.isInputShutdown()) {
-                this.tcpSocket.getInputStream().read(buffer);
+        this.readable(buffer.length).get(buffer);
+        return buffer;
+    }
+    
+    /**
+     * Append data read directly from a file channel to the frame being written.
+     * 
+     * @param channel {@link java.nio.channels.FileChannel FileChannel} to read from.
+     * @param position Position within the file to start reading from.
+     * @param length Number of bytes to read.
+     * @throws IOException If fails to read from the file.
+     * @throws EOFException If the file ends before the given number of bytes have been read.
+     */
+    public void send(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = this.writable(length);
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        
+        try {
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, position + length - buffer.remaining()) < 0) {
+                    throw new EOFException("File ended before the requested data was read.");
+                }
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+    
+    /**
+     * Receive bytes from connection until the given buffer is full.
+     * 
+     * @param buffer Buffer in write mode.
+     * @throws IOException If fails to read.
+     * @throws EOFException If not enough data is left in the current frame to fill the buffer.
+     */
+    public void receive(ByteBuffer buffer) throws IOException {
+        ByteBuffer input = this.readable(buffer.remaining());
+        int limit = input.limit();
+        input.limit(input.position() + buffer.remaining());
+        buffer.put(input);
+        input.limit(limit);
+    }
+    
+    /**
+     * Block until the next whole TCP frame has been read from the socket and make it the frame
+     * currently being read. Every TCP frame is prefixed with its length so it can be read in full
+     * before any of it is decoded, or skipped entirely by simply not decoding it.
+     * 
+     * @throws IOException If fails to read the frame or the frame is invalid.
+     */
+    public void receiveFrame() throws IOException {
+        if(this.tcpSocket.isInputShutdown()) {
+            throw new IOException("Input shutdown");
+        }
+        
+        if(this.socketInputStream == null) {
+            this.socketInputStream = new DataInputStream(new BufferedInputStream(
+                    this.tcpSocket.getInputStream(), Connection.SOCKET_READ_BUFFER_SIZE));
+        }
+        
+        int length = this.socketInputStream.readInt();
+        this.checkFrameLength(length);
+        
+        if(this.isDecrypted) {
+            this.recordBuffer = Connection.ensureCapacity(this.recordBuffer, length);
+            this.socketInputStream.readFully(this.recordBuffer.array(),
+                    this.recordBuffer.arrayOffset(), length);
+            this.recordBuffer.clear();
+            this.recordBuffer.limit(length);
+            
+            this.open(this.receiveSequence++, this.recordBuffer);
+        } else {
+            this.inputBuffer = Connection.ensureCapacity(this.inputBuffer, length);
+            this.socketInputStream.readFully(this.inputBuffer.array(),
+                    this.inputBuffer.arrayOffset(), length);
+            this.inputBuffer.clear();
+            this.inputBuffer.limit(length);
+        }
+        
+        this.decompressFrame();
+    }
+    
+    /**
+     * Take the next whole TCP frame from the given buffer and make it the frame currently being
+     * read. Used by event loops which read from the channel themselves.
+     * 
+     * @param inbound Buffer in read mode.
+     * @return False if the frame has not been fully received. (In which case the buffer position is
+     *         left unchanged)
+     * @throws IOException If the frame is invalid or fails to authenticate.
+     */
+    public boolean receiveFrame(ByteBuffer inbound) throws IOException {
+        if(inbound.remaining() < 4) {
+            return false;
+        }
+        
+        int length = inbound.getInt(inbound.position());
+        this.checkFrameLength(length);
+        
+        if(inbound.remaining() < 4 + length) {
+            return false;
+        }
+        
+        int limit = inbound.limit();
+        int end = inbound.position() + 4 + length;
+        inbound.position(inbound.position() + 4);
+        inbound.limit(end);
+        
+        try {
+            if(this.isDecrypted) {
+                this.open(this.receiveSequence++, inbound);
             } else {
-                throw new IOException("Input shutdown");
+                this.inputBuffer = Connection.ensureCapacity(this.inputBuffer, length);
+                this.inputBuffer.clear();
+                this.inputBuffer.put(inbound);
+                this.inputBuffer.flip();
             }
+            
+            this.decompressFrame();
+        } finally {
+            inbound.limit(limit);
+            inbound.position(end);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * @param length Length of a received frame.
+     * @throws IOException If the length is not valid.
+     */
+    private void checkFrameLength(int length) throws IOException {
+        int minimumLength = this.isDecrypted ? RecordCipher.TAG_LENGTH : 0;
+        
+        if(length < minimumLength || length > Connection.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length + ".");
+        }
+    }
+    
+    /**
+     * Make the given datagram the frame currently being read. Each encrypted datagram is a single
+     * record carrying its own sequence number as datagrams may be lost or reordered.
+     * 
+     * @param datagram Datagram data.
+     * @param offset Offset of the datagram within the data.
+     * @param length Length of the datagram.
+     * @return False if the datagram is a replay and was dropped.
+     * @throws IOException If the record is invalid or fails to authenticate.
+     */
+    public boolean receiveDatagram(byte[] datagram, int offset, int length) throws IOException {
+        return this.receiveDatagram(ByteBuffer.wrap(datagram, offset, length));
+    }
+    
+    /**
+     * Make the given datagram the frame currently being read, opening encrypted datagrams
+     * straight from the given buffer. Every datagram starts with its sequence number, datagrams
+     * whose sequence number has already been received, or is too old to tell, are dropped.
+     * 
+     * @param datagram Datagram in read mode, usually a direct buffer it was received into. (Fully
+     *                 consumed)
+     * @return False if the datagram is a replay and was dropped.
+     * @throws IOException If the datagram is invalid or fails to authenticate.
+     */
+    public boolean receiveDatagram(ByteBuffer datagram) throws IOException {
+        int minimumLength = this.isDecrypted ? 8 + RecordCipher.TAG_LENGTH : 8;
+        
+        if(datagram.remaining() < minimumLength) {
+            throw new IOException("Datagram too short to hold a sequence number.");
+        }
+        
+        // Drop replays before spending time opening them.
+        long sequence = datagram.getLong();
+        if(!this.replayWindow.check(sequence)) {
+            datagram.position(datagram.limit());
+            this.inputBuffer.position(this.inputBuffer.limit());
+            return false;
+        }
+        
+        if(this.isDecrypted) {
+            this.open(sequence, datagram);
         } else {
-            this.udpDataInputStream.read(buffer);
+            this.inputBuffer = Connection.ensureCapacity(this.inputBuffer, datagram.remaining());
+            this.inputBuffer.clear();
+            this.inputBuffer.put(datagram);
+            this.inputBuffer.flip();
         }
         
-        if(this.isEncrypted) {
-            try {
-                Cipher cipher;
-                try {
-                    cipher = Cipher.getInstance("DESede/CFB8/NoPadding");
-                } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-                    throw new RuntimeException("Failed to enable encryptin on connection.", e);
-                }
+        this.replayWindow.update(sequence);
+        this.decompressFrame();
+        return true;
+    }
+    
+    /**
+     * Make the given frame the frame currently being read. Used to deliver frames that were
+     * held back after being received, so they are neither opened nor decompressed again.
+     * 
+     * @param frame Opened and decompressed frame in read mode. (Fully consumed)
+     */
+    public void receivePlainFrame(ByteBuffer frame) {
+        this.inputBuffer = Connection.ensureCapacity(this.inputBuffer, frame.remaining());
+        this.inputBuffer.clear();
+        this.inputBuffer.put(frame);
+        this.inputBuffer.flip();
+    }
+    
+    /**
+     * Read the compression header of the frame currently being read, decompressing the rest of
+     * the frame if it was compressed.
+     * 
+     * @throws IOException If the frame is invalid or fails to decompress.
+     */
+    private void decompressFrame() throws IOException {
+        if(this.compressionThreshold < 0) {
+            return;
+        }
+        
+        int codecId = this.readable(1).get() & 0xFF;
+        if(codecId == 0) {
+            return;
+        }
+        
+        if(this.decompressor == null) {
+            this.decompressor = Connection.COMPRESSION_CODEC.get();
+        }
+        
+        if(codecId != this.decompressor.getId()) {
+            throw new IOException("Frame compressed with unknown codec " + codecId + ".");
+        }
+        
+        int length = this.receiveVarInt();
+        if(length < 0 || length > Connection.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid decompressed frame length " + length + ".");
+        }
+        
+        this.decompressedBuffer = Connection.ensureCapacity(this.decompressedBuffer, length);
+        this.decompressedBuffer.clear();
+        this.decompressedBuffer.limit(length);
+        this.decompressor.decompress(this.inputBuffer, this.decompressedBuffer);
+        this.decompressedBuffer.flip();
+        
+        ByteBuffer compressed = this.inputBuffer;
+        this.inputBuffer = this.decompressedBuffer;
+        this.decompressedBuffer = compressed;
+    }
+    
+    /**
+     * Compress the payload of the current frame into the compressed buffer, laid out the same as
+     * the output buffer.
+     * 
+     * @param start The offset of the compression header.
+     * @param length The length of the payload.
+     * @return Compressed buffer, positioned at the end of the frame, or null if the payload did
+     *         not compress to less than its own length.
+     */
+    private ByteBuffer compressFrame(int start, int length) {
+        if(this.compressor == null) {
+            this.compressor = Connection.COMPRESSION_CODEC.get();
+        }
+        
+        this.compressedBuffer = Connection.ensureCapacity(this.compressedBuffer, start + length);
+        this.compressedBuffer.clear();
+        this.compressedBuffer.limit(start + length);
+        this.compressedBuffer.position(start);
+        this.compressedBuffer.put((byte) this.compressor.getId());
+        Connection.putVarInt(this.compressedBuffer, length);
+        
+        ByteBuffer payload = this.outputBuffer.duplicate();
+        payload.limit(start + 1 + length);
+        payload.position(start + 1);
+        
+        if(!this.compressedBuffer.hasRemaining()
+                || !this.compressor.compress(payload, this.compressedBuffer)) {
+            return null;
+        }
+        
+        return this.compressedBuffer;
+    }
+    
+    /**
+     * Open the given record into the input buffer.
+     * 
+     * @param sequence Sequence number of the record.
+     * @param record Record in read mode. (Fully consumed)
+     * @throws IOException If the record fails to authenticate.
+     */
+    private void open(long sequence, ByteBuffer record) throws IOException {
+        this.inputBuffer = Connection.ensureCapacity(this.inputBuffer, record.remaining());
+        this.inputBuffer.clear();
+        this.decryptCipher.doFinal(sequence, record, this.inputBuffer);
+        this.inputBuffer.flip();
+    }
+    
+    /**
+     * Finish the current frame, sealing it into a record if encryption is enabled. TCP frames are
+     * prefixed with their length. The returned buffer is only valid until the next send call.
+     * 
+     * @return Frame in read mode, or null if no frame has been started.
+     * @throws IOException If fails to seal the record.
+     */
+    private ByteBuffer seal() throws IOException {
+        return this.seal(Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Finish the current frame after the given number of bytes, holding the rest back to start
+     * the next frame.
+     * 
+     * @param maximumLength The number of bytes of the current frame to seal.
+     * @return Frame in read mode, or null if no frame has been started.
+     * @throws IOException If fails to seal the record.
+     */
+    private ByteBuffer seal(int maximumLength) throws IOException {
+        int length = this.finishFrame(maximumLength);
+        
+        if(length < 0) {
+            return null;
+        }
+        
+        ByteBuffer frame = this.outputBuffer;
+        int start = this.frameOffset;
+        
+        // Compress large frames, flagging them in the compression header.
+        if(this.compressionThreshold >= 0) {
+            start--;
+            frame.put(start, (byte) 0);
+            
+            if(length >= this.compressionThreshold) {
+                ByteBuffer compressed = this.compressFrame(start, length);
                 
-                cipher.init(Cipher.DECRYPT_MODE, this.secretKey, this.iv);
-                buffer = cipher.doFinal(buffer);
-            } catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException | 
-                    InvalidAlgorithmParameterException e) {
-                throw new IOException("Failed to decrypt data when reading.", e);
+                if(compressed != null) {
+                    frame = compressed;
+                }
             }
         }
         
-        return buffer;
+        int end = frame.position();
+        length = end - start;
+        
+        if(!this.isEncrypted) {
+            if(this.protocol == Protocol.TCP) {
+                frame.putInt(0, length);
+            } else {
+                frame.putLong(0, this.sendSequence++);
+            }
+            
+            frame.flip();
+            return frame;
+        }
+        
+        this.sealedBuffer = Connection.ensureCapacity(this.sealedBuffer,
+                8 + length + RecordCipher.TAG_LENGTH);
+        this.sealedBuffer.clear();
+        
+        long sequence = this.sendSequence++;
+        
+        // Datagrams may be lost or reordered so carry their own sequence number.
+        if(this.protocol == Protocol.UDP) {
+            this.sealedBuffer.putLong(sequence);
+        } else {
+            this.sealedBuffer.putInt(length + RecordCipher.TAG_LENGTH);
+        }
+        
+        frame.limit(end);
+        frame.position(start);
+        this.encryptCipher.doFinal(sequence, frame, this.sealedBuffer);
+        
+        this.sealedBuffer.flip();
+        return this.sealedBuffer;
+    }
+    
+    /**
+     * Finish the current frame after the given number of bytes, holding the rest back to start
+     * the next frame. The finished frame ends at the position of the output buffer.
+     * 
+     * @param maximumLength The number of bytes of the current frame to finish.
+     * @return The length of the finished frame, or -1 if no frame has been started.
+     */
+    private int finishFrame(int maximumLength) {
+        if(!this.isFrameStarted) {
+            if(!this.hasCarry) {
+                return -1;
+            }
+            
+            this.startFrame();
+        }
+        
+        this.isFrameStarted = false;
+        
+        int length = this.outputBuffer.position() - this.frameOffset;
+        
+        // Hold back the end of the frame.
+        if(length > maximumLength) {
+            this.carryBuffer = Connection.ensureCapacity(this.carryBuffer,
+                    length - maximumLength);
+            this.carryBuffer.clear();
+            
+            int end = this.outputBuffer.position();
+            length = maximumLength;
+            this.outputBuffer.position(this.frameOffset + length);
+            
+            ByteBuffer carry = this.outputBuffer.duplicate();
+            carry.limit(end);
+            this.carryBuffer.put(carry);
+            this.hasCarry = true;
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Enable encryption in both directions. Every frame is sealed into a single AES-GCM record
+     * from now on. Frames received are opened from records too, if they were not already.
+     * 
+     * @param secretKey AES SecretKey.
+     * @param ivParameterSpec The IV parameter spec used to derive record nonces.
+     * @param isServer If this is the server side of the connection.
+     */
+    public void enableEncryption(SecretKey secretKey, IvParameterSpec ivParameterSpec,
+            boolean isServer) {
+        this.enableDecryption(secretKey, ivParameterSpec, isServer);
+        
+        if(this.encryptCipher == null) {
+            this.encryptCipher = new RecordCipher(Cipher.ENCRYPT_MODE, secretKey,
+                    ivParameterSpec.getIV(), isServer, this.protocol);
+            this.isEncrypted = true;
+        }
     }
     
     /**
-     * Enable encryption.
+     * Open every frame received from a record from now on, while still sending plain frames. Used
+     * during the handshake when the other side is told to start encrypting by the last plain
+     * frame sent to it.
      * 
-     * @param secretKey SecretKey.
-     * @param ivParameterSpec The IV parameter spec used for ciphering.
+     * @param secretKey AES SecretKey.
+     * @param ivParameterSpec The IV parameter spec used to derive record nonces.
+     * @param isServer If this is the server side of the connection.
+     */
+    public void enableDecryption(SecretKey secretKey, IvParameterSpec ivParameterSpec,
+            boolean isServer) {
+        if(this.decryptCipher == null) {
+            this.decryptCipher = new RecordCipher(Cipher.DECRYPT_MODE, secretKey,
+                    ivParameterSpec.getIV(), !isServer, this.protocol);
+            this.isDecrypted = true;
+        }
+    }
+    
+    /**
+     * @return If frames sent are encrypted.
+     */
+    public boolean isEncrypted() {
+        return this.isEncrypted;
+    }
+    
+    /**
+     * @return If frames received are encrypted.
      */
-    public void enableEncryption(SecretKey secretKey, IvParameterSpec ivParameterSpec) {
-        this.secretKey = secretKey;
-        this.iv = ivParameterSpec;
-        this.isEncrypted = true;
+    public boolean isDecrypted() {
+        return this.isDecrypted;
     }
     
     /**
-     * Flush the connection causing the output stream for UDP to reset.
+     * Write the current frame to the socket with a single write. Buffered connections keep the
+     * frame until it is collected with {@link #getBufferedData() getBufferedData()}.
+     * 
+     * @throws IOException If fails to write to the socket.
      */
-    public void flush() {
-        this.udpDataOutputStream = new ByteArrayOutputStream();
+    public void flush() throws IOException {
+        if(this.isBuffered) {
+            return;
+        }
+        
+        ByteBuffer frame = this.seal();
+        
+        if(frame != null) {
+            this.tcpSocket.getOutputStream().write(frame.array(),
+                    frame.arrayOffset() + frame.position(), frame.remaining());
+            this.tcpSocket.getOutputStream().flush();
+        }
     }
     
     /**
@@ -233,7 +964,7 @@ public final class Connection {
      * @throws IOException If fails to send byte array.
      */
     public void sendByteArray(byte[] data) throws IOException {
-        this.sendInteger(data.length);
+        this.sendLength(data.length);
         this.send(data);
     }
     
@@ -244,13 +975,53 @@ public final class Connection {
      * @throws IOException If fails to receive byte array. 
      */
     public byte[] receiveByteArray() throws IOException {
-        int length = this.receiveInteger();
+        int length = this.receiveLength();
+        ByteBuffer input = this.readable(length);
+        
         byte[] data = new byte[length];
-        this.receive(data);
+        input.get(data);
         
         return data;
     }
 
+    /**
+     * Reserve a fixed size section of the frame being written, so that several values can be
+     * written to the returned buffer after a single bounds check. Used by generated packet
+     * codecs.
+     * 
+     * @param length The size of the section in bytes.
+     * @return Output buffer with room for the section, only valid until the next send call.
+     */
+    public ByteBuffer sendSection(int length) {
+        return this.writable(length);
+    }
+    
+    /**
+     * Check that a fixed size section is left in the frame being read, so that several values
+     * can be read from the returned buffer after a single bounds check. Used by generated packet
+     * codecs.
+     * 
+     * @param length The size of the section in bytes.
+     * @return Input buffer holding the section, only valid until the next receive call.
+     * @throws EOFException If not enough data is left in the current frame.
+     */
+    public ByteBuffer receiveSection(int length) throws EOFException {
+        return this.readable(length);
+    }
+    
+    /**
+     * Receive the rest of the frame currently being read without copying it. Over UDP this is
+     * the rest of the datagram, including any packets packed after the current one.
+     * 
+     * @return Buffer in read mode sharing the frame's data. (Must not be modified, only valid
+     *         until the next frame is received)
+     */
+    public ByteBuffer receiveRemaining() {
+        ByteBuffer remaining = this.inputBuffer.slice();
+        this.inputBuffer.position(this.inputBuffer.limit());
+        return remaining;
+    }
+
     /**
      * Send short to connection.
      * 
@@ -258,7 +1029,7 @@ public final class Connection {
      * @throws IOException If fails to send short.
      */
     public void sendShort(short data) throws IOException {
-        this.send(ByteBuffer.allocate(2).putShort(data).array());
+        this.writable(2).putShort(data);
     }
 
     /**
@@ -268,7 +1039,7 @@ public final class Connection {
      * @throws IOException If fails to receive short.
      */
     public short receiveShort() throws IOException {
-        return ByteBuffer.wrap(this.receive(new byte[2])).getShort();
+        return this.readable(2).getShort();
     }
 
     /**
@@ -278,7 +1049,7 @@ public final class Connection {
      * @throws IOException If fails to send integer.
      */
     public void sendInteger(int data) throws IOException {
-        this.send(ByteBuffer.allocate(4).putInt(data).array());
+        this.writable(4).putInt(data);
     }
 
     /**
@@ -288,7 +1059,7 @@ public final class Connection {
      * @throws IOException If fails to receive integer.
      */
     public int receiveInteger() throws IOException {
-        return ByteBuffer.wrap(this.receive(new byte[4])).getInt();
+        return this.readable(4).getInt();
     }
 
     /**
@@ -298,7 +1069,7 @@ public final class Connection {
      * @throws IOException If fails to send long.
      */
     public void sendLong(long data) throws IOException {
-        this.send(ByteBuffer.allocate(8).putLong(data).array());
+        this.writable(8).putLong(data);
     }
 
     /**
@@ -308,7 +1079,231 @@ public final class Connection {
      * @throws IOException If fails to receive long.
      */
     public long receiveLong() throws IOException {
-        return ByteBuffer.wrap(this.receive(new byte[8])).getLong();
+        return this.readable(8).getLong();
+    }
+
+    /**
+     * Send an unsigned variable length integer to connection, 7 bits per byte so that values
+     * below 128 take a single byte.
+     * 
+     * @param data Integer. (Negative values always take 5 bytes)
+     * @throws IOException If fails to send integer.
+     */
+    public void sendVarInt(int data) throws IOException {
+        Connection.putVarInt(this.writable(5), data);
+    }
+    
+    /**
+     * @param buffer Buffer with at least 5 bytes remaining.
+     * @param data Unsigned variable length integer to put in the buffer.
+     */
+    private static void putVarInt(ByteBuffer buffer, int data) {
+        while((data & ~0x7F) != 0) {
+            buffer.put((byte) ((data & 0x7F) | 0x80));
+            data >>>= 7;
+        }
+        
+        buffer.put((byte) data);
+    }
+
+    /**
+     * Receive an unsigned variable length integer from connection.
+     * 
+     * @return Integer.
+     * @throws IOException If fails to receive integer or it is longer than 5 bytes.
+     */
+    public int receiveVarInt() throws IOException {
+        int value = 0;
+        
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte data = this.readable(1).get();
+            value |= (data & 0x7F) << shift;
+            
+            if(data >= 0) {
+                return value;
+            }
+        }
+        
+        throw new IOException("Variable length integer is too long.");
+    }
+
+    /**
+     * Send an unsigned variable length long to connection, 7 bits per byte.
+     * 
+     * @param data Long. (Negative values always take 10 bytes)
+     * @throws IOException If fails to send long.
+     */
+    public void sendVarLong(long data) throws IOException {
+        ByteBuffer buffer = this.writable(10);
+        
+        while((data & ~0x7FL) != 0) {
+            buffer.put((byte) ((data & 0x7F) | 0x80));
+            data >>>= 7;
+        }
+        
+        buffer.put((byte) data);
+    }
+
+    /**
+     * Receive an unsigned variable length long from connection.
+     * 
+     * @return Long.
+     * @throws IOException If fails to receive long or it is longer than 10 bytes.
+     */
+    public long receiveVarLong() throws IOException {
+        long value = 0;
+        
+        for(int shift = 0; shift < 70; shift += 7) {
+            byte data = this.readable(1).get();
+            value |= (long) (data & 0x7F) << shift;
+            
+            if(data >= 0) {
+                return value;
+            }
+        }
+        
+        throw new IOException("Variable length long is too long.");
+    }
+
+    /**
+     * Send a signed variable length integer to connection, zigzag encoded so that values close
+     * to zero take a single byte whatever their sign.
+     * 
+     * @param data Integer.
+     * @throws IOException If fails to send integer.
+     */
+    public void sendZigZagInt(int data) throws IOException {
+        this.sendVarInt((data << 1) ^ (data >> 31));
+    }
+
+    /**
+     * Receive a signed, zigzag encoded variable length integer from connection.
+     * 
+     * @return Integer.
+     * @throws IOException If fails to receive integer.
+     */
+    public int receiveZigZagInt() throws IOException {
+        int data = this.receiveVarInt();
+        return (data >>> 1) ^ -(data & 1);
+    }
+
+    /**
+     * Send a signed variable length long to connection, zigzag encoded so that values close to
+     * zero take a single byte whatever their sign.
+     * 
+     * @param data Long.
+     * @throws IOException If fails to send long.
+     */
+    public void sendZigZagLong(long data) throws IOException {
+        this.sendVarLong((data << 1) ^ (data >> 63));
+    }
+
+    /**
+     * Receive a signed, zigzag encoded variable length long from connection.
+     * 
+     * @return Long.
+     * @throws IOException If fails to receive long.
+     */
+    public long receiveZigZagLong() throws IOException {
+        long data = this.receiveVarLong();
+        return (data >>> 1) ^ -(data & 1);
+    }
+
+    /**
+     * Send the ID of the packet that follows, as a zigzag variable length integer if compact
+     * headers are enabled.
+     * 
+     * @param id Packet ID.
+     * @throws IOException If fails to send packet ID.
+     */
+    public void sendPacketId(int id) throws IOException {
+        if(this.isCompactHeaders) {
+            this.sendZigZagInt(id);
+        } else {
+            this.sendInteger(id);
+        }
+    }
+
+    /**
+     * Receive the ID of the packet that follows.
+     * 
+     * @return Packet ID.
+     * @throws IOException If fails to receive packet ID.
+     */
+    public int receivePacketId() throws IOException {
+        return this.isCompactHeaders ? this.receiveZigZagInt() : this.receiveInteger();
+    }
+
+    /**
+     * Read the ID of the packet that follows without consuming it.
+     * 
+     * @return Packet ID.
+     * @throws IOException If fails to receive packet ID.
+     */
+    public int peekPacketId() throws IOException {
+        int position = this.inputBuffer.position();
+        
+        try {
+            return this.receivePacketId();
+        } finally {
+            this.inputBuffer.position(position);
+        }
+    }
+
+    /**
+     * Send the timestamp of the packet that follows, as a zigzag variable length delta from the
+     * {@link #setTimestampBase(long) timestamp base} if compact headers are enabled.
+     * 
+     * @param timestamp Time in milliseconds.
+     * @throws IOException If fails to send timestamp.
+     */
+    public void sendTimestamp(long timestamp) throws IOException {
+        if(this.isCompactHeaders) {
+            this.sendZigZagLong(timestamp - this.timestampBase);
+        } else {
+            this.sendLong(timestamp);
+        }
+    }
+    
+    /**
+     * Receive the timestamp of the packet that follows.
+     * 
+     * @return Time in milliseconds.
+     * @throws IOException If fails to receive timestamp.
+     */
+    public long receiveTimestamp() throws IOException {
+        return this.isCompactHeaders ? this.timestampBase + this.receiveZigZagLong()
+                : this.receiveLong();
+    }
+
+    /**
+     * Send the length of a string or byte array.
+     * 
+     * @param length Length.
+     * @throws IOException If fails to send length.
+     */
+    private void sendLength(int length) throws IOException {
+        if(this.isCompactHeaders) {
+            this.sendVarInt(length);
+        } else {
+            this.sendInteger(length);
+        }
+    }
+
+    /**
+     * Receive the length of a string or byte array.
+     * 
+     * @return Length.
+     * @throws IOException If fails to receive length or it is negative.
+     */
+    private int receiveLength() throws IOException {
+        int length = this.isCompactHeaders ? this.receiveVarInt() : this.receiveInteger();
+        
+        if(length < 0) {
+            throw new IOException("Invalid length " + length + ".");
+        }
+        
+        return length;
     }
 
     /**
@@ -318,7 +1313,7 @@ public final class Connection {
      * @throws IOException If fails to send float.
      */
     public void sendFloat(float data) throws IOException {
-        this.send(ByteBuffer.allocate(4).putFloat(data).array());
+        this.writable(4).putFloat(data);
     }
 
     /**
@@ -328,7 +1323,7 @@ public final class Connection {
      * @throws IOException If fails to receive float.
      */
     public float receiveFloat() throws IOException {
-        return ByteBuffer.wrap(this.receive(new byte[4])).getFloat();
+        return this.readable(4).getFloat();
     }
 
     /**
@@ -338,7 +1333,7 @@ public final class Connection {
      * @throws IOException If fails to send double.
      */
     public void sendDouble(double data) throws IOException {
-        this.send(ByteBuffer.allocate(8).putDouble(data).array());
+        this.writable(8).putDouble(data);
     }
 
     /**
@@ -348,7 +1343,7 @@ public final class Connection {
      * @throws IOException If fails to receive double.
      */
     public double receiveDouble() throws IOException {
-        return ByteBuffer.wrap(this.receive(new byte[8])).getDouble();
+        return this.readable(8).getDouble();
     }
 
     /**
@@ -358,7 +1353,7 @@ public final class Connection {
      * @throws IOException If fails to send boolean.
      */
     public void sendBoolean(boolean data) throws IOException {
-        this.send(new byte[] { (byte) (data ? 0x01 : 0x00) });
+        this.writable(1).put((byte) (data ? 0x01 : 0x00));
     }
 
     /**
@@ -368,7 +1363,7 @@ public final class Connection {
      * @throws IOException If fails to receive boolean.
      */
     public boolean receiveBoolean() throws IOException {
-        return (this.receive(new byte[1])[0] != 0);
+        return (this.readable(1).get() != 0);
     }
 
     /**
@@ -378,7 +1373,7 @@ public final class Connection {
      * @throws IOException If fails to send char.
      */
     public void sendChar(char data) throws IOException {
-        this.send(ByteBuffer.allocate(2).putChar(data).array());
+        this.writable(2).putChar(data);
     }
 
     /**
@@ -388,29 +1383,168 @@ public final class Connection {
      * @throws IOException If fails to receive char.
      */
     public char receiveChar() throws IOException {
-        return ByteBuffer.wrap(this.receive(new byte[2])).getChar();
+        return this.readable(2).getChar();
     }
 
     /**
-     * Send string to connection.
+     * Send string to connection, encoded in UTF-8 straight into the frame.
      * 
      * @param string String.
      * @throws IOException If failed to send.
      */
     public void sendString(String string) throws IOException {
-        this.sendInteger(string.getBytes().length);
-        this.send(string.getBytes());
+        int length = Connection.utf8Length(string);
+        this.sendLength(length);
+        
+        ByteBuffer buffer = this.writable(length);
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            
+            if(c < 0x80) {
+                array[offset++] = (byte) c;
+            } else if(c < 0x800) {
+                array[offset++] = (byte) (0xC0 | (c >> 6));
+                array[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if(Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                array[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                array[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                array[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                array[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if(Character.isSurrogate(c)) {
+                // Unpaired surrogates can not be encoded.
+                array[offset++] = '?';
+            } else {
+                array[offset++] = (byte) (0xE0 | (c >> 12));
+                array[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        
+        buffer.position(buffer.position() + length);
     }
 
     /**
-     * Receive string from connection.
+     * Receive UTF-8 string from connection.
      * 
-     * @return Trimmed string.
+     * @return String.
      * @throws IOException If fails to receive string.
      */
     public String receiveString() throws IOException {
-        int size = this.receiveInteger();
-        return new String(this.receive(new byte[size])).trim();
+        int size = this.receiveLength();
+        ByteBuffer buffer = this.readable(size);
+        
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), size,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + size);
+        
+        return string;
+    }
+
+    /**
+     * Send a string that is likely to be sent again, such as a name or channel ID. The first time
+     * a string is sent over a TCP connection it is added to the connection's string table, after
+     * that it is sent as a small reference to its entry. Over UDP, or once the table is full, it
+     * is sent as a normal string.
+     * 
+     * @param string String.
+     * @throws IOException If failed to send.
+     */
+    public void sendCachedString(String string) throws IOException {
+        if(this.stringTableSize == 0) {
+            this.sendString(string);
+            return;
+        }
+        
+        if(this.sentStrings == null) {
+            this.sentStrings = new HashMap<>();
+        }
+        
+        // 0 is an uncached string, 1 a new entry and anything above a reference to an entry.
+        Integer index = this.sentStrings.get(string);
+        if(index != null) {
+            this.sendVarInt(index + 2);
+        } else if(this.sentStrings.size() < this.stringTableSize) {
+            this.sentStrings.put(string, this.sentStrings.size());
+            this.sendVarInt(1);
+            this.sendString(string);
+        } else {
+            this.sendVarInt(0);
+            this.sendString(string);
+        }
+    }
+
+    /**
+     * Receive a string sent with {@link #sendCachedString(String) sendCachedString()}.
+     * 
+     * @return String.
+     * @throws IOException If fails to receive string or it refers to an unknown entry.
+     */
+    public String receiveCachedString() throws IOException {
+        if(this.stringTableSize == 0) {
+            return this.receiveString();
+        }
+        
+        int tag = this.receiveVarInt();
+        
+        if(tag == 0) {
+            return this.receiveString();
+        }
+        
+        if(tag == 1) {
+            if(this.receivedStringCount == this.stringTableSize) {
+                throw new IOException("String table is full.");
+            }
+            
+            if(this.receivedStrings == null) {
+                this.receivedStrings = new String[Math.min(this.stringTableSize, 64)];
+            } else if(this.receivedStringCount == this.receivedStrings.length) {
+                this.receivedStrings = Arrays.copyOf(this.receivedStrings,
+                        Math.min(this.stringTableSize, this.receivedStringCount * 2));
+            }
+            
+            String string = this.receiveString();
+            this.receivedStrings[this.receivedStringCount++] = string;
+            return string;
+        }
+        
+        int index = tag - 2;
+        if(index < 0 || index >= this.receivedStringCount) {
+            throw new IOException("Unknown string table entry " + index + ".");
+        }
+        
+        return this.receivedStrings[index];
+    }
+
+    /**
+     * @param string String.
+     * @return Number of bytes the given string takes up once encoded in UTF-8.
+     */
+    private static int utf8Length(String string) {
+        int length = string.length();
+        
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            
+            if(c >= 0x800) {
+                if(Character.isHighSurrogate(c) && i + 1 < string.length()
+                        && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    // Four bytes for the pair of chars.
+                    length += 2;
+                    i++;
+                } else if(!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+            } else if(c >= 0x80) {
+                length++;
+            }
+        }
+        
+        return length;
     }
 
     /**
@@ -449,18 +1583,138 @@ public final class Connection {
     }
     
     /**
-     * @param inputStream ByteArrayInputStream.
+     * @return Address and port datagrams are sent to. (Null if protocol is TCP)
+     */
+    public InetSocketAddress getSocketAddress() {
+        return this.socketAddress;
+    }
+    
+    /**
+     * @return If data is read from and written to pooled buffers instead of the socket.
+     */
+    public boolean isBuffered() {
+        return this.isBuffered;
+    }
+    
+    /**
+     * Collect the current frame, sealed into a record if encryption is enabled. The returned
+     * buffer belongs to this connection and must be consumed before anything else is sent.
+     * 
+     * @return Frame in read mode, or null if nothing has been sent since the last frame.
+     * @throws IOException If fails to seal the record.
+     */
+    public synchronized ByteBuffer getBufferedFrame() throws IOException {
+        return this.seal();
+    }
+    
+    /**
+     * Collect the first given number of bytes of the current frame, the rest of the frame is held
+     * back to start the next one. Used to split packets appended to one frame across several
+     * datagrams.
+     * 
+     * @param length The number of bytes of the current frame to collect.
+     * @return Frame in read mode, or null if nothing has been sent since the last frame.
+     * @throws IOException If fails to seal the record.
+     */
+    public synchronized ByteBuffer getBufferedFrame(int length) throws IOException {
+        return this.seal(length);
+    }
+    
+    /**
+     * Take the data sent since the last frame was collected without sealing it, so that it can be
+     * sent later in a frame of its own. The current frame is discarded.
+     * 
+     * @return Pooled heap buffer in read mode holding the data, or null if nothing has been sent
+     *         since the last frame. (Must be released to {@link BufferPool#HEAP})
+     */
+    public synchronized ByteBuffer takeBufferedFrame() {
+        return this.takeBufferedFrame(Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Take the first given number of bytes of the current frame without sealing them, the rest of
+     * the frame is held back to start the next one.
+     * 
+     * @param length The number of bytes of the current frame to take.
+     * @return Pooled heap buffer in read mode holding the data, or null if nothing has been sent
+     *         since the last frame. (Must be released to {@link BufferPool#HEAP})
+     */
+    public synchronized ByteBuffer takeBufferedFrame(int length) {
+        if(this.finishFrame(length) < 0) {
+            return null;
+        }
+        
+        ByteBuffer frame = this.outputBuffer.duplicate();
+        frame.flip();
+        frame.position(this.frameOffset);
+        
+        ByteBuffer taken = BufferPool.HEAP.acquire(frame.remaining());
+        taken.put(frame);
+        taken.flip();
+        return taken;
+    }
+    
+    /**
+     * @return The number of bytes sent since the last frame was collected.
+     */
+    public synchronized int getBufferedLength() {
+        if(!this.isFrameStarted) {
+            return this.hasCarry ? this.carryBuffer.position() : 0;
+        }
+        
+        return this.outputBuffer.position() - this.frameOffset;
+    }
+    
+    /**
+     * @return The maximum number of bytes a frame may hold for its record and session ID to fit
+     *         in a datagram of {@link #MAX_DATAGRAM_SIZE} bytes.
+     */
+    public int getMaxDatagramPayload() {
+        int payload = Connection.MAX_DATAGRAM_SIZE - Connection.SESSION_ID_LENGTH;
+        if(this.compressionThreshold >= 0) {
+            payload--;
+        }
+        
+        return this.isEncrypted ? payload - 8 - RecordCipher.TAG_LENGTH : payload - 8;
+    }
+    
+    /**
+     * @return The time compact timestamps are sent relative to.
+     */
+    public long getTimestampBase() {
+        return this.timestampBase;
+    }
+    
+    /**
+     * Set the time compact timestamps are sent relative to, agreed by both parties during the
+     * handshake so that timestamps usually fit in a few bytes.
+     * 
+     * @param timestampBase Time in milliseconds.
+     */
+    public void setTimestampBase(long timestampBase) {
+        this.timestampBase = timestampBase;
+    }
+    
+    /**
+     * @return If data is left in the frame currently being read.
      */
-    public synchronized void setUdpDataInputStream(ByteArrayInputStream inputStream) {
-        this.udpDataInputStream = inputStream;
+    public boolean hasRemaining() {
+        return this.inputBuffer.hasRemaining();
     }
     
     /**
-     * @return Byte array full of all data to send.
+     * @return Byte array full of all data to send, sealed into a record if encryption is enabled.
+     * @throws IOException If fails to seal the record.
      */
-    public synchronized byte[] getUdpData() {
-        byte[] data = this.udpDataOutputStream.toByteArray();
-        this.flush();
+    public synchronized byte[] getBufferedData() throws IOException {
+        ByteBuffer frame = this.seal();
+        
+        if(frame == null) {
+            return new byte[0];
+        }
+        
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
         return data;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,354 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import net.neto_framework.buffer.BufferPool;
+
+/**
+ * Splits UDP frames that do not fit in a single datagram into fragments, and reassembles
+ * fragments received from the peer. Every fragment is a frame of its own starting with the
+ * reserved packet ID {@link #HEADER_ID}, so it is sealed and authenticated like any other frame.
+ * 
+ * <p>Incomplete frames are held in bounded buffers, the oldest are evicted once too many are
+ * held or when they are not completed in time.</p>
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class FragmentChannel {
+    
+    /**
+     * The packet ID fragments start with, followed by the fragment header.
+     */
+    public static final int HEADER_ID = -7;
+    
+    /**
+     * The maximum size of a fragment header in bytes.
+     */
+    public static final int MAX_HEADER_LENGTH = 20;
+    
+    /**
+     * The maximum size of a frame split into fragments in bytes.
+     */
+    public static int MAX_FRAME_LENGTH = 256 * 1024;
+    
+    /**
+     * The maximum number of incomplete frames held at once.
+     */
+    public static int MAX_INCOMPLETE_FRAMES = 16;
+    
+    /**
+     * The maximum number of bytes held for incomplete frames.
+     */
+    public static int MAX_HELD_BYTES = 1024 * 1024;
+    
+    /**
+     * Time in milliseconds an incomplete frame is held before it is evicted.
+     */
+    public static long REASSEMBLY_TIMEOUT = 1000;
+    
+    /**
+     * The frame being split. (Pooled heap buffer, read mode, null if none)
+     */
+    private ByteBuffer payload;
+    
+    /**
+     * The group ID of the frame being split.
+     */
+    private int group;
+    
+    /**
+     * The index of the next fragment to write.
+     */
+    private int index;
+    
+    /**
+     * The number of fragments the frame being split is made of.
+     */
+    private int count;
+    
+    /**
+     * The size of each fragment of the frame being split.
+     */
+    private int fragmentLength;
+    
+    /**
+     * The group ID of the next frame split.
+     */
+    private int nextGroup;
+    
+    /**
+     * Incomplete frames by group ID, oldest first.
+     */
+    private final LinkedHashMap<Integer, Assembly> assemblies = new LinkedHashMap<>();
+    
+    /**
+     * The number of bytes held for incomplete frames.
+     */
+    private int heldBytes;
+    
+    /**
+     * Start splitting the first given number of bytes of the current frame of the given
+     * connection into fragments if they do not fit in a single datagram. The fragments are then
+     * written by {@link #writeNext(net.neto_framework.Connection) writeNext}.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection}.
+     * @param length The number of bytes of the current frame to send.
+     * @return False if the frame fits in a single datagram and was left in the connection.
+     * @throws IOException If the frame is larger than {@link #MAX_FRAME_LENGTH}.
+     */
+    public synchronized boolean split(Connection connection, int length) throws IOException {
+        int maximumLength = connection.getMaxDatagramPayload();
+        
+        if(Math.min(length, connection.getBufferedLength()) <= maximumLength) {
+            return false;
+        }
+        
+        BufferPool.HEAP.release(this.payload);
+        this.payload = connection.takeBufferedFrame(length);
+        
+        if(this.payload.remaining() > FragmentChannel.MAX_FRAME_LENGTH) {
+            BufferPool.HEAP.release(this.payload);
+            this.payload = null;
+            throw new IOException("Frame too large to be sent over UDP.");
+        }
+        
+        this.fragmentLength = maximumLength - FragmentChannel.MAX_HEADER_LENGTH;
+        this.group = this.nextGroup++;
+        this.index = 0;
+        this.count = (this.payload.remaining() + this.fragmentLength - 1) / this.fragmentLength;
+        return true;
+    }
+    
+    /**
+     * Write the next fragment of the frame being split to the given connection. The fragment
+     * written must be collected and sent before this is called again.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection} with no frame in
+     *                   progress.
+     * @return False if every fragment has been written.
+     * @throws IOException If fails to write the fragment.
+     */
+    public synchronized boolean writeNext(Connection connection) throws IOException {
+        if(this.payload == null) {
+            return false;
+        }
+        
+        if(this.index == this.count) {
+            BufferPool.HEAP.release(this.payload);
+            this.payload = null;
+            return false;
+        }
+        
+        connection.sendPacketId(FragmentChannel.HEADER_ID);
+        connection.sendVarInt(this.group);
+        connection.sendVarInt(this.index++);
+        connection.sendVarInt(this.count);
+        
+        ByteBuffer fragment = this.payload.duplicate();
+        fragment.limit(Math.min(fragment.position() + this.fragmentLength, fragment.limit()));
+        connection.sendSection(fragment.remaining()).put(fragment);
+        this.payload.position(fragment.position());
+        return true;
+    }
+    
+    /**
+     * Read the fragment header at the start of the frame currently being read, if it has one,
+     * replacing the frame with the whole reassembled frame once every fragment has arrived.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection}.
+     * @return True if the connection holds a frame to deliver, false if the frame was a fragment
+     *         of a frame that is still incomplete.
+     * @throws IOException If the fragment header is invalid.
+     */
+    public synchronized boolean receiveFrame(Connection connection) throws IOException {
+        if(!connection.hasRemaining() || connection.peekPacketId() != FragmentChannel.HEADER_ID) {
+            return true;
+        }
+        
+        connection.receivePacketId();
+        int fragmentGroup = connection.receiveVarInt();
+        int fragmentIndex = connection.receiveVarInt();
+        int fragmentCount = connection.receiveVarInt();
+        ByteBuffer fragment = connection.receiveRemaining();
+        
+        if(fragmentCount < 2 || fragmentIndex < 0 || fragmentIndex >= fragmentCount
+                || (long) fragmentCount * fragment.remaining() > 2L
+                * FragmentChannel.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid fragment header.");
+        }
+        
+        long now = System.nanoTime() / 1000000L;
+        this.evict(now);
+        
+        Assembly assembly = this.assemblies.get(fragmentGroup);
+        if(assembly == null) {
+            // Make room for the new frame by evicting the oldest.
+            while(this.assemblies.size() >= FragmentChannel.MAX_INCOMPLETE_FRAMES) {
+                this.remove(this.assemblies.keySet().iterator().next());
+            }
+            
+            assembly = new Assembly(fragmentCount, now);
+            this.assemblies.put(fragmentGroup, assembly);
+        } else if(assembly.fragments.length != fragmentCount) {
+            this.remove(fragmentGroup);
+            throw new IOException("Fragment count does not match the rest of the frame.");
+        }
+        
+        // Ignore duplicate fragments.
+        if(assembly.fragments[fragmentIndex] != null) {
+            return false;
+        }
+        
+        // Evict the oldest frames while too many bytes are held.
+        while(this.heldBytes + fragment.remaining() > FragmentChannel.MAX_HELD_BYTES
+                && !this.assemblies.isEmpty()) {
+            Integer oldest = this.assemblies.keySet().iterator().next();
+            this.remove(oldest);
+            
+            if(oldest == fragmentGroup) {
+                return false;
+            }
+        }
+        
+        ByteBuffer held = BufferPool.HEAP.acquire(fragment.remaining());
+        held.put(fragment);
+        held.flip();
+        assembly.fragments[fragmentIndex] = held;
+        assembly.length += held.remaining();
+        assembly.received++;
+        this.heldBytes += held.remaining();
+        
+        if(assembly.received < fragmentCount) {
+            return false;
+        }
+        
+        // Deliver the reassembled frame.
+        this.assemblies.remove(fragmentGroup);
+        this.heldBytes -= assembly.length;
+        
+        ByteBuffer frame = BufferPool.HEAP.acquire(assembly.length);
+        for(ByteBuffer part : assembly.fragments) {
+            frame.put(part);
+            BufferPool.HEAP.release(part);
+        }
+        
+        frame.flip();
+        connection.receivePlainFrame(frame);
+        BufferPool.HEAP.release(frame);
+        return true;
+    }
+    
+    /**
+     * Evict incomplete frames that have been held for longer than {@link #REASSEMBLY_TIMEOUT}.
+     * 
+     * @param now Monotonic time in milliseconds.
+     */
+    private void evict(long now) {
+        Iterator<Assembly> iterator = this.assemblies.values().iterator();
+        while(iterator.hasNext()) {
+            Assembly assembly = iterator.next();
+            
+            if(now - assembly.startTime <= FragmentChannel.REASSEMBLY_TIMEOUT) {
+                break;
+            }
+            
+            iterator.remove();
+            this.release(assembly);
+        }
+    }
+    
+    /**
+     * Remove an incomplete frame.
+     * 
+     * @param group Group ID.
+     */
+    private void remove(int group) {
+        Assembly assembly = this.assemblies.remove(group);
+        
+        if(assembly != null) {
+            this.release(assembly);
+        }
+    }
+    
+    /**
+     * Release the fragments held for an incomplete frame.
+     * 
+     * @param assembly Incomplete frame.
+     */
+    private void release(Assembly assembly) {
+        for(ByteBuffer part : assembly.fragments) {
+            BufferPool.HEAP.release(part);
+        }
+        
+        this.heldBytes -= assembly.length;
+    }
+    
+    /**
+     * Release every buffer held by this channel.
+     */
+    public synchronized void close() {
+        BufferPool.HEAP.release(this.payload);
+        this.payload = null;
+        
+        for(Assembly assembly : this.assemblies.values()) {
+            this.release(assembly);
+        }
+        
+        this.assemblies.clear();
+    }
+    
+    /**
+     * The fragments of a frame received so far.
+     */
+    private static final class Assembly {
+        
+        /**
+         * Fragments by index. (Pooled heap buffers, read mode, null until received)
+         */
+        private final ByteBuffer[] fragments;
+        
+        /**
+         * The time the first fragment was received.
+         */
+        private final long startTime;
+        
+        /**
+         * The number of fragments received.
+         */
+        private int received;
+        
+        /**
+         * The number of bytes received.
+         */
+        private int length;
+        
+        /**
+         * @param count The number of fragments the frame is made of.
+         * @param startTime The time the first fragment was received.
+         */
+        private Assembly(int count, long startTime) {
+            this.fragments = new ByteBuffer[count];
+            this.startTime = startTime;
+        }
+    }
+}
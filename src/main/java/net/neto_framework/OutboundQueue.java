@@ -0,0 +1,280 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import net.neto_framework.buffer.BufferPool;
+import net.neto_framework.utils.Threads;
+
+/**
+ * A queue of sealed TCP frames waiting to be written to a blocking socket. Frames are written in
+ * the order they were added by a writer thread, so threads sending packets asynchronously never
+ * wait for the peer's TCP window.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class OutboundQueue {
+    
+    /**
+     * The maximum number of bytes that may be waiting in a single queue, frames added beyond
+     * this fail instead of being queued.
+     */
+    public static int MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+    
+    /**
+     * Shared threads that drain queues.
+     */
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = Threads.newThread(task);
+                    thread.setName("Neto-Framework Writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    
+    /**
+     * The socket frames are written to.
+     */
+    private final Socket socket;
+    
+    /**
+     * Frames waiting to be written.
+     */
+    private final ArrayDeque<QueuedFrame> frames = new ArrayDeque<>();
+    
+    /**
+     * Drains this queue on a writer thread.
+     */
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            OutboundQueue.this.drain();
+        }
+    };
+    
+    /**
+     * Number of bytes waiting to be written.
+     */
+    private int queuedBytes;
+    
+    /**
+     * If a thread is currently draining this queue.
+     */
+    private boolean isWriting;
+    
+    /**
+     * The failure that closed this queue. (Null if still open)
+     */
+    private IOException failure;
+    
+    /**
+     * @param socket The blocking {@link java.net.Socket Socket} frames are written to.
+     */
+    public OutboundQueue(Socket socket) {
+        this.socket = socket;
+    }
+    
+    /**
+     * Copy the given frame into the queue. Frames must be added in the order they were sealed.
+     * 
+     * @param frame Sealed frame in read mode. (Fully consumed, may be reused once this returns)
+     * @return CompletableFuture completed once the frame has been written to the socket.
+     */
+    public CompletableFuture<Void> add(ByteBuffer frame) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        synchronized(this.frames) {
+            if(this.failure != null) {
+                future.completeExceptionally(this.failure);
+                return future;
+            }
+            
+            if(this.queuedBytes + frame.remaining() > OutboundQueue.MAX_QUEUED_BYTES) {
+                future.completeExceptionally(new IOException("Outbound queue is full."));
+                return future;
+            }
+            
+            ByteBuffer copy = BufferPool.HEAP.acquire(frame.remaining());
+            copy.put(frame);
+            copy.flip();
+            
+            this.frames.add(new QueuedFrame(copy, future));
+            this.queuedBytes += copy.remaining();
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Start writing queued frames on a writer thread if one is not already doing so.
+     */
+    public void flushAsync() {
+        synchronized(this.frames) {
+            if(this.isWriting || this.frames.isEmpty()) {
+                return;
+            }
+            
+            this.isWriting = true;
+        }
+        
+        OutboundQueue.WRITERS.execute(this.drainTask);
+    }
+    
+    /**
+     * Wait until the given frame has been written, writing queued frames on this thread if no
+     * other thread is doing so.
+     * 
+     * @param future The CompletableFuture returned when the frame was {@link #add(ByteBuffer)
+     *               added}.
+     * @throws IOException If fails to write the frame.
+     */
+    public void flush(CompletableFuture<Void> future) throws IOException {
+        boolean isDraining = false;
+        
+        synchronized(this.frames) {
+            if(!this.isWriting && !this.frames.isEmpty()) {
+                this.isWriting = true;
+                isDraining = true;
+            }
+        }
+        
+        if(isDraining) {
+            this.drain();
+        }
+        
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            
+            throw new IOException("Failed to write frame.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing frame.");
+        }
+    }
+    
+    /**
+     * Fail every queued frame and any frame added afterwards.
+     */
+    public void close() {
+        this.fail(new IOException("Connection closed."));
+    }
+    
+    /**
+     * Write queued frames until the queue is empty.
+     */
+    private void drain() {
+        while(true) {
+            QueuedFrame queued;
+            
+            synchronized(this.frames) {
+                queued = this.frames.poll();
+                
+                if(queued == null) {
+                    this.isWriting = false;
+                    return;
+                }
+                
+                this.queuedBytes -= queued.frame.remaining();
+            }
+            
+            // Attempt to write the frame, failing the rest of the queue if the socket has failed.
+            try {
+                this.socket.getOutputStream().write(queued.frame.array(),
+                        queued.frame.arrayOffset() + queued.frame.position(),
+                        queued.frame.remaining());
+                this.socket.getOutputStream().flush();
+            } catch (IOException e) {
+                BufferPool.HEAP.release(queued.frame);
+                queued.future.completeExceptionally(e);
+                this.fail(e);
+                return;
+            }
+            
+            BufferPool.HEAP.release(queued.frame);
+            queued.future.complete(null);
+        }
+    }
+    
+    /**
+     * Close this queue with the given failure.
+     * 
+     * @param e The IOException that occurred.
+     */
+    private void fail(IOException e) {
+        ArrayDeque<QueuedFrame> failed;
+        
+        synchronized(this.frames) {
+            if(this.failure == null) {
+                this.failure = e;
+            }
+            
+            failed = new ArrayDeque<>(this.frames);
+            this.frames.clear();
+            this.queuedBytes = 0;
+            this.isWriting = false;
+        }
+        
+        for(QueuedFrame queued : failed) {
+            BufferPool.HEAP.release(queued.frame);
+            queued.future.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * A frame waiting to be written and the future completed once it has been.
+     */
+    private static final class QueuedFrame {
+        
+        /**
+         * Pooled copy of the frame in read mode.
+         */
+        private final ByteBuffer frame;
+        
+        /**
+         * Completed once the frame has been written.
+         */
+        private final CompletableFuture<Void> future;
+        
+        /**
+         * @param frame Pooled copy of the frame in read mode.
+         * @param future Completed once the frame has been written.
+         */
+        private QueuedFrame(ByteBuffer frame, CompletableFuture<Void> future) {
+            this.frame = frame;
+            this.future = future;
+        }
+    }
+}
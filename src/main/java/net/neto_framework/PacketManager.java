@@ -19,34 +19,57 @@
 package net.neto_framework;
 
 import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 import net.neto_framework.client.Client;
 import net.neto_framework.client.ServerConnection;
 import net.neto_framework.server.ClientConnection;
 import net.neto_framework.server.Server;
 
 /**
- * Handles and manages all packets.
+ * Handles and manages all packets. Packets are kept in an array indexed by packet ID so that
+ * looking up a received packet never takes a lock, the registry is frozen once the server has
+ * started or the client has connected.
  * 
  * @author BleedObsidian (Jesse Prescott)
  */
 public class PacketManager {
     
     /**
-     * HashMap of all registered packets.
+     * Packets with IDs from -1 down to this ID (the handshake and disconnect packets) are always
+     * handled on the thread that read them, as they change how the frames that follow are read.
      */
-    private final HashMap<Integer, Packet> packets = new HashMap<>();
+    public static final int LAST_INLINE_PACKET_ID = -4;
     
     /**
-     * HashMap of all registered packets handlers for the server.
+     * The maximum difference between the lowest and highest registered packet IDs, which bounds
+     * the size of the registry.
      */
-    private final HashMap<Integer, ServerPacketHandler> serverPacketHandlers = new HashMap<>();
+    public static int MAX_PACKET_ID_RANGE = 65536;
     
     /**
-     * HashMap of all registered packets handlers for the client.
+     * The current registry. Replaced as a whole whenever a packet is registered or unregistered
+     * so that lookups never need a lock.
      */
-    private final HashMap<Integer, ClientPacketHandler> clientPacketHandlers = new HashMap<>();
+    private volatile Registry registry = new Registry(0, new Slot[0]);
+    
+    /**
+     * If packets can no longer be registered or unregistered.
+     */
+    private volatile boolean isFrozen;
+    
+    /**
+     * If packet IDs of 0 and below are reserved for the framework's own packets and the headers
+     * of reliable and fragmented frames.
+     */
+    private boolean isInternalReserved;
 
     /**
      * Register packet for server.
@@ -57,22 +80,19 @@ public class PacketManager {
      */
     public <T extends Packet> void registerPacket(Class<T> packetClass,
             ServerPacketHandler<T> packetHandler) {
-        
-        Packet packet;
-        try {
-            packet = packetClass.newInstance();
-        } catch (InstantiationException e) {
-            throw new RuntimeException("Packet class has a constructor.", e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Packet illegal access.", e);
-        }
-        
-        if(!this.packets.containsKey(packet.getId()) && packet.getId() != 0) {
-            this.packets.put(packet.getId(), packet);
-            this.serverPacketHandlers.put(packet.getId(), packetHandler);
-        } else {
-            throw new RuntimeException("Packet ID is already being used or reserved.");
-        }
+        this.register(PacketManager.createFactory(packetClass), packetHandler, null);
+    }
+    
+    /**
+     * Register packet for server.
+     * 
+     * @param <T> A class that implements the Packet interface.
+     * @param factory Creates a new packet, usually a constructor reference. (e.g. MyPacket::new)
+     * @param packetHandler The handler for this packet.
+     */
+    public <T extends Packet> void registerPacket(Supplier<T> factory,
+            ServerPacketHandler<T> packetHandler) {
+        this.register(factory, packetHandler, null);
     }
     
     /**
@@ -84,62 +104,245 @@ public class PacketManager {
      */
     public <T extends Packet> void registerPacket(Class<T> packetClass,
             ClientPacketHandler<T> packetHandler) {
+        this.register(PacketManager.createFactory(packetClass), null, packetHandler);
+    }
+    
+    /**
+     * Register packet for client.
+     * 
+     * @param <T> A class that implements the Packet interface.
+     * @param factory Creates a new packet, usually a constructor reference. (e.g. MyPacket::new)
+     * @param packetHandler The handler for this packet.
+     */
+    public <T extends Packet> void registerPacket(Supplier<T> factory,
+            ClientPacketHandler<T> packetHandler) {
+        this.register(factory, null, packetHandler);
+    }
+    
+    /**
+     * Register packet without a handler.
+     * 
+     * @param <T> A class that implements the Packet interface.
+     * @param packetClass Packet class.
+     */
+    public <T extends Packet> void registerPacket(Class<T> packetClass) {
+        this.register(PacketManager.createFactory(packetClass), null, null);
+    }
+    
+    /**
+     * Register packet without a handler.
+     * 
+     * @param <T> A class that implements the Packet interface.
+     * @param factory Creates a new packet, usually a constructor reference. (e.g. MyPacket::new)
+     */
+    public <T extends Packet> void registerPacket(Supplier<T> factory) {
+        this.register(factory, null, null);
+    }
+    
+    /**
+     * Register a pass-through packet ID for server. Packets with this ID are not decoded, instead
+     * the handler is given their data to forward with a {@link net.neto_framework.RawPacket
+     * RawPacket}. The data runs to the end of the frame, so over UDP pass-through packets must be
+     * sent outside of a batch.
+     * 
+     * @param id Packet ID.
+     * @param packetHandler The handler for this packet ID.
+     */
+    public void registerRawPacket(int id, RawServerPacketHandler packetHandler) {
+        this.register(id, new Slot(packetHandler, null), "pass-through packet");
+    }
+    
+    /**
+     * Register a pass-through packet ID for client. Packets with this ID are not decoded, instead
+     * the handler is given their data. The data runs to the end of the frame, so over UDP
+     * pass-through packets must be sent outside of a batch.
+     * 
+     * @param id Packet ID.
+     * @param packetHandler The handler for this packet ID.
+     */
+    public void registerRawPacket(int id, RawClientPacketHandler packetHandler) {
+        this.register(id, new Slot(null, packetHandler), "pass-through packet");
+    }
+
+    /**
+     * Unregister packet.
+     * 
+     * @param <T> A class that implements the Packet interface.
+     * @param packet Packet.
+     */
+    public synchronized <T extends Packet> void unregisterPacket(Class<T> packet) {
+        this.checkNotFrozen();
         
-        Packet packet;
-        try {
-            packet = packetClass.newInstance();
-        } catch (InstantiationException e) {
-            throw new RuntimeException("Packet class has a constructor.", e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Packet illegal access.", e);
+        Registry current = this.registry;
+        Slot[] slots = current.slots.clone();
+        
+        for(int i = 0; i < slots.length; i++) {
+            if(slots[i] != null && slots[i].packetClass == packet) {
+                slots[i] = null;
+            }
         }
         
-        if(!this.packets.containsKey(packet.getId()) && packet.getId() != 0) {
-            this.packets.put(packet.getId(), packet);
-            this.clientPacketHandlers.put(packet.getId(), packetHandler);
-        } else {
-            throw new RuntimeException("Packet ID is already being used or reserved.");
+        this.registry = new Registry(current.offset, slots);
+    }
+    
+    /**
+     * Reserve packet IDs of 0 and below, which are used by the framework's own packets and the
+     * headers of {@link net.neto_framework.ReliableChannel reliable} and
+     * {@link net.neto_framework.FragmentChannel fragmented} frames. Called once the server or
+     * client has registered its own packets, only positive IDs can be registered afterwards.
+     */
+    public synchronized void reserveInternalIds() {
+        this.isInternalReserved = true;
+    }
+    
+    /**
+     * Stop packets from being registered or unregistered. Called when the server is started or
+     * the client connects.
+     */
+    public void freeze() {
+        this.isFrozen = true;
+    }
+    
+    /**
+     * @return If packets can no longer be registered or unregistered.
+     */
+    public boolean isFrozen() {
+        return this.isFrozen;
+    }
+    
+    /**
+     * Add a packet to the registry.
+     * 
+     * @param <T> A class that implements the Packet interface.
+     * @param factory Creates a new packet.
+     * @param serverHandler The server handler for this packet. (May be null)
+     * @param clientHandler The client handler for this packet. (May be null)
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Packet> void register(Supplier<T> factory,
+            ServerPacketHandler<T> serverHandler, ClientPacketHandler<T> clientHandler) {
+        Packet packet = factory.get();
+        Class<? extends Packet> packetClass = packet.getClass();
+        
+        // The handlers are only ever given packets created by the same factory, so the slot can
+        // hold them without their packet type.
+        this.register(packet.getId(), new Slot(packetClass, factory,
+                (ServerPacketHandler<Packet>) (ServerPacketHandler<?>) serverHandler,
+                (ClientPacketHandler<Packet>) (ClientPacketHandler<?>) clientHandler),
+                packetClass.getName());
+    }
+    
+    /**
+     * Add a slot to the registry.
+     * 
+     * @param id Packet ID.
+     * @param slot Slot.
+     * @param name Name of the packet used in error messages.
+     */
+    private synchronized void register(int id, Slot slot, String name) {
+        this.checkNotFrozen();
+        
+        if(id == 0 || (id < 0 && this.isInternalReserved)) {
+            throw new RuntimeException("Packet ID " + id + " of " + name + " is reserved, packet"
+                    + " IDs must be positive.");
+        }
+        
+        Slot existing = this.getSlot(id);
+        if(existing != null) {
+            throw new RuntimeException("Packet ID " + id + " of " + name
+                    + " is already being used by " + existing.getName() + ".");
         }
+        
+        // Grow the registry to cover the ID.
+        Registry current = this.registry;
+        int low = current.slots.length == 0 ? id : Math.min(current.offset, id);
+        int high = current.slots.length == 0 ? id
+                : Math.max(current.offset + current.slots.length - 1, id);
+        
+        if((long) high - low >= PacketManager.MAX_PACKET_ID_RANGE) {
+            throw new RuntimeException("Packet ID " + id + " of " + name
+                    + " is too far from the other registered packet IDs.");
+        }
+        
+        Slot[] slots = new Slot[high - low + 1];
+        if(current.slots.length > 0) {
+            System.arraycopy(current.slots, 0, slots, current.offset - low, current.slots.length);
+        }
+        
+        slots[id - low] = slot;
+        
+        this.registry = new Registry(low, slots);
     }
     
     /**
-     * Register packet without a handler.
+     * Create a factory for the given packet class that calls its no-argument constructor
+     * directly, generated once with a {@link java.lang.invoke.LambdaMetafactory LambdaMetafactory}
+     * so that no reflection is used when packets are received.
      * 
      * @param <T> A class that implements the Packet interface.
-     * @param packetClass Packet class.
+     * @param packetClass Packet class with a public no-argument constructor.
+     * @return Factory.
      */
-    public <T extends Packet> void registerPacket(Class<T> packetClass) {
-        Packet packet;
+    @SuppressWarnings("unchecked")
+    private static <T extends Packet> Supplier<T> createFactory(Class<T> packetClass) {
+        final MethodHandle constructor;
         try {
-            packet = packetClass.newInstance();
-        } catch (InstantiationException e) {
-            throw new RuntimeException("Packet class has a constructor.", e);
+            constructor = MethodHandles.publicLookup().findConstructor(packetClass,
+                    MethodType.methodType(void.class));
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("Packet class " + packetClass.getName() + " does not have"
+                    + " a public no-argument constructor.", e);
         } catch (IllegalAccessException e) {
             throw new RuntimeException("Packet illegal access.", e);
         }
         
-        if(!this.packets.containsKey(packet.getId()) && packet.getId() != 0) {
-            this.packets.put(packet.getId(), packet);
-        } else {
-            throw new RuntimeException("Packet ID is already being used or reserved.");
+        try {
+            CallSite site = LambdaMetafactory.metafactory(MethodHandles.lookup(), "get",
+                    MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+                    constructor, MethodType.methodType(packetClass));
+            return (Supplier<T>) site.getTarget().invoke();
+        } catch (Throwable e) {
+            // The packet class is not visible to this class loader, call the constructor through
+            // its method handle instead.
+            return new Supplier<T>() {
+                @Override
+                public T get() {
+                    try {
+                        return (T) constructor.invoke();
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new RuntimeException("Failed to create packet.", e);
+                    }
+                }
+            };
         }
     }
-
+    
     /**
-     * Unregister packet.
-     * 
-     * @param <T> A class that implements the Packet interface.
-     * @param packet Packet.
+     * Throw an exception if the registry has been frozen.
      */
-    public <T extends Packet> void unregisterPacket(Class<T> packet) {
-        for(Map.Entry<Integer, Packet> entry : this.packets.entrySet()) {
-            if(entry.getValue().getClass() == packet) {
-                this.packets.remove(entry.getKey());
-                this.serverPacketHandlers.remove(entry.getKey());
-                this.clientPacketHandlers.remove(entry.getKey());
-            }
+    private void checkNotFrozen() {
+        if(this.isFrozen) {
+            throw new RuntimeException("Packets can not be registered or unregistered once the"
+                    + " server has started or the client has connected.");
         }
     }
+    
+    /**
+     * @param id Packet ID.
+     * @return The slot of the packet with the given ID or null if not registered.
+     */
+    private Slot getSlot(int id) {
+        Registry current = this.registry;
+        int index = id - current.offset;
+        
+        if(index < 0 || index >= current.slots.length) {
+            return null;
+        }
+        
+        return current.slots[index];
+    }
 
     /**
      * Receive packet server-side.
@@ -151,24 +354,66 @@ public class PacketManager {
      * @param protocol The {@link net.neto_framework.Protocol Protocol} the packet is in.
      * @throws IOException If fails to receive packet.
      */
-    public void receive(Server server, int id, ClientConnection client, Protocol protocol)
-            throws IOException {
-        try {
-            Packet packet = this.packets.get(id).getClass().newInstance();
+    public void receive(final Server server, int id, final ClientConnection client,
+            Protocol protocol) throws IOException {
+        Slot slot = this.getSlot(id);
+        if(slot == null) {
+            throw new IOException("Unknown packet " + id + ".");
+        }
+        
+        // Hand pass-through packets over without decoding them.
+        if(slot.packetClass == null) {
+            Connection connection = protocol == Protocol.TCP ? client.getTCPConnection()
+                    : client.getUDPConnection();
+            ByteBuffer data = connection.receiveRemaining();
             
+            if(slot.rawServerHandler != null) {
+                slot.rawServerHandler.onReceiveFrame(server, client, id, protocol, data);
+            }
+            return;
+        }
+        
+        final Packet packet = slot.create();
+        
+        try {
             if(protocol == Protocol.TCP) {
                 packet.receive(client.getTCPConnection());
             } else {
                 packet.receive(client.getUDPConnection());
             }
-            
-            if(this.serverPacketHandlers.get(id) != null) {
-                this.serverPacketHandlers.get(id).onReceivePacket(server, client, packet);
+        } catch (IOException e) {
+            RecyclablePacket.release(packet);
+            throw e;
+        }
+        
+        final ServerPacketHandler<Packet> handler = slot.serverHandler;
+        
+        if(handler == null) {
+            RecyclablePacket.release(packet);
+            return;
+        }
+        
+        Executor executor = client.getHandlerExecutor();
+        
+        // Hand the packet to the connection's handler executor, unless handling it inline.
+        // Recyclable packets go back to their pool once handled.
+        if(executor == null || PacketManager.isHandledInline(id)) {
+            try {
+                handler.onReceivePacket(server, client, packet);
+            } finally {
+                RecyclablePacket.release(packet);
             }
-        } catch (InstantiationException e) {
-            throw new RuntimeException("Packet " + id + " class has a constructor.", e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Packet " + id + " illegal access.", e);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.onReceivePacket(server, client, packet);
+                    } finally {
+                        RecyclablePacket.release(packet);
+                    }
+                }
+            });
         }
     }
     
@@ -182,25 +427,95 @@ public class PacketManager {
      * @param protocol The {@link net.neto_framework.Protocol Protocol} the packet is in.
      * @throws IOException If fails to receive packet.
      */
-    public void receive(Client client, int id, ServerConnection serverConnection, Protocol protocol)
-            throws IOException {
-        try {
-            Packet packet = this.packets.get(id).getClass().newInstance();
+    public void receive(final Client client, int id, ServerConnection serverConnection,
+            Protocol protocol) throws IOException {
+        Slot slot = this.getSlot(id);
+        if(slot == null) {
+            throw new IOException("Unknown packet " + id + ".");
+        }
+        
+        // Hand pass-through packets over without decoding them.
+        if(slot.packetClass == null) {
+            Connection connection = protocol == Protocol.TCP
+                    ? serverConnection.getTCPConnection() : serverConnection.getUDPConnection();
+            ByteBuffer data = connection.receiveRemaining();
             
+            if(slot.rawClientHandler != null) {
+                slot.rawClientHandler.onReceiveFrame(client, id, protocol, data);
+            }
+            return;
+        }
+        
+        final Packet packet = slot.create();
+        
+        try {
             if(protocol == Protocol.TCP) {
                 packet.receive(serverConnection.getTCPConnection());
             } else {
                 packet.receive(serverConnection.getUDPConnection());
             }
-            
-            if(this.clientPacketHandlers.get(id) != null) {
-                this.clientPacketHandlers.get(id).onReceivePacket(client, packet);
+        } catch (IOException e) {
+            RecyclablePacket.release(packet);
+            throw e;
+        }
+        
+        final ClientPacketHandler<Packet> handler = slot.clientHandler;
+        
+        if(handler == null) {
+            RecyclablePacket.release(packet);
+            return;
+        }
+        
+        Executor executor = serverConnection.getHandlerExecutor();
+        
+        // Hand the packet to the connection's handler executor, unless handling it inline.
+        // Recyclable packets go back to their pool once handled.
+        if(executor == null || PacketManager.isHandledInline(id)) {
+            try {
+                handler.onReceivePacket(client, packet);
+            } finally {
+                RecyclablePacket.release(packet);
             }
-        } catch (InstantiationException e) {
-            throw new RuntimeException("Packet " + id + " class has a constructor.", e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Packet " + id + " illegal access.", e);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.onReceivePacket(client, packet);
+                    } finally {
+                        RecyclablePacket.release(packet);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param id Packet ID.
+     * @return If the packet with the given ID is always handled on the thread that read it.
+     */
+    public static boolean isHandledInline(int id) {
+        return id < 0 && id >= PacketManager.LAST_INLINE_PACKET_ID;
+    }
+
+    /**
+     * Get a new packet of the given class, taken from its pool if the packet is
+     * {@link net.neto_framework.RecyclablePacket recyclable}. Pooled packets return to their pool
+     * once they have first been sent, {@link net.neto_framework.Recyclable#retain() retain} them
+     * to send them to several connections.
+     * 
+     * @param <T> A class that implements the Packet interface.
+     * @param packetClass Registered packet class.
+     * @return Packet.
+     */
+    public <T extends Packet> T obtainPacket(Class<T> packetClass) {
+        Slot slot = this.registry.classes.get(packetClass);
+        
+        if(slot == null) {
+            throw new RuntimeException("Packet " + packetClass.getName() + " is not registered.");
         }
+        
+        return packetClass.cast(slot.create());
     }
 
     /**
@@ -208,6 +523,132 @@ public class PacketManager {
      * @return If has packet with given ID.
      */
     public boolean hasPacket(int id) {
-        return this.packets.containsKey(id);
+        return this.getSlot(id) != null;
+    }
+    
+    /**
+     * An immutable array of slots indexed by packet ID minus the offset.
+     */
+    private static final class Registry {
+        
+        /**
+         * The packet ID of the first slot.
+         */
+        private final int offset;
+        
+        /**
+         * Slots, null where no packet is registered.
+         */
+        private final Slot[] slots;
+        
+        /**
+         * Slots by packet class.
+         */
+        private final HashMap<Class<?>, Slot> classes = new HashMap<>();
+        
+        /**
+         * @param offset The packet ID of the first slot.
+         * @param slots Slots.
+         */
+        private Registry(int offset, Slot[] slots) {
+            this.offset = offset;
+            this.slots = slots;
+            
+            for(Slot slot : slots) {
+                if(slot != null && slot.packetClass != null) {
+                    this.classes.put(slot.packetClass, slot);
+                }
+            }
+        }
+    }
+    
+    /**
+     * A registered packet and its handlers, or a pass-through packet ID and its raw handlers.
+     */
+    private static final class Slot {
+        
+        /**
+         * Packet class. (Null if pass-through)
+         */
+        private final Class<? extends Packet> packetClass;
+        
+        /**
+         * Creates a new packet for every packet received. (Null if pass-through)
+         */
+        private final Supplier<? extends Packet> factory;
+        
+        /**
+         * Pool of recyclable packets. (Null if the packet is not recyclable)
+         */
+        private final PacketPool pool;
+        
+        /**
+         * The server handler. (May be null)
+         */
+        private final ServerPacketHandler<Packet> serverHandler;
+        
+        /**
+         * The client handler. (May be null)
+         */
+        private final ClientPacketHandler<Packet> clientHandler;
+        
+        /**
+         * The server handler of a pass-through packet. (May be null)
+         */
+        private final RawServerPacketHandler rawServerHandler;
+        
+        /**
+         * The client handler of a pass-through packet. (May be null)
+         */
+        private final RawClientPacketHandler rawClientHandler;
+        
+        /**
+         * @param packetClass Packet class.
+         * @param factory Creates a new packet for every packet received.
+         * @param serverHandler The server handler. (May be null)
+         * @param clientHandler The client handler. (May be null)
+         */
+        @SuppressWarnings("unchecked")
+        private Slot(Class<? extends Packet> packetClass, Supplier<? extends Packet> factory,
+                ServerPacketHandler<Packet> serverHandler,
+                ClientPacketHandler<Packet> clientHandler) {
+            this.packetClass = packetClass;
+            this.factory = factory;
+            this.pool = RecyclablePacket.class.isAssignableFrom(packetClass)
+                    ? new PacketPool((Supplier<? extends RecyclablePacket>) factory) : null;
+            this.serverHandler = serverHandler;
+            this.clientHandler = clientHandler;
+            this.rawServerHandler = null;
+            this.rawClientHandler = null;
+        }
+        
+        /**
+         * @param rawServerHandler The server handler of a pass-through packet. (May be null)
+         * @param rawClientHandler The client handler of a pass-through packet. (May be null)
+         */
+        private Slot(RawServerPacketHandler rawServerHandler,
+                RawClientPacketHandler rawClientHandler) {
+            this.packetClass = null;
+            this.factory = null;
+            this.pool = null;
+            this.serverHandler = null;
+            this.clientHandler = null;
+            this.rawServerHandler = rawServerHandler;
+            this.rawClientHandler = rawClientHandler;
+        }
+        
+        /**
+         * @return Name of the packet used in error messages.
+         */
+        private String getName() {
+            return this.packetClass != null ? this.packetClass.getName() : "pass-through packet";
+        }
+        
+        /**
+         * @return New packet, taken from the pool if the packet is recyclable.
+         */
+        private Packet create() {
+            return this.pool != null ? this.pool.acquire() : this.factory.get();
+        }
     }
 }
@@ -0,0 +1,128 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import net.neto_framework.utils.Threads;
+
+/**
+ * A pool of reusable packets of a single type. Each thread keeps a small cache of its own in
+ * front of a shared arena, so packets released on a handler thread can be reused by the thread
+ * that reads them.
+ * 
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public final class PacketPool {
+    
+    /**
+     * The maximum number of packets cached by each thread.
+     */
+    public static int THREAD_CACHE_SIZE = 32;
+    
+    /**
+     * The maximum number of packets kept in the shared arena.
+     */
+    public static int ARENA_SIZE = 256;
+    
+    /**
+     * If packets are cached per thread. Virtual threads are too numerous and short lived for
+     * per thread caches to be reused, so only the shared arena is used with them.
+     */
+    private static final boolean IS_THREAD_CACHED = !Threads.isVirtual();
+    
+    /**
+     * Creates new packets when the pool is empty.
+     */
+    private final Supplier<? extends RecyclablePacket> factory;
+    
+    /**
+     * Shared packets.
+     */
+    private final ConcurrentLinkedQueue<RecyclablePacket> arena = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Number of packets in the shared arena.
+     */
+    private final AtomicInteger arenaSize = new AtomicInteger();
+    
+    /**
+     * Per thread packet caches.
+     */
+    private final ThreadLocal<ArrayDeque<RecyclablePacket>> caches =
+            new ThreadLocal<ArrayDeque<RecyclablePacket>>() {
+        @Override
+        protected ArrayDeque<RecyclablePacket> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    
+    /**
+     * @param factory Creates new packets when the pool is empty.
+     */
+    public PacketPool(Supplier<? extends RecyclablePacket> factory) {
+        this.factory = factory;
+    }
+    
+    /**
+     * Take a packet from the pool, creating one if the pool is empty.
+     * 
+     * @return Reset packet.
+     */
+    public RecyclablePacket acquire() {
+        RecyclablePacket packet = PacketPool.IS_THREAD_CACHED ? this.caches.get().poll() : null;
+        
+        if(packet == null) {
+            packet = this.arena.poll();
+            
+            if(packet != null) {
+                this.arenaSize.decrementAndGet();
+            } else {
+                packet = this.factory.get();
+            }
+        }
+        
+        packet.onAcquired(this);
+        return packet;
+    }
+    
+    /**
+     * Return a reset packet to the pool.
+     * 
+     * @param packet Packet acquired from this pool.
+     */
+    void release(RecyclablePacket packet) {
+        if(PacketPool.IS_THREAD_CACHED) {
+            ArrayDeque<RecyclablePacket> cache = this.caches.get();
+            
+            if(cache.size() < PacketPool.THREAD_CACHE_SIZE) {
+                cache.push(packet);
+                return;
+            }
+        }
+        
+        if(this.arenaSize.incrementAndGet() <= PacketPool.ARENA_SIZE) {
+            this.arena.add(packet);
+        } else {
+            this.arenaSize.decrementAndGet();
+        }
+    }
+}
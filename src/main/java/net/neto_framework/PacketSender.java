@@ -0,0 +1,600 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import net.neto_framework.buffer.BufferPool;
+import net.neto_framework.utils.Threads;
+
+/**
+ * Encodes and sends the packets of one side of a connection, shared by the server's
+ * {@link net.neto_framework.server.ClientConnection ClientConnection} and the client's
+ * {@link net.neto_framework.client.ServerConnection ServerConnection}. TCP frames are handed to
+ * {@link #writeFrame(ByteBuffer) writeFrame}, UDP frames are packed into datagrams, split into
+ * fragments and delivered reliably here.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public abstract class PacketSender {
+    
+    /**
+     * The {@link net.neto_framework.PacketManager PacketManager} packets must be registered with.
+     */
+    private final PacketManager packetManager;
+    
+    /**
+     * TCP connection.
+     */
+    private final Connection tcpConnection;
+    
+    /**
+     * TCP frames waiting to be written to the socket. (Null if frames are written by an event
+     * loop)
+     */
+    private final OutboundQueue outboundQueue;
+    
+    /**
+     * UDP connection. (Null until added)
+     */
+    private Connection udpConnection;
+    
+    /**
+     * Reliable delivery of frames sent over the UDP connection.
+     */
+    private ReliableChannel reliableChannel;
+    
+    /**
+     * Fragmentation of frames sent over the UDP connection that do not fit in a datagram.
+     */
+    private FragmentChannel fragmentChannel;
+    
+    /**
+     * Lock held while a packet is written, a ReentrantLock so that virtual threads blocked on a
+     * write do not pin their carrier thread.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+    
+    /**
+     * Futures of the TCP packets in the open batch.
+     */
+    private final ArrayList<CompletableFuture<Void>> tcpBatchFutures = new ArrayList<>();
+    
+    /**
+     * Futures of the UDP packets in the open batch that have not been sent yet.
+     */
+    private final ArrayList<CompletableFuture<Void>> udpBatchFutures = new ArrayList<>();
+    
+    /**
+     * Sealed TCP frames of the open batch. (Pooled, write mode, null if none)
+     */
+    private ByteBuffer batchBuffer;
+    
+    /**
+     * If a batch is open. (Guarded by the send lock)
+     */
+    private boolean isBatching;
+    
+    /**
+     * @param packetManager The {@link net.neto_framework.PacketManager PacketManager} packets
+     *                      must be registered with.
+     * @param tcpConnection TCP {@link net.neto_framework.Connection Connection}.
+     * @param outboundQueue {@link net.neto_framework.OutboundQueue OutboundQueue} TCP frames are
+     *                      written from. (Null if {@link #writeFrame(ByteBuffer) writeFrame} is
+     *                      overridden to write them some other way)
+     */
+    public PacketSender(PacketManager packetManager, Connection tcpConnection,
+            OutboundQueue outboundQueue) {
+        this.packetManager = packetManager;
+        this.tcpConnection = tcpConnection;
+        this.outboundQueue = outboundQueue;
+    }
+    
+    /**
+     * Add the UDP connection packets are sent over with the UDP protocols.
+     * 
+     * @param udpConnection UDP {@link net.neto_framework.Connection Connection}.
+     */
+    public void addUdpConnection(Connection udpConnection) {
+        this.udpConnection = udpConnection;
+        this.reliableChannel = new ReliableChannel(new Runnable() {
+            @Override
+            public void run() {
+                PacketSender.this.onReliableTick();
+            }
+        });
+        this.fragmentChannel = new FragmentChannel();
+    }
+    
+    /**
+     * Send packet, waiting until a TCP packet has been written to the socket. While a batch is
+     * open the packet is only queued until the batch is {@link #flush() flushed}.
+     * 
+     * @param packet The {@link net.neto_framework.Packet Packet} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @throws IOException If fails to send packet.
+     */
+    public void sendPacket(Packet packet, Protocol protocol) throws IOException {
+        CompletableFuture<Void> future;
+        
+        this.sendLock.lock();
+        try {
+            future = this.queuePacket(packet, protocol);
+            
+            if(this.isBatching) {
+                return;
+            }
+        } finally {
+            this.sendLock.unlock();
+        }
+        
+        if(this.outboundQueue != null && protocol == Protocol.TCP) {
+            this.outboundQueue.flush(future);
+        }
+    }
+    
+    /**
+     * Send packet without waiting for it to be written. TCP packets are queued and written in
+     * order by the transport, UDP packets are sent immediately unless a batch is open. Reliable
+     * UDP packets are always sent immediately, in a datagram of their own.
+     * 
+     * @param packet The {@link net.neto_framework.Packet Packet} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @return CompletableFuture completed once the packet has been written, or for reliable
+     *         UDP once it has been acknowledged, or completed exceptionally with an IOException
+     *         if it could not be.
+     */
+    public CompletableFuture<Void> sendPacketAsync(Packet packet, Protocol protocol) {
+        CompletableFuture<Void> future;
+        
+        try {
+            future = this.queuePacket(packet, protocol);
+        } catch (IOException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        
+        if(this.outboundQueue != null && protocol == Protocol.TCP) {
+            this.outboundQueue.flushAsync();
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Send several packets at once, waiting until they have been written. TCP packets are
+     * written with a single write and UDP packets are packed into as few datagrams as possible.
+     * 
+     * @param packets The {@link net.neto_framework.Packet Packets} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @throws IOException If fails to send packets.
+     */
+    public void sendPackets(Collection<? extends Packet> packets, Protocol protocol)
+            throws IOException {
+        CompletableFuture<Void> future;
+        
+        this.sendLock.lock();
+        try {
+            boolean wasBatching = this.isBatching;
+            this.isBatching = true;
+            
+            for(Packet packet : packets) {
+                this.queuePacket(packet, protocol);
+            }
+            
+            // Leave the packets in an already open batch.
+            if(wasBatching) {
+                return;
+            }
+            
+            future = this.writeBatch();
+        } finally {
+            this.sendLock.unlock();
+        }
+        
+        if(this.outboundQueue != null && future != null) {
+            this.outboundQueue.flush(future);
+        }
+    }
+    
+    /**
+     * Open a batch. Packets sent until the batch is {@link #flush() flushed} are held back and
+     * then written together, TCP packets with a single write and UDP packets packed into as few
+     * datagrams as possible.
+     */
+    public void beginBatch() {
+        this.sendLock.lock();
+        try {
+            this.isBatching = true;
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+    
+    /**
+     * Write every packet sent since the batch was {@link #beginBatch() opened} and close the
+     * batch, waiting until the TCP packets have been written.
+     * 
+     * @throws IOException If fails to send the batched packets.
+     */
+    public void flush() throws IOException {
+        CompletableFuture<Void> future;
+        
+        this.sendLock.lock();
+        try {
+            future = this.writeBatch();
+        } finally {
+            this.sendLock.unlock();
+        }
+        
+        if(this.outboundQueue != null && future != null) {
+            this.outboundQueue.flush(future);
+        }
+    }
+    
+    /**
+     * Encode and queue a packet, appending it to the open batch if there is one.
+     * 
+     * @param packet The {@link net.neto_framework.Packet Packet} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @return CompletableFuture completed once the packet has been written.
+     * @throws IOException If fails to encode or send packet.
+     */
+    public CompletableFuture<Void> queuePacket(Packet packet, Protocol protocol)
+            throws IOException {
+        
+        // Throw an exception if an attempt to send an unregistered packet is made.
+        if(!this.packetManager.hasPacket(packet.getId())) {
+            throw new RuntimeException("You can not attempt to send an unregistered packet, please"
+                    + " register it with the PacketManager first.");
+        }
+        
+        // Never send a pooled packet that has already gone back to its pool.
+        RecyclablePacket.checkNotRecycled(packet);
+        
+        CompletableFuture<Void> future = null;
+        
+        this.sendLock.lock();
+        try {
+            // If sending the packet over TCP.
+            if(protocol == Protocol.TCP) {
+                // Send the Packet ID.
+                this.tcpConnection.sendPacketId(packet.getId());
+                
+                // Send the current timestamp.
+                this.tcpConnection.sendTimestamp(System.currentTimeMillis());
+                
+                // Send the packet data.
+                packet.send(this.tcpConnection);
+                
+                // Return a recyclable packet to its pool now it has been encoded.
+                RecyclablePacket.release(packet);
+                
+                ByteBuffer frame = this.tcpConnection.getBufferedFrame();
+                
+                // Append the frame to the open batch.
+                if(this.isBatching) {
+                    if(this.batchBuffer == null) {
+                        this.batchBuffer = BufferPool.HEAP.acquire(frame.remaining());
+                    } else if(this.batchBuffer.remaining() < frame.remaining()) {
+                        this.batchBuffer = BufferPool.HEAP.grow(this.batchBuffer,
+                                this.batchBuffer.position() + frame.remaining());
+                    }
+                    
+                    this.batchBuffer.put(frame);
+                    future = new CompletableFuture<>();
+                    this.tcpBatchFutures.add(future);
+                    return future;
+                }
+                
+                // Queue the whole packet at once.
+                future = this.writeFrame(frame);
+            }
+            
+            // If sending the packet over UDP.
+            if(protocol == Protocol.UDP) {
+                // Remember where this packet starts in case it does not fit in the datagram.
+                int offset = this.udpConnection.getBufferedLength();
+                
+                // Send the Packet ID.
+                this.udpConnection.sendPacketId(packet.getId());
+                
+                // Send the packet data.
+                packet.send(this.udpConnection);
+                
+                // Return a recyclable packet to its pool now it has been encoded.
+                RecyclablePacket.release(packet);
+                
+                // Keep appending packets to the datagram of the open batch until it is full.
+                if(this.isBatching) {
+                    if(offset > 0 && this.udpConnection.getBufferedLength()
+                            > this.udpConnection.getMaxDatagramPayload()) {
+                        this.sendUdpFrame(offset);
+                    }
+                    
+                    future = new CompletableFuture<>();
+                    this.udpBatchFutures.add(future);
+                    return future;
+                }
+                
+                // Attempt to send the packet.
+                this.sendUdpFrame(Integer.MAX_VALUE);
+                future = CompletableFuture.completedFuture(null);
+            }
+            
+            // If sending the packet reliably over UDP.
+            if(protocol == Protocol.RELIABLE_UDP || protocol == Protocol.RELIABLE_UNORDERED_UDP) {
+                // Reliable packets travel in frames of their own, send the packets of the open
+                // batch first.
+                this.sendUdpFrame(Integer.MAX_VALUE);
+                
+                // Send the Packet ID.
+                this.udpConnection.sendPacketId(packet.getId());
+                
+                // Send the packet data.
+                packet.send(this.udpConnection);
+                
+                // Return a recyclable packet to its pool now it has been encoded.
+                RecyclablePacket.release(packet);
+                
+                // Queue the packet as a reliable frame, completing the future once it has been
+                // acknowledged, and send it.
+                future = this.reliableChannel.add(protocol, this.udpConnection);
+                this.sendReliableFrames();
+            }
+        } finally {
+            this.sendLock.unlock();
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Write the open batch and close it. (Must hold the send lock)
+     * 
+     * @return CompletableFuture completed once the batched TCP packets have been written, null
+     *         if there were none.
+     * @throws IOException If fails to send the batched packets.
+     */
+    public CompletableFuture<Void> writeBatch() throws IOException {
+        this.isBatching = false;
+        
+        // Send the last, partly filled datagram.
+        if(!this.udpBatchFutures.isEmpty()) {
+            this.sendUdpFrame(Integer.MAX_VALUE);
+        }
+        
+        if(this.tcpBatchFutures.isEmpty()) {
+            return null;
+        }
+        
+        // Write every batched frame at once.
+        final ArrayList<CompletableFuture<Void>> futures = new ArrayList<>(this.tcpBatchFutures);
+        this.tcpBatchFutures.clear();
+        this.batchBuffer.flip();
+        
+        CompletableFuture<Void> future;
+        try {
+            future = this.writeFrame(this.batchBuffer);
+        } catch (IOException e) {
+            for(CompletableFuture<Void> batched : futures) {
+                batched.completeExceptionally(e);
+            }
+            
+            throw e;
+        } finally {
+            BufferPool.HEAP.release(this.batchBuffer);
+            this.batchBuffer = null;
+        }
+        
+        // Complete the future of every batched packet with the batch.
+        future.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable failure) {
+                for(CompletableFuture<Void> batched : futures) {
+                    if(failure != null) {
+                        batched.completeExceptionally(failure);
+                    } else {
+                        batched.complete(null);
+                    }
+                }
+            }
+        });
+        
+        return future;
+    }
+    
+    /**
+     * Send every reliable frame that is due to be sent or resent and any pending acknowledgement.
+     * (Must hold the send lock)
+     * 
+     * @throws IOException If fails to send a frame, or the peer stopped acknowledging them.
+     */
+    private void sendReliableFrames() throws IOException {
+        this.sendUdpFrame(Integer.MAX_VALUE);
+        
+        while(this.reliableChannel.writeNext(this.udpConnection)) {
+            this.sendUdpFrame(Integer.MAX_VALUE);
+        }
+    }
+    
+    /**
+     * Send the first given number of bytes of the current UDP frame, split into fragments if
+     * they do not fit in a single datagram. (Must hold the send lock)
+     * 
+     * @param length The number of bytes of the current frame to send, Integer.MAX_VALUE for all
+     *               of it.
+     * @throws IOException If fails to send a datagram, or the frame is too large to be sent.
+     */
+    private void sendUdpFrame(int length) throws IOException {
+        if(!this.fragmentChannel.split(this.udpConnection, length)) {
+            this.sendDatagram(this.udpConnection.getBufferedFrame(length));
+            return;
+        }
+        
+        while(this.fragmentChannel.writeNext(this.udpConnection)) {
+            this.sendDatagram(this.udpConnection.getBufferedFrame());
+        }
+    }
+    
+    /**
+     * Send a UDP frame, completing the futures of any batched packets it holds.
+     * 
+     * @param frame Frame in read mode. (May be null)
+     * @throws IOException If fails to send the datagram.
+     */
+    private void sendDatagram(ByteBuffer frame) throws IOException {
+        if(frame == null) {
+            return;
+        }
+        
+        // Start the datagram with the session ID.
+        ByteBuffer datagram = BufferPool.DIRECT.acquire(Connection.SESSION_ID_LENGTH
+                + frame.remaining());
+        datagram.putInt(this.getSessionId());
+        datagram.put(frame);
+        datagram.flip();
+        
+        // Attempt to send the datagram, failing the batched packets it holds if it could not be.
+        try {
+            this.getUdpChannel().send(datagram, this.udpConnection.getSocketAddress());
+        } catch (IOException e) {
+            for(CompletableFuture<Void> batched : this.udpBatchFutures) {
+                batched.completeExceptionally(e);
+            }
+            
+            this.udpBatchFutures.clear();
+            throw e;
+        } finally {
+            BufferPool.DIRECT.release(datagram);
+        }
+        
+        for(CompletableFuture<Void> batched : this.udpBatchFutures) {
+            batched.complete(null);
+        }
+        
+        this.udpBatchFutures.clear();
+    }
+    
+    /**
+     * Called on the shared timer thread of the {@link net.neto_framework.ReliableChannel
+     * ReliableChannel} to resend reliable frames and send acknowledgements. The timer must never
+     * block, so the tick is skipped while another thread holds the send lock and failures are
+     * handled on a thread of their own.
+     */
+    private void onReliableTick() {
+        if(!this.sendLock.tryLock()) {
+            return;
+        }
+        
+        final IOException failure;
+        try {
+            this.sendReliableFrames();
+            return;
+        } catch (IOException e) {
+            failure = e;
+            
+            // Stop ticking and fail the frames that were never acknowledged.
+            this.reliableChannel.close();
+        } finally {
+            this.sendLock.unlock();
+        }
+        
+        Thread thread = Threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                PacketSender.this.onReliableFailure(failure);
+            }
+        });
+        thread.setName("Neto-Framework Reliable UDP Failure");
+        thread.start();
+    }
+    
+    /**
+     * Fail every reliable frame that has not been acknowledged and release the buffers held for
+     * the UDP connection.
+     */
+    public void close() {
+        if(this.reliableChannel != null) {
+            this.reliableChannel.close();
+            this.fragmentChannel.close();
+        }
+    }
+    
+    /**
+     * Write a sealed TCP frame. By default frames are added to the
+     * {@link net.neto_framework.OutboundQueue OutboundQueue}. (Called holding the send lock)
+     * 
+     * @param frame Sealed frame in read mode. (Fully consumed, may be reused once this returns)
+     * @return CompletableFuture completed once the frame has been written.
+     * @throws IOException If fails to write the frame.
+     */
+    protected CompletableFuture<Void> writeFrame(ByteBuffer frame) throws IOException {
+        return this.outboundQueue.add(frame);
+    }
+    
+    /**
+     * @return The UDP channel datagrams are sent with.
+     */
+    protected abstract DatagramChannel getUdpChannel();
+    
+    /**
+     * @return The session ID every datagram starts with.
+     */
+    protected abstract int getSessionId();
+    
+    /**
+     * Called once when reliable frames could not be resent or the peer stopped acknowledging
+     * them, on a thread of its own so that it may block.
+     * 
+     * @param e The IOException that occurred.
+     */
+    protected abstract void onReliableFailure(IOException e);
+    
+    /**
+     * @return Lock held while a packet is written.
+     */
+    public ReentrantLock getSendLock() {
+        return this.sendLock;
+    }
+    
+    /**
+     * @return {@link net.neto_framework.ReliableChannel ReliableChannel} of the UDP connection.
+     *         (Null until the UDP connection has been added)
+     */
+    public ReliableChannel getReliableChannel() {
+        return this.reliableChannel;
+    }
+    
+    /**
+     * @return {@link net.neto_framework.FragmentChannel FragmentChannel} of the UDP connection.
+     *         (Null until the UDP connection has been added)
+     */
+    public FragmentChannel getFragmentChannel() {
+        return this.fragmentChannel;
+    }
+}
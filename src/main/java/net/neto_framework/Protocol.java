@@ -24,5 +24,25 @@ package net.neto_framework;
  * @author BleedObsidian (Jesse Prescott)
  */
 public enum Protocol {
-    UDP, TCP
+    
+    /**
+     * Datagrams that may be lost, duplicated or arrive out of order.
+     */
+    UDP,
+    
+    /**
+     * A reliable, ordered stream.
+     */
+    TCP,
+    
+    /**
+     * Datagrams that are resent until acknowledged and delivered once, in the order they were
+     * sent. Unlike TCP, a lost datagram only holds back later reliable datagrams.
+     */
+    RELIABLE_UDP,
+    
+    /**
+     * Datagrams that are resent until acknowledged and delivered once, as soon as they arrive.
+     */
+    RELIABLE_UNORDERED_UDP
 }
@@ -0,0 +1,43 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.nio.ByteBuffer;
+import net.neto_framework.client.Client;
+
+/**
+ * An interface used along with registering a pass-through packet ID that will be called with the
+ * undecoded data of every packet with that ID received on the client.
+ *
+ * @author Jesse Prescott (BleedObsidian)
+ */
+public interface RawClientPacketHandler {
+    
+    /**
+     * Called when a packet with the registered ID is received. Always called on the thread that
+     * read the packet.
+     * 
+     * @param client The running instance of Client.
+     * @param id Packet ID.
+     * @param protocol The {@link net.neto_framework.Protocol Protocol} the packet was sent over.
+     * @param data The packet data in read mode. (Must not be modified, only valid until this
+     *             returns)
+     */
+    public void onReceiveFrame(Client client, int id, Protocol protocol, ByteBuffer data);
+}
@@ -0,0 +1,78 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A packet made of already encoded data, used to forward the data given to a
+ * {@link net.neto_framework.RawServerPacketHandler RawServerPacketHandler} to other connections.
+ * The data is copied straight into the frame being written, so one RawPacket can be sent to any
+ * number of connections.
+ * 
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class RawPacket implements Packet {
+    
+    /**
+     * Packet ID.
+     */
+    private final int id;
+    
+    /**
+     * The encoded packet data in read mode.
+     */
+    private ByteBuffer data;
+    
+    /**
+     * @param id Packet ID, registered as a pass-through packet or a normal packet.
+     * @param data The encoded packet data in read mode. (Not consumed, must not be modified
+     *             until the packet has been sent)
+     */
+    public RawPacket(int id, ByteBuffer data) {
+        this.id = id;
+        this.data = data;
+    }
+
+    @Override
+    public void send(Connection connection) throws IOException {
+        connection.sendSection(this.data.remaining()).put(this.data.duplicate());
+    }
+
+    @Override
+    public void receive(Connection connection) throws IOException {
+        ByteBuffer remaining = connection.receiveRemaining();
+        this.data = ByteBuffer.allocate(remaining.remaining());
+        this.data.put(remaining);
+        this.data.flip();
+    }
+    
+    /**
+     * @return The encoded packet data in read mode.
+     */
+    public ByteBuffer getData() {
+        return this.data;
+    }
+
+    @Override
+    public int getId() {
+        return this.id;
+    }
+}
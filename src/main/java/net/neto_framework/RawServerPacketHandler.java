@@ -0,0 +1,48 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.nio.ByteBuffer;
+import net.neto_framework.server.ClientConnection;
+import net.neto_framework.server.Server;
+
+/**
+ * An interface used along with registering a pass-through packet ID that will be called with the
+ * undecoded data of every packet with that ID received on the server, so that it can be forwarded
+ * to other clients as a {@link net.neto_framework.RawPacket RawPacket} without being decoded and
+ * encoded again.
+ *
+ * @author Jesse Prescott (BleedObsidian)
+ */
+public interface RawServerPacketHandler {
+    
+    /**
+     * Called when a packet with the registered ID is received. Always called on the thread that
+     * read the packet.
+     * 
+     * @param server The running instance of Server.
+     * @param client The ClientConnection that sent the packet.
+     * @param id Packet ID.
+     * @param protocol The {@link net.neto_framework.Protocol Protocol} the packet was sent over.
+     * @param data The packet data in read mode. (Must not be modified, only valid until this
+     *             returns)
+     */
+    public void onReceiveFrame(Server server, ClientConnection client, int id, Protocol protocol,
+            ByteBuffer data);
+}
@@ -0,0 +1,140 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * A long-lived AES-GCM cipher context for one direction of a
+ * {@link net.neto_framework.Connection Connection}. Every record is sealed with its own nonce made
+ * from the shared IV, the direction and protocol of the record and its sequence number, so a nonce
+ * is never reused for the same key.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class RecordCipher {
+
+    /**
+     * The cipher transformation used for records.
+     */
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * The key algorithm used for records.
+     */
+    public static final String KEY_ALGORITHM = "AES";
+
+    /**
+     * The size of the nonce (and therefore IV) in bytes.
+     */
+    public static final int NONCE_LENGTH = 12;
+
+    /**
+     * The size of the authentication tag appended to every record in bytes.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The cipher, initialised once per record.
+     */
+    private final Cipher cipher;
+
+    /**
+     * The mode of the cipher. (Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE)
+     */
+    private final int mode;
+
+    /**
+     * The secret key.
+     */
+    private final SecretKey secretKey;
+
+    /**
+     * The nonce of the next record, sequence number bytes are filled in per record.
+     */
+    private final byte[] nonce;
+
+    /**
+     * The IV the nonce is derived from.
+     */
+    private final byte[] iv;
+
+    /**
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+     * @param secretKey AES SecretKey.
+     * @param iv 12 byte IV shared by both parties.
+     * @param fromServer If the records handled by this cipher are sent by the server.
+     * @param protocol The {@link net.neto_framework.Protocol Protocol} the records are sent over.
+     */
+    public RecordCipher(int mode, SecretKey secretKey, byte[] iv, boolean fromServer,
+            Protocol protocol) {
+        if(iv.length != RecordCipher.NONCE_LENGTH) {
+            throw new IllegalArgumentException("IV must be " + RecordCipher.NONCE_LENGTH
+                    + " bytes.");
+        }
+
+        try {
+            this.cipher = Cipher.getInstance(RecordCipher.TRANSFORMATION);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException("Failed to enable encryption on connection.", e);
+        }
+
+        this.mode = mode;
+        this.secretKey = secretKey;
+        this.iv = iv.clone();
+        this.nonce = new byte[RecordCipher.NONCE_LENGTH];
+
+        // Separate the nonce space of each direction and protocol sharing this key.
+        this.iv[0] ^= (byte) ((fromServer ? 0x01 : 0x00)
+                | (protocol == Protocol.UDP ? 0x02 : 0x00));
+    }
+
+    /**
+     * Seal or open a record.
+     *
+     * @param sequence The sequence number of the record. (Must never repeat when sealing)
+     * @param input Record in read mode. (Fully consumed)
+     * @param output Buffer the sealed or opened record is written to, must have room for the
+     *               record and its {@link #TAG_LENGTH tag}.
+     * @return Number of bytes written to the output buffer.
+     * @throws IOException If fails to seal or authenticate the record.
+     */
+    public int doFinal(long sequence, ByteBuffer input, ByteBuffer output) throws IOException {
+        System.arraycopy(this.iv, 0, this.nonce, 0, RecordCipher.NONCE_LENGTH);
+        for(int i = 0; i < 8; i++) {
+            this.nonce[RecordCipher.NONCE_LENGTH - 1 - i] ^= (byte) (sequence >>> (8 * i));
+        }
+
+        try {
+            this.cipher.init(this.mode, this.secretKey,
+                    new GCMParameterSpec(RecordCipher.TAG_LENGTH * 8, this.nonce));
+            return this.cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(this.mode == Cipher.ENCRYPT_MODE ? "Failed to encrypt record."
+                    : "Failed to decrypt record.", e);
+        }
+    }
+}
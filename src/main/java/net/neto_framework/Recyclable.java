@@ -0,0 +1,49 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+/**
+ * A packet that can be reused once it has been handled or sent, instead of a new packet being
+ * allocated each time. Received packets go back to their pool when their handler returns and
+ * sent packets go back once they have first been sent, unless they have been {@link #retain()
+ * retained}.
+ * 
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public interface Recyclable {
+    
+    /**
+     * Clear the state of this packet before it is reused.
+     */
+    public void reset();
+    
+    /**
+     * Keep this packet after its handler has returned or it has been sent, for example to send it
+     * to several connections. Every call must be matched by a call to {@link #recycle()
+     * recycle()} once the packet is no longer used.
+     */
+    public void retain();
+    
+    /**
+     * Release a reference taken with {@link #retain() retain()}, resetting this packet and
+     * returning it to its pool once the last reference is released. The packet must not be used
+     * afterwards.
+     */
+    public void recycle();
+}
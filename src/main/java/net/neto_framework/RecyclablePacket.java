@@ -0,0 +1,145 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A base class for {@link net.neto_framework.Recyclable Recyclable} packets. Subclasses
+ * implement {@link #reset()} to clear their fields, pooled instances are obtained with
+ * {@link net.neto_framework.PacketManager#obtainPacket(java.lang.Class) obtainPacket()}.
+ * 
+ * <p>Only pooled instances are recycled automatically, packets created with <code>new</code> are
+ * never reset by the framework. A pooled packet goes back to its pool once it has been handled
+ * or first sent, so a packet sent to several connections must be {@link #retain() retained}
+ * before the first send and {@link #recycle() recycled} after the last.</p>
+ * 
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public abstract class RecyclablePacket implements Packet, Recyclable {
+    
+    /**
+     * The pool this packet returns to. (Null if not created by a pool)
+     */
+    private volatile PacketPool pool;
+    
+    /**
+     * The number of references held to this pooled packet, 0 while it is held by its pool.
+     */
+    private final AtomicInteger references = new AtomicInteger();
+    
+    /**
+     * If the reference taken when this packet left its pool has been released, which happens
+     * once it has been handled or first sent.
+     */
+    private final AtomicBoolean isReleased = new AtomicBoolean(true);
+    
+    @Override
+    public void retain() {
+        if(this.pool == null) {
+            return;
+        }
+        
+        int current;
+        do {
+            current = this.references.get();
+            
+            if(current == 0) {
+                throw new IllegalStateException("Packet has already been recycled.");
+            }
+        } while(!this.references.compareAndSet(current, current + 1));
+    }
+    
+    @Override
+    public void recycle() {
+        if(this.pool == null) {
+            this.reset();
+            return;
+        }
+        
+        int current;
+        do {
+            current = this.references.get();
+        
+            if(current == 0) {
+                throw new IllegalStateException("Packet has already been recycled.");
+            }
+        } while(!this.references.compareAndSet(current, current - 1));
+        
+        // Return the packet to its pool once the last reference is released.
+        if(current == 1) {
+            this.reset();
+            this.pool.release(this);
+        }
+    }
+    
+    /**
+     * Release the reference taken when this packet left its pool, if it has not been already.
+     * Called once a packet has been handled or sent.
+     */
+    void release() {
+        if(this.pool != null && this.isReleased.compareAndSet(false, true)) {
+            this.recycle();
+        }
+    }
+    
+    /**
+     * @return If this packet is pooled and has been returned to its pool.
+     */
+    boolean isRecycled() {
+        return this.pool != null && this.references.get() == 0;
+    }
+    
+    /**
+     * Called when this packet is taken from the given pool.
+     * 
+     * @param pool The pool this packet returns to.
+     */
+    void onAcquired(PacketPool pool) {
+        this.pool = pool;
+        this.references.set(1);
+        this.isReleased.set(false);
+    }
+    
+    /**
+     * Release the reference taken when the given packet left its pool, if it is a pooled
+     * recyclable packet.
+     * 
+     * @param packet Packet.
+     */
+    public static void release(Packet packet) {
+        if(packet instanceof RecyclablePacket) {
+            ((RecyclablePacket) packet).release();
+        }
+    }
+    
+    /**
+     * Throw an exception if the given packet has already gone back to its pool, so that it is
+     * not sent cleared.
+     * 
+     * @param packet Packet about to be sent.
+     */
+    public static void checkNotRecycled(Packet packet) {
+        if(packet instanceof RecyclablePacket && ((RecyclablePacket) packet).isRecycled()) {
+            throw new IllegalStateException("Packet was recycled after it was last sent, retain()"
+                    + " it before sending it more than once.");
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.neto_framework.buffer.BufferPool;
+
+/**
+ * Reliable delivery of UDP frames for one side of a connection. Every reliable frame carries a
+ * sequence number and is resent until the peer acknowledges it, whenever a retransmission timeout
+ * derived from the measured round trip time expires. Acknowledgements are made of the first
+ * sequence number not yet received and a bitfield of the frames received after it, piggybacked
+ * on reliable frames sent the other way or sent on their own on the next tick.
+ * 
+ * <p>Frames sent with {@link net.neto_framework.Protocol#RELIABLE_UDP RELIABLE_UDP} also carry
+ * an order number, frames received ahead of a missing one are held back until it arrives.
+ * Reliable frames start with the reserved packet ID {@link #HEADER_ID}.</p>
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class ReliableChannel {
+    
+    /**
+     * The packet ID reliable frames start with, followed by the reliability header.
+     */
+    public static final int HEADER_ID = -6;
+    
+    /**
+     * The maximum size of a reliability header in bytes.
+     */
+    public static final int MAX_HEADER_LENGTH = 32;
+    
+    /**
+     * The number of sequence numbers, starting with the oldest unacknowledged frame, that may be
+     * in flight at once. (Bounded by the size of the acknowledgement bitfield)
+     */
+    public static final int WINDOW_SIZE = 64;
+    
+    /**
+     * Time in milliseconds between checks for frames to resend and acknowledgements to send.
+     */
+    public static int TICK_INTERVAL = 10;
+    
+    /**
+     * The retransmission timeout in milliseconds used until the round trip time has been
+     * measured.
+     */
+    public static long INITIAL_RETRANSMISSION_TIMEOUT = 200;
+    
+    /**
+     * The lowest retransmission timeout in milliseconds.
+     */
+    public static long MIN_RETRANSMISSION_TIMEOUT = 20;
+    
+    /**
+     * The highest retransmission timeout in milliseconds, including backoff.
+     */
+    public static long MAX_RETRANSMISSION_TIMEOUT = 2000;
+    
+    /**
+     * The number of times a frame is resent before the connection is considered lost.
+     */
+    public static int MAX_RETRANSMISSIONS = 20;
+    
+    /**
+     * The maximum number of frames that may be waiting to be acknowledged, frames added beyond
+     * this fail instead of being queued.
+     */
+    public static int MAX_QUEUED_FRAMES = 4096;
+    
+    /**
+     * Mode of a frame that only holds an acknowledgement.
+     */
+    private static final int MODE_ACK = 0;
+    
+    /**
+     * Mode of a frame delivered in order.
+     */
+    private static final int MODE_ORDERED = 1;
+    
+    /**
+     * Mode of a frame delivered as soon as it arrives.
+     */
+    private static final int MODE_UNORDERED = 2;
+    
+    /**
+     * Shared scheduler that ticks every channel with work to do. Ticks must never block, as every
+     * connection in the JVM shares it.
+     */
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "Neto-Framework Reliable UDP Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    
+    /**
+     * Called on every tick to send due frames, usually through
+     * {@link #writeNext(net.neto_framework.Connection) writeNext}.
+     */
+    private final Runnable tick;
+    
+    /**
+     * Ticks this channel and stops once there is no work left.
+     */
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            ReliableChannel.this.onTick();
+        }
+    };
+    
+    /**
+     * The scheduled ticks of this channel. (Null while there is no work to do)
+     */
+    private ScheduledFuture<?> tickFuture;
+    
+    /**
+     * If this channel has been closed.
+     */
+    private boolean isClosed;
+    
+    /**
+     * Frames waiting to be acknowledged, by sequence number.
+     */
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    
+    /**
+     * The sequence number of the next frame added.
+     */
+    private int nextSequence;
+    
+    /**
+     * The order number of the next ordered frame added.
+     */
+    private int nextOrder;
+    
+    /**
+     * Smoothed round trip time in milliseconds. (Negative until measured)
+     */
+    private long smoothedRtt = -1;
+    
+    /**
+     * Round trip time variation in milliseconds.
+     */
+    private long rttVariation;
+    
+    /**
+     * The current retransmission timeout in milliseconds.
+     */
+    private long retransmissionTimeout = ReliableChannel.INITIAL_RETRANSMISSION_TIMEOUT;
+    
+    /**
+     * The first sequence number not yet received.
+     */
+    private int receiveBase;
+    
+    /**
+     * Frames received after the first missing one, bit n is set if sequence number
+     * receiveBase + n has been received.
+     */
+    private long receivedBits;
+    
+    /**
+     * If a frame has been received since the last acknowledgement was sent.
+     */
+    private boolean isAckPending;
+    
+    /**
+     * The order number of the next ordered frame to deliver.
+     */
+    private int nextReceiveOrder;
+    
+    /**
+     * Ordered frames received ahead of a missing one, by order number. (Bounded by the window, as
+     * only orders less than {@link #WINDOW_SIZE} ahead of the next one are held)
+     */
+    private final HashMap<Integer, ByteBuffer> heldFrames = new HashMap<>();
+    
+    /**
+     * @param tick Called from a shared timer thread every {@link #TICK_INTERVAL} milliseconds
+     *             while there are frames to resend or acknowledge, should send them using
+     *             {@link #writeNext(net.neto_framework.Connection) writeNext} without blocking.
+     */
+    public ReliableChannel(Runnable tick) {
+        this.tick = tick;
+    }
+    
+    /**
+     * Take the packets sent to the given connection since its last frame and queue them as a
+     * reliable frame, to be written by {@link #writeNext(net.neto_framework.Connection)
+     * writeNext}.
+     * 
+     * @param protocol {@link net.neto_framework.Protocol#RELIABLE_UDP RELIABLE_UDP} or
+     *                 {@link net.neto_framework.Protocol#RELIABLE_UNORDERED_UDP
+     *                 RELIABLE_UNORDERED_UDP}.
+     * @param connection UDP {@link net.neto_framework.Connection Connection}.
+     * @return CompletableFuture completed once the frame has been acknowledged, or completed
+     *         exceptionally with an IOException if it never is.
+     * @throws IOException If the packets are too large to be split into fragments by a
+     *                     {@link net.neto_framework.FragmentChannel FragmentChannel}.
+     */
+    public synchronized CompletableFuture<Void> add(Protocol protocol, Connection connection)
+            throws IOException {
+        ByteBuffer payload = connection.takeBufferedFrame();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        if(payload == null) {
+            future.complete(null);
+            return future;
+        }
+        
+        if(payload.remaining() > FragmentChannel.MAX_FRAME_LENGTH
+                - ReliableChannel.MAX_HEADER_LENGTH) {
+            BufferPool.HEAP.release(payload);
+            throw new IOException("Packet too large to be sent reliably.");
+        }
+        
+        if(this.isClosed || this.frames.size() >= ReliableChannel.MAX_QUEUED_FRAMES) {
+            BufferPool.HEAP.release(payload);
+            future.completeExceptionally(new IOException(this.isClosed ? "Channel closed."
+                    : "Too many reliable frames waiting to be acknowledged."));
+            return future;
+        }
+        
+        Frame frame = new Frame(this.nextSequence++, payload, future);
+        if(protocol == Protocol.RELIABLE_UDP) {
+            frame.mode = ReliableChannel.MODE_ORDERED;
+            frame.order = this.nextOrder++;
+        } else {
+            frame.mode = ReliableChannel.MODE_UNORDERED;
+        }
+        
+        this.frames.add(frame);
+        this.schedule();
+        return future;
+    }
+    
+    /**
+     * Write the next frame that is due to be sent or resent to the given connection, or an
+     * acknowledgement if one is pending and there is no such frame. The frame written must be
+     * collected and sent before this is called again.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection} with no frame in
+     *                   progress.
+     * @return False if there was nothing to write.
+     * @throws IOException If fails to write the frame, or a frame has been resent
+     *                     {@link #MAX_RETRANSMISSIONS} times without being acknowledged.
+     */
+    public synchronized boolean writeNext(Connection connection) throws IOException {
+        if(this.isClosed) {
+            return false;
+        }
+        
+        long now = ReliableChannel.now();
+        
+        // Only send frames within the window of the oldest unacknowledged frame.
+        int base = this.frames.isEmpty() ? this.nextSequence : this.frames.peek().sequence;
+        
+        for(Frame frame : this.frames) {
+            if(frame.sequence - base >= ReliableChannel.WINDOW_SIZE) {
+                break;
+            }
+            
+            if(frame.transmissions > 0 && now < frame.deadline) {
+                continue;
+            }
+            
+            if(frame.transmissions > ReliableChannel.MAX_RETRANSMISSIONS) {
+                throw new IOException("Reliable frame was not acknowledged after "
+                        + ReliableChannel.MAX_RETRANSMISSIONS + " retransmissions.");
+            }
+            
+            this.writeHeader(connection, frame.mode);
+            connection.sendVarInt(frame.sequence);
+            if(frame.mode == ReliableChannel.MODE_ORDERED) {
+                connection.sendVarInt(frame.order);
+            }
+            
+            ByteBuffer payload = frame.payload.duplicate();
+            connection.sendSection(payload.remaining()).put(payload);
+            
+            // Back off exponentially each time the frame is resent.
+            long timeout = this.retransmissionTimeout << Math.min(frame.transmissions, 16);
+            frame.transmissions++;
+            frame.sentTime = now;
+            frame.deadline = now + Math.min(timeout, ReliableChannel.MAX_RETRANSMISSION_TIMEOUT);
+            return true;
+        }
+        
+        if(this.isAckPending) {
+            this.writeHeader(connection, ReliableChannel.MODE_ACK);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Write a reliability header carrying the current acknowledgement.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection}.
+     * @param mode Frame mode.
+     * @throws IOException If fails to write the header.
+     */
+    private void writeHeader(Connection connection, int mode) throws IOException {
+        connection.sendPacketId(ReliableChannel.HEADER_ID);
+        connection.sendVarInt(mode);
+        connection.sendVarInt(this.receiveBase);
+        connection.sendVarLong(this.receivedBits >>> 1);
+        this.isAckPending = false;
+    }
+    
+    /**
+     * Read the reliability header at the start of the frame currently being read, if it has one.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection}.
+     * @return The {@link net.neto_framework.Protocol Protocol} the packets left in the frame were
+     *         sent with, or null if they must not be delivered now because the frame only held
+     *         an acknowledgement, was a duplicate or was held back.
+     * @throws IOException If the header is invalid.
+     */
+    public synchronized Protocol receiveFrame(Connection connection) throws IOException {
+        if(!connection.hasRemaining() || connection.peekPacketId() != ReliableChannel.HEADER_ID) {
+            return Protocol.UDP;
+        }
+        
+        connection.receivePacketId();
+        int mode = connection.receiveVarInt();
+        this.onAcknowledged(connection.receiveVarInt(), connection.receiveVarLong());
+        
+        if(mode == ReliableChannel.MODE_ACK) {
+            return null;
+        }
+        
+        if(mode != ReliableChannel.MODE_ORDERED && mode != ReliableChannel.MODE_UNORDERED) {
+            throw new IOException("Unknown reliable frame mode " + mode + ".");
+        }
+        
+        int sequence = connection.receiveVarInt();
+        int order = mode == ReliableChannel.MODE_ORDERED ? connection.receiveVarInt() : 0;
+        
+        if(this.isClosed) {
+            return null;
+        }
+        
+        // Acknowledge duplicates too, the last acknowledgement may have been lost.
+        this.isAckPending = true;
+        this.schedule();
+        
+        int offset = sequence - this.receiveBase;
+        if(offset < 0 || offset >= ReliableChannel.WINDOW_SIZE
+                || (this.receivedBits & (1L << offset)) != 0) {
+            return null;
+        }
+        
+        // A peer can only be a window of frames ahead, so any other order is forged and would
+        // otherwise be held forever.
+        if(mode == ReliableChannel.MODE_ORDERED) {
+            int ahead = order - this.nextReceiveOrder;
+            
+            if(ahead < 0 || ahead >= ReliableChannel.WINDOW_SIZE
+                    || this.heldFrames.containsKey(order)) {
+                throw new IOException("Reliable frame order " + order + " is outside the receive"
+                        + " window.");
+            }
+        }
+        
+        this.receivedBits |= 1L << offset;
+        while((this.receivedBits & 1L) != 0) {
+            this.receivedBits >>>= 1;
+            this.receiveBase++;
+        }
+        
+        if(mode == ReliableChannel.MODE_UNORDERED) {
+            return Protocol.RELIABLE_UNORDERED_UDP;
+        }
+        
+        // Hold back frames that arrived ahead of a missing one.
+        if(order != this.nextReceiveOrder) {
+            ByteBuffer remaining = connection.receiveRemaining();
+            ByteBuffer held = BufferPool.HEAP.acquire(remaining.remaining());
+            held.put(remaining);
+            held.flip();
+            this.heldFrames.put(order, held);
+            return null;
+        }
+        
+        this.nextReceiveOrder++;
+        return Protocol.RELIABLE_UDP;
+    }
+    
+    /**
+     * Make the next held back ordered frame the frame currently being read, if it can now be
+     * delivered. Should be called after the packets of every frame have been read until it
+     * returns false.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection}.
+     * @return True if the connection now holds a
+     *         {@link net.neto_framework.Protocol#RELIABLE_UDP RELIABLE_UDP} frame to deliver.
+     */
+    public synchronized boolean receiveHeldFrame(Connection connection) {
+        ByteBuffer held = this.heldFrames.remove(this.nextReceiveOrder);
+        
+        if(held == null) {
+            return false;
+        }
+        
+        this.nextReceiveOrder++;
+        connection.receivePlainFrame(held);
+        BufferPool.HEAP.release(held);
+        return true;
+    }
+    
+    /**
+     * Called when an acknowledgement is received.
+     * 
+     * @param ack The first sequence number the peer has not received.
+     * @param ackBits Bit n is set if the peer has received sequence number ack + 1 + n.
+     */
+    private void onAcknowledged(int ack, long ackBits) {
+        long now = ReliableChannel.now();
+        
+        Iterator<Frame> iterator = this.frames.iterator();
+        while(iterator.hasNext()) {
+            Frame frame = iterator.next();
+            int offset = frame.sequence - ack;
+            
+            if(offset > ReliableChannel.WINDOW_SIZE) {
+                break;
+            }
+            
+            if(frame.transmissions == 0 || (offset >= 0
+                    && (offset == 0 || (ackBits & (1L << (offset - 1))) == 0))) {
+                continue;
+            }
+            
+            // Only measure the round trip time of frames that were sent once.
+            if(frame.transmissions == 1) {
+                this.onRttSample(now - frame.sentTime);
+            }
+            
+            iterator.remove();
+            BufferPool.HEAP.release(frame.payload);
+            frame.future.complete(null);
+        }
+    }
+    
+    /**
+     * Update the retransmission timeout with a new round trip time sample.
+     * 
+     * @param rtt Round trip time in milliseconds.
+     */
+    private void onRttSample(long rtt) {
+        if(this.smoothedRtt < 0) {
+            this.smoothedRtt = rtt;
+            this.rttVariation = rtt / 2;
+        } else {
+            this.rttVariation = (3 * this.rttVariation + Math.abs(this.smoothedRtt - rtt)) / 4;
+            this.smoothedRtt = (7 * this.smoothedRtt + rtt) / 8;
+        }
+        
+        long timeout = this.smoothedRtt + Math.max(ReliableChannel.TICK_INTERVAL,
+                4 * this.rttVariation);
+        this.retransmissionTimeout = Math.max(ReliableChannel.MIN_RETRANSMISSION_TIMEOUT,
+                Math.min(timeout, ReliableChannel.MAX_RETRANSMISSION_TIMEOUT));
+    }
+    
+    /**
+     * Start ticking this channel if it is not already.
+     */
+    private void schedule() {
+        if(this.tickFuture != null || this.isClosed) {
+            return;
+        }
+        
+        this.tickFuture = ReliableChannel.SCHEDULER.scheduleWithFixedDelay(this.tickTask,
+                ReliableChannel.TICK_INTERVAL, ReliableChannel.TICK_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+                
+    /**
+     * Called on the shared timer thread every tick.
+     */
+    private void onTick() {
+        // Never let a failure escape, it would stop the ticks of this channel.
+        try {
+            this.tick.run();
+        } catch (Throwable e) {
+            Logger.getLogger(ReliableChannel.class.getName()).log(Level.SEVERE,
+                    "Reliable UDP tick failed.", e);
+        }
+        
+        // Stop ticking once there is nothing left to resend or acknowledge.
+        synchronized(this) {
+            if(this.tickFuture != null && this.frames.isEmpty() && !this.isAckPending) {
+                this.tickFuture.cancel(false);
+                this.tickFuture = null;
+            }
+        }
+    }
+    
+    /**
+     * Stop ticking and fail every frame that has not been acknowledged.
+     */
+    public synchronized void close() {
+        if(this.isClosed) {
+            return;
+        }
+        
+        this.isClosed = true;
+        
+        if(this.tickFuture != null) {
+            this.tickFuture.cancel(false);
+            this.tickFuture = null;
+        }
+        
+        IOException exception = new IOException("Channel closed.");
+        for(Frame frame : this.frames) {
+            BufferPool.HEAP.release(frame.payload);
+            frame.future.completeExceptionally(exception);
+        }
+        
+        this.frames.clear();
+        
+        for(ByteBuffer held : this.heldFrames.values()) {
+            BufferPool.HEAP.release(held);
+        }
+        
+        this.heldFrames.clear();
+    }
+    
+    /**
+     * @return Smoothed round trip time in milliseconds, or -1 if it has not been measured yet.
+     */
+    public synchronized long getRtt() {
+        return this.smoothedRtt;
+    }
+    
+    /**
+     * @return Monotonic time in milliseconds.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+    
+    /**
+     * A reliable frame waiting to be acknowledged.
+     */
+    private static final class Frame {
+        
+        /**
+         * Sequence number.
+         */
+        private final int sequence;
+        
+        /**
+         * The packets of the frame. (Pooled heap buffer, read mode)
+         */
+        private final ByteBuffer payload;
+        
+        /**
+         * Completed once the frame has been acknowledged.
+         */
+        private final CompletableFuture<Void> future;
+        
+        /**
+         * Frame mode.
+         */
+        private int mode;
+        
+        /**
+         * Order number. (Ordered frames only)
+         */
+        private int order;
+        
+        /**
+         * The number of times the frame has been sent.
+         */
+        private int transmissions;
+        
+        /**
+         * The time the frame was last sent.
+         */
+        private long sentTime;
+        
+        /**
+         * The time the frame is resent if it has not been acknowledged.
+         */
+        private long deadline;
+        
+        /**
+         * @param sequence Sequence number.
+         * @param payload The packets of the frame.
+         * @param future Completed once the frame has been acknowledged.
+         */
+        private Frame(int sequence, ByteBuffer payload, CompletableFuture<Void> future) {
+            this.sequence = sequence;
+            this.payload = payload;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+/**
+ * A sliding window of the sequence numbers of the records most recently received over UDP, used
+ * to drop replayed or duplicated datagrams in constant time without relying on clocks.
+ * 
+ * <p>The window covers the highest sequence number received and the {@link #SIZE} - 1 below it,
+ * a bit per sequence number recording if it has been received. Records older than the window are
+ * dropped.</p>
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class ReplayWindow {
+    
+    /**
+     * The number of sequence numbers covered by the window.
+     */
+    public static final int SIZE = 64;
+    
+    /**
+     * The highest sequence number received, -1 if none have been.
+     */
+    private long top = -1;
+    
+    /**
+     * Bit n is set if sequence number top - n has been received.
+     */
+    private long bits;
+    
+    /**
+     * Check if a record with the given sequence number may be accepted. The window is only
+     * {@link #update(long) updated} once the record has been authenticated, so forged records
+     * cannot move it.
+     * 
+     * @param sequence Sequence number of the record.
+     * @return False if the record is a replay or is too old to tell.
+     */
+    public boolean check(long sequence) {
+        if(sequence < 0) {
+            return false;
+        }
+        
+        if(sequence > this.top) {
+            return true;
+        }
+        
+        long age = this.top - sequence;
+        return age < ReplayWindow.SIZE && (this.bits & (1L << age)) == 0;
+    }
+    
+    /**
+     * Mark the given sequence number as received, sliding the window forward if it is the
+     * highest received so far.
+     * 
+     * @param sequence Sequence number of an authenticated record that passed
+     *                 {@link #check(long) check}.
+     */
+    public void update(long sequence) {
+        if(sequence > this.top) {
+            long shift = sequence - this.top;
+            this.bits = shift < ReplayWindow.SIZE ? (this.bits << shift) | 1L : 1L;
+            this.top = sequence;
+        } else {
+            this.bits |= 1L << (this.top - sequence);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a packet field to be encoded by a codec generated at compile time by the
+ * {@link net.neto_framework.annotations.PacketFieldProcessor PacketFieldProcessor}. For a packet
+ * class <code>MyPacket</code> the codec <code>MyPacketCodec</code> is generated in the same
+ * package, the packet then implements send and receive by calling
+ * <code>MyPacketCodec.send(this, connection)</code> and
+ * <code>MyPacketCodec.receive(this, connection)</code>.
+ *
+ * <p>Fields must not be private, static or final. Supported types are the primitive types,
+ * String and byte[].</p>
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface PacketField {
+    
+    /**
+     * @return The position of this field within the packet, fields are encoded in ascending
+     *         order.
+     */
+    int order();
+}
@@ -0,0 +1,389 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.annotations;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * An annotation processor that generates a codec for every class with
+ * {@link net.neto_framework.annotations.PacketField PacketField} fields. Consecutive fixed size
+ * fields are grouped into a single section of the frame that is reserved or checked once, then
+ * written or read without any further bounds checks or branches.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+@SupportedAnnotationTypes("net.neto_framework.annotations.PacketField")
+public class PacketFieldProcessor extends AbstractProcessor {
+    
+    /**
+     * The suffix of generated codec class names.
+     */
+    public static final String CODEC_SUFFIX = "Codec";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        
+        // Group annotated fields by the packet class they belong to.
+        Map<TypeElement, List<VariableElement>> packets = new LinkedHashMap<>();
+        for(Element element : roundEnv.getElementsAnnotatedWith(PacketField.class)) {
+            if(element.getKind() != ElementKind.FIELD) {
+                continue;
+            }
+            
+            TypeElement packet = (TypeElement) element.getEnclosingElement();
+            List<VariableElement> fields = packets.get(packet);
+            
+            if(fields == null) {
+                fields = new ArrayList<>();
+                packets.put(packet, fields);
+            }
+            
+            fields.add((VariableElement) element);
+        }
+        
+        for(Map.Entry<TypeElement, List<VariableElement>> entry : packets.entrySet()) {
+            if(this.validate(entry.getKey(), entry.getValue())) {
+                this.generate(entry.getKey(), entry.getValue());
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Sort the given fields and report any that can not be encoded.
+     * 
+     * @param packet Packet class.
+     * @param fields Annotated fields of the packet class.
+     * @return True if a codec can be generated.
+     */
+    private boolean validate(TypeElement packet, List<VariableElement> fields) {
+        Collections.sort(fields, new Comparator<VariableElement>() {
+            @Override
+            public int compare(VariableElement a, VariableElement b) {
+                return Integer.compare(a.getAnnotation(PacketField.class).order(),
+                        b.getAnnotation(PacketField.class).order());
+            }
+        });
+        
+        boolean isValid = true;
+        
+        for(int i = 0; i < fields.size(); i++) {
+            VariableElement field = fields.get(i);
+            Set<Modifier> modifiers = field.getModifiers();
+            
+            if(modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+                    || modifiers.contains(Modifier.FINAL)) {
+                this.error(field, "@PacketField fields must not be private, static or final.");
+                isValid = false;
+            }
+            
+            if(PacketFieldProcessor.getFixedSize(field.asType()) == 0
+                    && !PacketFieldProcessor.isString(field.asType())
+                    && !PacketFieldProcessor.isByteArray(field.asType())) {
+                this.error(field, "@PacketField does not support fields of type "
+                        + field.asType() + ".");
+                isValid = false;
+            }
+            
+            if(i > 0 && field.getAnnotation(PacketField.class).order()
+                    == fields.get(i - 1).getAnnotation(PacketField.class).order()) {
+                this.error(field, "@PacketField order " + field.getAnnotation(PacketField.class)
+                        .order() + " is already used by " + fields.get(i - 1).getSimpleName()
+                        + ".");
+                isValid = false;
+            }
+        }
+        
+        return isValid;
+    }
+    
+    /**
+     * Generate the codec of the given packet class.
+     * 
+     * @param packet Packet class.
+     * @param fields Sorted annotated fields of the packet class.
+     */
+    private void generate(TypeElement packet, List<VariableElement> fields) {
+        PackageElement packageElement = this.processingEnv.getElementUtils().getPackageOf(packet);
+        String packageName = packageElement.isUnnamed() ? ""
+                : packageElement.getQualifiedName().toString();
+        String packetName = packet.getQualifiedName().toString();
+        String codecName = packetName.substring(packageName.isEmpty() ? 0
+                : packageName.length() + 1).replace('.', '_') + PacketFieldProcessor.CODEC_SUFFIX;
+        
+        StringBuilder source = new StringBuilder();
+        
+        if(!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        
+        source.append("/**\n");
+        source.append(" * Codec of {@link ").append(packetName).append("}, generated by the\n");
+        source.append(" * {@link net.neto_framework.annotations.PacketFieldProcessor");
+        source.append(" PacketFieldProcessor}.\n");
+        source.append(" */\n");
+        source.append("public final class ").append(codecName).append(" {\n\n");
+        source.append("    private ").append(codecName).append("() { }\n\n");
+        
+        // Write every field in order.
+        source.append("    public static void send(").append(packetName).append(" packet,\n");
+        source.append("            net.neto_framework.Connection connection)\n");
+        source.append("            throws java.io.IOException {\n");
+        source.append("        java.nio.ByteBuffer section;\n");
+        
+        for(List<VariableElement> run : PacketFieldProcessor.split(fields)) {
+            VariableElement first = run.get(0);
+            
+            if(PacketFieldProcessor.getFixedSize(first.asType()) == 0) {
+                String method = PacketFieldProcessor.isString(first.asType()) ? "sendString"
+                        : "sendByteArray";
+                source.append("        connection.").append(method).append("(packet.")
+                        .append(first.getSimpleName()).append(");\n");
+                continue;
+            }
+            
+            source.append("        section = connection.sendSection(")
+                    .append(PacketFieldProcessor.getFixedSize(run)).append(");\n");
+            
+            for(VariableElement field : run) {
+                source.append("        section.")
+                        .append(PacketFieldProcessor.getPut(field.asType().getKind(),
+                                "packet." + field.getSimpleName()))
+                        .append(";\n");
+            }
+        }
+        
+        source.append("    }\n\n");
+        
+        // Read every field in order.
+        source.append("    public static void receive(").append(packetName).append(" packet,\n");
+        source.append("            net.neto_framework.Connection connection)\n");
+        source.append("            throws java.io.IOException {\n");
+        source.append("        java.nio.ByteBuffer section;\n");
+        
+        for(List<VariableElement> run : PacketFieldProcessor.split(fields)) {
+            VariableElement first = run.get(0);
+            
+            if(PacketFieldProcessor.getFixedSize(first.asType()) == 0) {
+                String method = PacketFieldProcessor.isString(first.asType()) ? "receiveString"
+                        : "receiveByteArray";
+                source.append("        packet.").append(first.getSimpleName())
+                        .append(" = connection.").append(method).append("();\n");
+                continue;
+            }
+            
+            source.append("        section = connection.receiveSection(")
+                    .append(PacketFieldProcessor.getFixedSize(run)).append(");\n");
+            
+            for(VariableElement field : run) {
+                source.append("        packet.").append(field.getSimpleName()).append(" = ")
+                        .append(PacketFieldProcessor.getGet(field.asType().getKind()))
+                        .append(";\n");
+            }
+        }
+        
+        source.append("    }\n");
+        source.append("}\n");
+        
+        // Attempt to write the generated source.
+        String qualifiedName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+        try {
+            JavaFileObject file = this.processingEnv.getFiler().createSourceFile(qualifiedName,
+                    packet);
+            
+            try(Writer writer = file.openWriter()) {
+                writer.write(source.toString());
+            }
+        } catch (IOException e) {
+            this.error(packet, "Failed to write codec " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Split the given fields into runs of consecutive fixed size fields and single variable size
+     * fields.
+     * 
+     * @param fields Sorted fields.
+     * @return Runs of fields.
+     */
+    private static List<List<VariableElement>> split(List<VariableElement> fields) {
+        List<List<VariableElement>> runs = new ArrayList<>();
+        List<VariableElement> run = null;
+        
+        for(VariableElement field : fields) {
+            boolean isFixed = PacketFieldProcessor.getFixedSize(field.asType()) > 0;
+            
+            if(!isFixed || run == null) {
+                run = new ArrayList<>();
+                runs.add(run);
+            }
+            
+            run.add(field);
+            
+            if(!isFixed) {
+                run = null;
+            }
+        }
+        
+        return runs;
+    }
+    
+    /**
+     * @param run Fixed size fields.
+     * @return The total size of the given fields in bytes.
+     */
+    private static int getFixedSize(List<VariableElement> run) {
+        int size = 0;
+        for(VariableElement field : run) {
+            size += PacketFieldProcessor.getFixedSize(field.asType());
+        }
+        
+        return size;
+    }
+    
+    /**
+     * @param type Field type.
+     * @return The encoded size of the given type in bytes, 0 if not a fixed size type.
+     */
+    private static int getFixedSize(TypeMirror type) {
+        switch(type.getKind()) {
+        case BOOLEAN:
+        case BYTE:
+            return 1;
+        case SHORT:
+        case CHAR:
+            return 2;
+        case INT:
+        case FLOAT:
+            return 4;
+        case LONG:
+        case DOUBLE:
+            return 8;
+        default:
+            return 0;
+        }
+    }
+    
+    /**
+     * @param kind Fixed size field type.
+     * @param value Expression of the value to write.
+     * @return ByteBuffer method call that writes the value.
+     */
+    private static String getPut(TypeKind kind, String value) {
+        switch(kind) {
+        case BOOLEAN:
+            return "put((byte) (" + value + " ? 0x01 : 0x00))";
+        case BYTE:
+            return "put(" + value + ")";
+        case SHORT:
+            return "putShort(" + value + ")";
+        case CHAR:
+            return "putChar(" + value + ")";
+        case INT:
+            return "putInt(" + value + ")";
+        case FLOAT:
+            return "putFloat(" + value + ")";
+        case LONG:
+            return "putLong(" + value + ")";
+        default:
+            return "putDouble(" + value + ")";
+        }
+    }
+    
+    /**
+     * @param kind Fixed size field type.
+     * @return Expression that reads a value of the given type from the section.
+     */
+    private static String getGet(TypeKind kind) {
+        switch(kind) {
+        case BOOLEAN:
+            return "section.get() != 0";
+        case BYTE:
+            return "section.get()";
+        case SHORT:
+            return "section.getShort()";
+        case CHAR:
+            return "section.getChar()";
+        case INT:
+            return "section.getInt()";
+        case FLOAT:
+            return "section.getFloat()";
+        case LONG:
+            return "section.getLong()";
+        default:
+            return "section.getDouble()";
+        }
+    }
+    
+    /**
+     * @param type Field type.
+     * @return If the given type is String.
+     */
+    private static boolean isString(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && type.toString().equals("java.lang.String");
+    }
+    
+    /**
+     * @param type Field type.
+     * @return If the given type is byte[].
+     */
+    private static boolean isByteArray(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY
+                && ((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE;
+    }
+    
+    /**
+     * Report a compile error.
+     * 
+     * @param element The element the error is about.
+     * @param message Error message.
+     */
+    private void error(Element element, String message) {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
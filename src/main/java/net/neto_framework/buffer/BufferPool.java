@@ -0,0 +1,263 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.neto_framework.utils.Threads;
+
+/**
+ * A pool of reusable {@link java.nio.ByteBuffer ByteBuffers}. Buffers are pooled in power of two
+ * size classes, each thread keeps a small cache of its own per size class in front of a shared
+ * arena so that event loop threads rarely touch shared state.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public final class BufferPool {
+
+    /**
+     * The capacity of the smallest size class. (Must be a power of two)
+     */
+    public static final int MIN_CAPACITY = 256;
+
+    /**
+     * The capacity of the largest size class, larger buffers are not pooled.
+     */
+    public static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+    /**
+     * Number of size classes.
+     */
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(
+            BufferPool.MAX_POOLED_CAPACITY) - Integer.numberOfTrailingZeros(
+                    BufferPool.MIN_CAPACITY) + 1;
+
+    /**
+     * The maximum number of buffers per size class cached by each thread.
+     */
+    public static int THREAD_CACHE_SIZE = 16;
+
+    /**
+     * The maximum number of buffers per size class kept in the shared arena.
+     */
+    public static int ARENA_SIZE = 1024;
+
+    /**
+     * If buffers are cached per thread. Virtual threads are too numerous and short lived for
+     * per thread caches to be reused, so only the shared arenas are used with them.
+     */
+    private static final boolean IS_THREAD_CACHED = !Threads.isVirtual();
+
+    /**
+     * Pool of heap buffers, used where the backing array is needed.
+     */
+    public static final BufferPool HEAP = new BufferPool(false);
+
+    /**
+     * Pool of direct buffers, used for data written straight to channels.
+     */
+    public static final BufferPool DIRECT = new BufferPool(true);
+
+    /**
+     * If this pool allocates direct buffers.
+     */
+    private final boolean isDirect;
+
+    /**
+     * Shared buffers per size class.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] arenas;
+
+    /**
+     * Number of buffers in each shared arena.
+     */
+    private final AtomicInteger[] arenaSizes;
+
+    /**
+     * Per thread buffer caches.
+     */
+    private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    /**
+     * @param isDirect If this pool allocates direct buffers.
+     */
+    @SuppressWarnings("unchecked")
+    private BufferPool(boolean isDirect) {
+        this.isDirect = isDirect;
+        // Generic arrays can not be created, every element is set to a queue of buffers below.
+        this.arenas = (ConcurrentLinkedQueue<ByteBuffer>[])
+                new ConcurrentLinkedQueue<?>[BufferPool.SIZE_CLASSES];
+        this.arenaSizes = new AtomicInteger[BufferPool.SIZE_CLASSES];
+
+        for(int i = 0; i < BufferPool.SIZE_CLASSES; i++) {
+            this.arenas[i] = new ConcurrentLinkedQueue<>();
+            this.arenaSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Acquire a cleared buffer of at least the given capacity.
+     *
+     * @param minimumCapacity The minimum capacity.
+     * @return ByteBuffer in write mode.
+     */
+    public ByteBuffer acquire(int minimumCapacity) {
+        if(minimumCapacity > BufferPool.MAX_POOLED_CAPACITY) {
+            return this.allocate(minimumCapacity);
+        }
+
+        int sizeClass = BufferPool.sizeClass(minimumCapacity);
+        ByteBuffer buffer = BufferPool.IS_THREAD_CACHED ? this.caches.get().poll(sizeClass) : null;
+
+        if(buffer == null) {
+            buffer = this.arenas[sizeClass].poll();
+
+            if(buffer != null) {
+                this.arenaSizes[sizeClass].decrementAndGet();
+            } else {
+                buffer = this.allocate(BufferPool.MIN_CAPACITY << sizeClass);
+            }
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used after it has been released.
+     *
+     * @param buffer ByteBuffer acquired from this pool. (May be null)
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || buffer.isDirect() != this.isDirect) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        if(capacity < BufferPool.MIN_CAPACITY || capacity > BufferPool.MAX_POOLED_CAPACITY
+                || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+
+        int sizeClass = BufferPool.sizeClass(capacity);
+        if(BufferPool.IS_THREAD_CACHED && this.caches.get().offer(sizeClass, buffer)) {
+            return;
+        }
+
+        if(this.arenaSizes[sizeClass].incrementAndGet() <= BufferPool.ARENA_SIZE) {
+            this.arenas[sizeClass].add(buffer);
+        } else {
+            this.arenaSizes[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Acquire a larger buffer containing the data of the given one and release the given one.
+     *
+     * @param buffer ByteBuffer in write mode.
+     * @param minimumCapacity The minimum capacity of the new buffer.
+     * @return ByteBuffer in write mode.
+     */
+    public ByteBuffer grow(ByteBuffer buffer, int minimumCapacity) {
+        ByteBuffer grown = this.acquire(Math.max(minimumCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        this.release(buffer);
+        return grown;
+    }
+
+    /**
+     * @param capacity Capacity.
+     * @return New unpooled buffer.
+     */
+    private ByteBuffer allocate(int capacity) {
+        return this.isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @param capacity Capacity. (Must not exceed MAX_POOLED_CAPACITY)
+     * @return The smallest size class that fits the given capacity.
+     */
+    private static int sizeClass(int capacity) {
+        if(capacity <= BufferPool.MIN_CAPACITY) {
+            return 0;
+        }
+
+        return (32 - Integer.numberOfLeadingZeros(capacity - 1))
+                - Integer.numberOfTrailingZeros(BufferPool.MIN_CAPACITY);
+    }
+
+    /**
+     * @return If this pool allocates direct buffers.
+     */
+    public boolean isDirect() {
+        return this.isDirect;
+    }
+
+    /**
+     * A small stack of buffers per size class owned by a single thread.
+     */
+    private static final class ThreadCache {
+
+        /**
+         * Cached buffers per size class.
+         */
+        private final ByteBuffer[][] buffers =
+                new ByteBuffer[BufferPool.SIZE_CLASSES][BufferPool.THREAD_CACHE_SIZE];
+
+        /**
+         * Number of cached buffers per size class.
+         */
+        private final int[] counts = new int[BufferPool.SIZE_CLASSES];
+
+        /**
+         * @param sizeClass Size class.
+         * @return Cached buffer or null.
+         */
+        private ByteBuffer poll(int sizeClass) {
+            if(this.counts[sizeClass] == 0) {
+                return null;
+            }
+
+            ByteBuffer buffer = this.buffers[sizeClass][--this.counts[sizeClass]];
+            this.buffers[sizeClass][this.counts[sizeClass]] = null;
+            return buffer;
+        }
+
+        /**
+         * @param sizeClass Size class.
+         * @param buffer Buffer to cache.
+         * @return False if the cache for the size class is full.
+         */
+        private boolean offer(int sizeClass, ByteBuffer buffer) {
+            if(this.counts[sizeClass] == this.buffers[sizeClass].length) {
+                return false;
+            }
+
+            this.buffers[sizeClass][this.counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
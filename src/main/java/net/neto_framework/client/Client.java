@@ -18,23 +18,22 @@
 
 package net.neto_framework.client;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.io.InputStream;
 import java.net.DatagramSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Arrays;
-import java.util.Base64;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.SecretKey;
@@ -46,20 +45,28 @@ import javax.net.ssl.TrustManagerFactory;
 import net.neto_framework.Connection;
 import net.neto_framework.PacketManager;
 import net.neto_framework.Protocol;
+import net.neto_framework.ReliableChannel;
 import net.neto_framework.address.SocketAddress;
+import net.neto_framework.buffer.BufferPool;
 import net.neto_framework.client.event.events.DisconnectEvent;
 import net.neto_framework.client.event.events.DisconnectEvent.DisconnectReason;
 import net.neto_framework.client.event.events.PacketExceptionEvent;
 import net.neto_framework.client.exceptions.ClientConnectException;
 import net.neto_framework.client.packets.handlers.DisconnectPacketHandler;
+import net.neto_framework.client.packets.handlers.EncryptionRequestPacketHandler;
 import net.neto_framework.client.packets.handlers.SuccessPacketHandler;
+import net.neto_framework.client.packets.handlers.TransferChunkPacketHandler;
 import net.neto_framework.event.EventHandler;
 import net.neto_framework.exceptions.PacketException;
 import net.neto_framework.packets.DisconnectPacket;
+import net.neto_framework.packets.EncryptionRequestPacket;
 import net.neto_framework.packets.HandshakePacket;
 import net.neto_framework.packets.SuccessPacket;
+import net.neto_framework.packets.TransferChunkPacket;
 import net.neto_framework.server.Server;
+import net.neto_framework.transfer.ClientTransferHandler;
 import net.neto_framework.utils.NetoFramework;
+import net.neto_framework.utils.Threads;
 
 /**
  * A client handler that can connect to a TCP or UDP server.
@@ -68,6 +75,12 @@ import net.neto_framework.utils.NetoFramework;
  */
 public class Client {
 
+    /**
+     * The size of the buffer datagrams are received into, large enough for the largest possible
+     * datagram.
+     */
+    private static final int UDP_BUFFER_SIZE = 65536;
+
     /**
      * The version of Neto-Framework the client is using loaded at runtime.
      */
@@ -104,7 +117,12 @@ public class Client {
     private SSLSocket tcpSocket;
     
     /**
-     * UDP Socket.
+     * UDP channel.
+     */
+    private DatagramChannel udpChannel;
+    
+    /**
+     * UDP Socket of the UDP channel.
      */
     private DatagramSocket udpSocket;
 
@@ -142,6 +160,21 @@ public class Client {
      * UUID given by server.
      */
     private UUID uuid;
+    
+    /**
+     * Session ID given by server, every datagram to and from the server starts with it.
+     */
+    private volatile int sessionId;
+    
+    /**
+     * The executor packet handlers are run on. (Null if run on the thread that read the packet)
+     */
+    private Executor handlerExecutor;
+    
+    /**
+     * The handler told about bulk transfers started by the server. (May be null)
+     */
+    private ClientTransferHandler transferHandler;
 
     /**
      * New client using server authentication.
@@ -152,19 +185,24 @@ public class Client {
      */
     public Client(SocketAddress address, KeyStore keyStore) {
         
-        try {
+        try(InputStream stream = Client.class.getResourceAsStream(
+                NetoFramework.PROPERTIES_LOCATION)) {
             Properties properties = new Properties();
-            properties.load(ClassLoader.getSystemResourceAsStream(
-                    NetoFramework.PROPERTIES_LOCATION));
+            properties.load(stream);
             this.version = properties.getProperty("version");
         } catch (IOException e) {
             throw new RuntimeException("Failed to detect version of neto-framework.", e);
         }
         
         this.packetManager = new PacketManager();
-        this.packetManager.registerPacket(HandshakePacket.class);
-        this.packetManager.registerPacket(SuccessPacket.class, new SuccessPacketHandler());
-        this.packetManager.registerPacket(DisconnectPacket.class, new DisconnectPacketHandler());
+        this.packetManager.registerPacket(HandshakePacket::new);
+        this.packetManager.registerPacket(EncryptionRequestPacket::new,
+                new EncryptionRequestPacketHandler());
+        this.packetManager.registerPacket(SuccessPacket::new, new SuccessPacketHandler());
+        this.packetManager.registerPacket(DisconnectPacket::new, new DisconnectPacketHandler());
+        this.packetManager.registerPacket(TransferChunkPacket::new,
+                new TransferChunkPacketHandler());
+        this.packetManager.reserveInternalIds();
         
         this.eventHandler = new EventHandler();
         this.address = address;
@@ -190,6 +228,9 @@ public class Client {
      */
     public void connect() throws ClientConnectException {
         if (!this.isConnected) {
+            // Packets can no longer be registered once the server may send them.
+            this.packetManager.freeze();
+            
             TrustManagerFactory trustManagerFactory = null;
             
             if(this.keyStore != null) {
@@ -244,8 +285,10 @@ public class Client {
             this.isConnected = true;
 
             try {
-                this.udpSocket = new DatagramSocket();
-            } catch (SocketException e) {
+                this.udpChannel = DatagramChannel.open();
+                this.udpChannel.bind(null);
+                this.udpSocket = this.udpChannel.socket();
+            } catch (IOException e) {
                 this.disconnect(false);
                 throw new ClientConnectException("Failed to create UDP socket.", e);
             }
@@ -255,7 +298,7 @@ public class Client {
                     this.address.getInetAddress(), this.address.getPort());
 
             this.serverConnection = new ServerConnection(this, tcpConnection, udpConnection);
-            (new Thread(this.serverConnection)).start();
+            Threads.newThread(this.serverConnection).start();
             
             try {
                 HandshakePacket packet = new HandshakePacket();
@@ -277,87 +320,59 @@ public class Client {
                 }
             }, Connection.HANDSHAKE_TIMEOUT);
             
-            (new Thread(new Runnable() {
+            Threads.newThread(new Runnable() {
                 @Override
                 public void run() {
                     Thread.currentThread().setName("Neto-Framework Client UDP Handler");
                     
+                    ByteBuffer buffer = BufferPool.DIRECT.acquire(Client.UDP_BUFFER_SIZE);
+                    
                     while(Client.this.isConnected) {
-                        byte[] data = new byte[65508];
-                        DatagramPacket dataPacket = new DatagramPacket(data, data.length);
-
                         try {
-                            Client.this.udpSocket.receive(dataPacket);
-
-                             // Trim data
-                            int i = data.length - 1;
-                            while (i >= 0 && data[i] == 0) {
-                                --i;
+                            buffer.clear();
+                            Client.this.udpChannel.receive(buffer);
+                            buffer.flip();
+                            
+                            // Ignore datagrams that are not part of this session.
+                            if(buffer.remaining() < Connection.SESSION_ID_LENGTH
+                                    || buffer.getInt() != Client.this.sessionId) {
+                                PacketException exception = new PacketException("UDP packet"
+                                        + " received with an invalid session ID.");
+                                PacketExceptionEvent event = new PacketExceptionEvent(
+                                        Client.this, exception);
+                                Client.this.eventHandler.callEvent(event);
+                                continue;
                             }
-
-                            data = Arrays.copyOf(data, i + 1);
-                            data = Base64.getDecoder().decode(data);
                             
-                            Connection connection = new Connection(udpSocket,
-                                    dataPacket.getAddress(), dataPacket.getPort());
-                            connection.enableEncryption(Client.this.secretKey,
-                                    Client.this.ivParameterSpec);
+                            Connection connection =
+                                    Client.this.serverConnection.getUDPConnection();
                             
-                            ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
-                            connection.setUdpDataInputStream(inputStream);
-                            int packetId = connection.receiveInteger();
-                            UUID uuid = UUID.fromString(connection.receiveString());
-                            long timestamp = connection.receiveLong();
-
-                            if(!Client.this.packetManager.hasPacket(packetId)) {
-                                PacketException exception = new PacketException("Unkown UDP packet"
-                                        + " received.");
-                                PacketExceptionEvent event = new PacketExceptionEvent(Client.this,
-                                        exception);
-                                Client.this.eventHandler.callEvent(event);
-                                
-                                if(Client.this.isHandshakeComplete) {
-                                    Client.this.disconnect();
-                                    DisconnectEvent disconnectEvent =
-                                            new DisconnectEvent(Client.this,
-                                                    DisconnectReason.EXCEPTION, exception);
-                                    Client.this.getEventHandler().callEvent(disconnectEvent);
-                                } else {
-                                    Client.this.disconnect(false);
-                                }
+                            // Drop replayed datagrams.
+                            if(!connection.receiveDatagram(buffer)) {
+                                continue;
                             }
-
-                            if(Client.this.uuid != null | Client.this.uuid.equals(uuid)) {
-                                Client.this.serverConnection.getUDPConnection().
-                                        setUdpDataInputStream(inputStream);
-                                
-                                if((System.currentTimeMillis() - timestamp) > 
-                                        Connection.REPLAY_WINDOW) {
-                                    Client.this.packetManager.receive(Client.this, packetId,
-                                            Client.this.serverConnection, Protocol.UDP, true);
-                                } else {
-                                   Client.this.packetManager.receive(Client.this, packetId,
-                                            Client.this.serverConnection, Protocol.UDP, false); 
-                                }
-                            } else {
-                                PacketException exception = new PacketException("UUID does not "
-                                        + "match on received UDP packet.");
-                                PacketExceptionEvent event = new PacketExceptionEvent(Client.this,
-                                        exception);
-                                Client.this.eventHandler.callEvent(event);
-                                
-                                if(Client.this.isHandshakeComplete) {
-                                    Client.this.disconnect();
-                                    DisconnectEvent disconnectEvent =
-                                            new DisconnectEvent(Client.this,
-                                                    DisconnectReason.EXCEPTION, exception);
-                                    Client.this.getEventHandler().callEvent(disconnectEvent);
-                                } else {
-                                    Client.this.disconnect(false);
-                                }
+                            
+                            // Hold fragments until the whole frame has arrived.
+                            if(!Client.this.serverConnection.getFragmentChannel()
+                                    .receiveFrame(connection)) {
+                                continue;
+                            }
+                            
+                            // Read the reliability header of reliable frames, skipping frames
+                            // that must not be delivered now.
+                            ReliableChannel reliableChannel =
+                                    Client.this.serverConnection.getReliableChannel();
+                            Protocol protocol = reliableChannel.receiveFrame(connection);
+                            
+                            // Read every packet packed into the datagram, followed by any held
+                            // back reliable frames it allowed to be delivered.
+                            while(protocol != null && Client.this.isConnected) {
+                                Client.this.receiveDatagramPackets(connection, protocol);
+                                protocol = reliableChannel.receiveHeldFrame(connection)
+                                        ? Protocol.RELIABLE_UDP : null;
                             }
                         } catch (IOException e) {
-                            if(!Client.this.udpSocket.isClosed()) {
+                            if(Client.this.udpChannel.isOpen()) {
                                 PacketException exception = new PacketException("Failed to read UDP"
                                         + " packet.", e);
                                 PacketExceptionEvent event = new PacketExceptionEvent(Client.this,
@@ -366,8 +381,10 @@ public class Client {
                             }
                         }
                     }
+                    
+                    BufferPool.DIRECT.release(buffer);
                 }
-            })).start();
+            }).start();
             
             while(!this.isHandshakeComplete) {
                 // Block until handshake is completed.
@@ -381,6 +398,39 @@ public class Client {
         }
     }
     
+    /**
+     * Read every packet left in the UDP frame currently being read.
+     * 
+     * @param connection UDP {@link net.neto_framework.Connection Connection}.
+     * @param protocol The {@link net.neto_framework.Protocol Protocol} the frame was sent with.
+     * @throws IOException If fails to read a packet.
+     */
+    private void receiveDatagramPackets(Connection connection, Protocol protocol)
+            throws IOException {
+        while(connection.hasRemaining() && this.isConnected) {
+            int packetId = connection.receivePacketId();
+            
+            if(!this.packetManager.hasPacket(packetId)) {
+                PacketException exception = new PacketException("Unkown UDP packet received.");
+                PacketExceptionEvent event = new PacketExceptionEvent(this, exception);
+                this.eventHandler.callEvent(event);
+                
+                if(this.isHandshakeComplete) {
+                    this.disconnect();
+                    DisconnectEvent disconnectEvent = new DisconnectEvent(this,
+                            DisconnectReason.EXCEPTION, exception);
+                    this.getEventHandler().callEvent(disconnectEvent);
+                } else {
+                    this.disconnect(false);
+                }
+                
+                return;
+            }
+            
+            this.packetManager.receive(this, packetId, this.serverConnection, protocol);
+        }
+    }
+    
     /**
      * Disconnect from the server.
      */
@@ -397,18 +447,33 @@ public class Client {
         if (this.isConnected) {
             if(sendDisconnectPacket) {
                 try {
+                    this.serverConnection.flush();
                     this.serverConnection.sendPacket(new DisconnectPacket(), Protocol.TCP);
-                } catch (IOException e) {} //TODO: Log
+                } catch (IOException e) {
+                    this.onDisconnectFailed("Failed to send disconnect packet to server.", e);
+                }
             }
             
             this.isConnected = false;
             
             try {
                 this.tcpSocket.close();
-            } catch (IOException e) {} //TODO: Log
+            } catch (IOException e) {
+                this.onDisconnectFailed("Failed to close TCP socket.", e);
+            }
 
-            if(this.udpSocket != null) {
-                this.udpSocket.close();
+            if(this.udpChannel != null) {
+                try {
+                    this.udpChannel.close();
+                } catch (IOException e) {
+                    this.onDisconnectFailed("Failed to close UDP channel.", e);
+                }
+            }
+            
+            if(this.serverConnection != null) {
+                this.serverConnection.getPacketSender().close();
+                this.serverConnection.getTransferManager().close();
+                this.serverConnection.getOutboundQueue().close();
             }
         }
     }
@@ -419,6 +484,18 @@ public class Client {
     public void disconnect() {
         this.disconnect(true);
     }
+    
+    /**
+     * Call a packet exception event for a failure while disconnecting, which does not stop the
+     * client being disconnected.
+     * 
+     * @param message Message.
+     * @param e The IOException that occurred.
+     */
+    private void onDisconnectFailed(String message, IOException e) {
+        PacketException exception = new PacketException(message, e);
+        this.eventHandler.callEvent(new PacketExceptionEvent(this, exception));
+    }
 
     /**
      * @return {@link net.neto_framework.PacketManager PacketManager}.
@@ -463,6 +540,14 @@ public class Client {
     public DatagramSocket getUdpSocket() {
         return this.udpSocket;
     }
+    
+    /**
+     * @return UDP channel datagrams are sent and received with. (Null if not using UDP as
+     *         protocol or if the client is not connected.)
+     */
+    public DatagramChannel getUdpChannel() {
+        return this.udpChannel;
+    }
 
     /**
      * @return {@link net.neto_framework.client.ServerConnection ServerConnection}.
@@ -540,4 +625,55 @@ public class Client {
     public void setUUID(UUID uuid) {
         this.uuid = uuid;
     }
+    
+    /**
+     * @return Session ID given by server.
+     */
+    public int getSessionId() {
+        return this.sessionId;
+    }
+    
+    /**
+     * @param sessionId Session ID given by server.
+     */
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+    
+    /**
+     * @return The {@link java.util.concurrent.Executor Executor} packet handlers are run on. (Null
+     *         if run on the thread that read the packet)
+     */
+    public Executor getHandlerExecutor() {
+        return this.handlerExecutor;
+    }
+    
+    /**
+     * Run packet handlers on the given executor instead of the I/O thread that read the packet.
+     * Packets are still handled one at a time in the order they were received.
+     * 
+     * @param handlerExecutor {@link java.util.concurrent.Executor Executor}, or null to run
+     *                        handlers on the thread that read the packet. (Must be set before
+     *                        connecting).
+     */
+    public void setHandlerExecutor(Executor handlerExecutor) {
+        this.handlerExecutor = handlerExecutor;
+    }
+    
+    /**
+     * @return The {@link net.neto_framework.transfer.ClientTransferHandler ClientTransferHandler}
+     *         told about bulk transfers started by the server. (May be null)
+     */
+    public ClientTransferHandler getTransferHandler() {
+        return this.transferHandler;
+    }
+    
+    /**
+     * @param transferHandler The {@link net.neto_framework.transfer.ClientTransferHandler
+     *                        ClientTransferHandler} told about bulk transfers started by the
+     *                        server. If null, received transfers are discarded.
+     */
+    public void setTransferHandler(ClientTransferHandler transferHandler) {
+        this.transferHandler = transferHandler;
+    }
 }
@@ -19,15 +19,28 @@
 package net.neto_framework.client;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.util.Base64;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import net.neto_framework.Connection;
+import net.neto_framework.FragmentChannel;
+import net.neto_framework.OutboundQueue;
 import net.neto_framework.Packet;
+import net.neto_framework.PacketSender;
 import net.neto_framework.Protocol;
+import net.neto_framework.ReliableChannel;
 import net.neto_framework.client.event.events.DisconnectEvent;
 import net.neto_framework.client.event.events.DisconnectEvent.DisconnectReason;
 import net.neto_framework.client.event.events.PacketExceptionEvent;
 import net.neto_framework.exceptions.PacketException;
+import net.neto_framework.packets.TransferChunkPacket;
+import net.neto_framework.transfer.BulkTransfer;
+import net.neto_framework.transfer.BulkTransferManager;
+import net.neto_framework.transfer.TransferListener;
+import net.neto_framework.transfer.TransferProgress;
+import net.neto_framework.utils.SerialExecutor;
 
 /**
  * A connection thread to handle the server connection.
@@ -50,6 +63,26 @@ public class ServerConnection implements Runnable {
      * Server UDP Connection.
      */
     private final Connection udpConnection;
+    
+    /**
+     * The bulk transfers of this connection.
+     */
+    private final BulkTransferManager transferManager = new BulkTransferManager();
+    
+    /**
+     * TCP frames waiting to be written to the socket.
+     */
+    private final OutboundQueue outboundQueue;
+    
+    /**
+     * Encodes and sends packets to the server.
+     */
+    private final PacketSender sender;
+    
+    /**
+     * Runs packet handlers in order. (Null if run on the thread that read the packet)
+     */
+    private final SerialExecutor handlerExecutor;
 
     /**
      * New ServerConnection.
@@ -62,6 +95,27 @@ public class ServerConnection implements Runnable {
         this.client = client;
         this.tcpConnection = tcpConnection;
         this.udpConnection = udpConnection;
+        this.outboundQueue = new OutboundQueue(tcpConnection.getTCPSocket());
+        this.sender = new PacketSender(client.getPacketManager(), tcpConnection,
+                this.outboundQueue) {
+            @Override
+            protected DatagramChannel getUdpChannel() {
+                return ServerConnection.this.client.getUdpChannel();
+            }
+            
+            @Override
+            protected int getSessionId() {
+                return ServerConnection.this.client.getSessionId();
+            }
+            
+            @Override
+            protected void onReliableFailure(IOException e) {
+                ServerConnection.this.onReliableFailure(e);
+            }
+        };
+        this.sender.addUdpConnection(udpConnection);
+        this.handlerExecutor = client.getHandlerExecutor() != null
+                ? new SerialExecutor(client.getHandlerExecutor()) : null;
     }
 
     @Override
@@ -70,36 +124,15 @@ public class ServerConnection implements Runnable {
         
         while (this.client.isConnected()) {
             try {
-                int packetId = this.tcpConnection.receiveInteger();
-                long timestamp = 0;
-                String uuidString;
-                
-                if(this.client.getUUID() != null) {
-                    uuidString = this.tcpConnection.receiveString();
-                    timestamp = this.tcpConnection.receiveLong();
-                    
-                    if(!this.client.getUUID().toString().equals(uuidString)) {
-                        PacketException exception = new PacketException("UUID does not match.");
-                        PacketExceptionEvent packetEvent = new PacketExceptionEvent(this.client,
-                                exception);
-                        this.client.getEventHandler().callEvent(packetEvent);
-
-                        this.client.disconnect();
-                        DisconnectEvent event = new DisconnectEvent(this.client,
-                                DisconnectReason.EXCEPTION, exception);
-                        this.client.getEventHandler().callEvent(event);
-                        break;
-                    }
-                }
+                this.tcpConnection.receiveFrame();
+                int packetId = this.tcpConnection.receivePacketId();
+                long timestamp = this.tcpConnection.receiveTimestamp();
                 
                 if(this.client.getPacketManager().hasPacket(packetId)) {
-                    if(this.client.getUUID() != null &&
-                            (System.currentTimeMillis() - timestamp) > Connection.REPLAY_WINDOW) {
-                        this.client.getPacketManager().receive(this.client, packetId, this,
-                                Protocol.TCP, true);
-                    } else {
+                    // Skip the whole frame if the packet is outside of the replay window.
+                    if((System.currentTimeMillis() - timestamp) <= Connection.REPLAY_WINDOW) {
                         this.client.getPacketManager().receive(this.client, packetId, this,
-                                Protocol.TCP, false);
+                                Protocol.TCP);
                     }
                 } else {
                     PacketException exception = new PacketException("Unkown packet received.");
@@ -137,48 +170,140 @@ public class ServerConnection implements Runnable {
     }
 
     /**
-     * Send server packet.
+     * Send server packet, waiting until a TCP packet has been written to the socket. While a
+     * batch is open the packet is only queued until the batch is {@link #flush() flushed}.
      * 
      * @param packet The {@link net.neto_framework.Packet Packet} to send.
      * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
      * @throws IOException If fails to send packet.
      */
-    public synchronized void sendPacket(Packet packet, Protocol protocol) throws IOException {
-        if(this.client.getPacketManager().hasPacket(packet.getId())) {
-            if(protocol == Protocol.TCP) {
-                this.tcpConnection.sendInteger(packet.getId());
-
-                if(this.client.getUUID() != null) {
-                    this.tcpConnection.sendString(this.client.getUUID().toString());
-                    this.tcpConnection.sendLong(System.currentTimeMillis());
-                }
-
-                packet.send(this.tcpConnection);
-            } else {
-                this.udpConnection.sendInteger(packet.getId());
-                this.udpConnection.sendString(this.client.getUUID().toString());
-                this.udpConnection.sendLong(System.currentTimeMillis());
-                packet.send(this.udpConnection);
-                byte[] data = this.udpConnection.getUdpData();
-                data = Base64.getEncoder().withoutPadding().encode(data);
+    public void sendPacket(Packet packet, Protocol protocol) throws IOException {
+        this.sender.sendPacket(packet, protocol);
+    }
+    
+    /**
+     * Send server packet without waiting for it to be written. TCP packets are queued and written
+     * in order on a writer thread, UDP packets are sent immediately unless a batch is open.
+     * Reliable UDP packets are always sent immediately, in a datagram of their own.
+     * 
+     * @param packet The {@link net.neto_framework.Packet Packet} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @return CompletableFuture completed once the packet has been written, or for reliable
+     *         UDP once it has been acknowledged, or completed exceptionally with an IOException
+     *         if it could not be.
+     */
+    public CompletableFuture<Void> sendPacketAsync(Packet packet, Protocol protocol) {
+        return this.sender.sendPacketAsync(packet, protocol);
+    }
+    
+    /**
+     * Send several server packets at once, waiting until they have been written. TCP packets are
+     * written with a single write and UDP packets are packed into as few datagrams as possible.
+     * 
+     * @param packets The {@link net.neto_framework.Packet Packets} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @throws IOException If fails to send packets.
+     */
+    public void sendPackets(Collection<? extends Packet> packets, Protocol protocol)
+            throws IOException {
+        this.sender.sendPackets(packets, protocol);
+    }
+    
+    /**
+     * Open a batch. Packets sent until the batch is {@link #flush() flushed} are held back and
+     * then written together, TCP packets with a single write and UDP packets packed into as few
+     * datagrams as possible.
+     */
+    public void beginBatch() {
+        this.sender.beginBatch();
+    }
+    
+    /**
+     * Write every packet sent since the batch was {@link #beginBatch() opened} and close the
+     * batch, waiting until the TCP packets have been written.
+     * 
+     * @throws IOException If fails to send the batched packets.
+     */
+    public void flush() throws IOException {
+        this.sender.flush();
+    }
+    
+    /**
+     * Called when reliable frames could not be resent to the server or it stopped acknowledging
+     * them.
+     * 
+     * @param e The IOException that occurred.
+     */
+    private void onReliableFailure(IOException e) {
+        if(this.client.isConnected()) {
+            PacketException exception = new PacketException("Lost reliable UDP connection to"
+                    + " server.", e);
+            this.client.getEventHandler().callEvent(new PacketExceptionEvent(this.client,
+                    exception));
+            this.client.disconnect();
+        
+            DisconnectEvent event = new DisconnectEvent(this.client,
+                    DisconnectReason.EXCEPTION, exception);
+            this.client.getEventHandler().callEvent(event);
+        }
+    }
+    
+    /**
+     * Send part of a file to the server in chunks over TCP. Chunks are sent one at a time on a
+     * shared sender thread, taking turns with other transfers and packets.
+     * 
+     * @param source {@link java.nio.channels.FileChannel FileChannel} to read from.
+     * @param position Position within the file to start reading from.
+     * @param length Number of bytes to send.
+     * @param listener {@link net.neto_framework.transfer.TransferListener TransferListener}.
+     *                 (May be null)
+     * @return {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     */
+    public BulkTransfer sendTransfer(FileChannel source, long position, long length,
+            TransferListener listener) {
+        BulkTransfer transfer = this.transferManager.add(source, position, length, listener);
+        
+        // Start sending chunks if not already doing so, reporting progress once each chunk has
+        // been written.
+        this.transferManager.sendOnSenderThread(new Consumer<TransferChunkPacket>() {
+            @Override
+            public void accept(TransferChunkPacket chunk) {
+                CompletableFuture<Void> future = ServerConnection.this.sendPacketAsync(chunk,
+                        Protocol.TCP);
+                future.whenComplete(new TransferProgress(chunk.getTransfer(),
+                        chunk.getChunkLength()));
                 
-                DatagramPacket dataPacket = new DatagramPacket(data, data.length,
-                        this.udpConnection.getAddress(), this.udpConnection.getPort());
-                this.client.getUdpSocket().send(dataPacket);
+                try {
+                    ServerConnection.this.outboundQueue.flush(future);
+                } catch (IOException e) { } // Reported to the transfer by TransferProgress.
             }
-        } else {
-            throw new RuntimeException("Attempt to send unregistered packet.");
-        }
+        });
+        
+        return transfer;
     }
     
     /**
-     * Enable encryption. (Used during handshake process).
+     * Send a whole file to the server in chunks over TCP.
+     * 
+     * @param source {@link java.nio.channels.FileChannel FileChannel} to read from.
+     * @param listener {@link net.neto_framework.transfer.TransferListener TransferListener}.
+     *                 (May be null)
+     * @return {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     * @throws IOException If fails to get the size of the file.
+     */
+    public BulkTransfer sendTransfer(FileChannel source, TransferListener listener)
+            throws IOException {
+        return this.sendTransfer(source, 0, source.size(), listener);
+    }
+    
+    /**
+     * Enable encryption. (Used during handshake process, UDP may already be encrypted).
      */
     public void enableEncryption() {
         this.tcpConnection.enableEncryption(this.client.getSecretKey(),
-                this.client.getIvParameterSpec());
+                this.client.getIvParameterSpec(), false);
         this.udpConnection.enableEncryption(this.client.getSecretKey(),
-                this.client.getIvParameterSpec());
+                this.client.getIvParameterSpec(), false);
     }
     
     /**
@@ -194,4 +319,50 @@ public class ServerConnection implements Runnable {
     public Connection getUDPConnection() {
         return this.udpConnection;
     }
+    
+    /**
+     * @return {@link net.neto_framework.ReliableChannel ReliableChannel} of the UDP connection.
+     */
+    public ReliableChannel getReliableChannel() {
+        return this.sender.getReliableChannel();
+    }
+    
+    /**
+     * @return {@link net.neto_framework.FragmentChannel FragmentChannel} of the UDP connection.
+     */
+    public FragmentChannel getFragmentChannel() {
+        return this.sender.getFragmentChannel();
+    }
+    
+    /**
+     * @return The {@link net.neto_framework.utils.SerialExecutor SerialExecutor} packet handlers
+     *         are run on. (Null if run on the thread that read the packet)
+     */
+    public SerialExecutor getHandlerExecutor() {
+        return this.handlerExecutor;
+    }
+    
+    /**
+     * @return The {@link net.neto_framework.transfer.BulkTransferManager BulkTransferManager} of
+     *         this connection.
+     */
+    public BulkTransferManager getTransferManager() {
+        return this.transferManager;
+    }
+    
+    /**
+     * @return The {@link net.neto_framework.OutboundQueue OutboundQueue} TCP frames are written
+     *         from.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+    
+    /**
+     * @return The {@link net.neto_framework.PacketSender PacketSender} packets are sent to the
+     *         server with.
+     */
+    public PacketSender getPacketSender() {
+        return this.sender;
+    }
 }
@@ -19,14 +19,14 @@
 package net.neto_framework.client.packets.handlers;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import net.neto_framework.ClientPacketHandler;
 import net.neto_framework.Connection;
+import net.neto_framework.RecordCipher;
 import net.neto_framework.client.Client;
 import net.neto_framework.client.exceptions.ClientConnectException;
 import net.neto_framework.packets.EncryptionRequestPacket;
@@ -53,13 +53,18 @@ public class EncryptionRequestPacketHandler implements
         
         // Store secret key.
         SecretKeySpec secretKeySpec = new SecretKeySpec(packet.getSecretKey(), 0,
-                packet.getSecretKey().length, "DESede");
+                packet.getSecretKey().length, RecordCipher.KEY_ALGORITHM);
         client.setSecretKey(secretKeySpec);
         
         // Store IV Parameter.
         IvParameterSpec ivParameterSpec = new IvParameterSpec(packet.getIv());
         client.setIvParameterSpec(ivParameterSpec);
         
+        // Store the session every datagram belongs to.
+        client.setSessionId(packet.getSessionId());
+        client.getServerConnection().getUDPConnection().setTimestampBase(
+                packet.getTimestampBase());
+        
         // Define byte array to store hash.
         byte[] hash = null;
         
@@ -67,21 +72,25 @@ public class EncryptionRequestPacketHandler implements
         try {
             MessageDigest messageDigest = MessageDigest.getInstance("SHA-512");
             hash = messageDigest.digest(packet.getRandom());
-            hash = Base64.getEncoder().withoutPadding().encode(hash);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Failed to create hash from given random.", e);
         }
         
-        // Craft raw packet containing only the hash.
-        DatagramPacket hashPacket = new DatagramPacket(
-                hash,
-                hash.length,
-                client.getAddress().getInetAddress(),
-                client.getAddress().getPort());
+        // The server encrypts every datagram once it has received the hash, so encrypt UDP
+        // before sending it.
+        client.getServerConnection().getUDPConnection().enableEncryption(secretKeySpec,
+                ivParameterSpec, false);
+        
+        // Attempt to send a raw datagram containing only the hash, tagged with the handshake
+        // session ID so the server only looks up handshake datagrams.
+        ByteBuffer datagram = ByteBuffer.allocate(Connection.SESSION_ID_LENGTH + hash.length);
+        datagram.putInt(Connection.HANDSHAKE_SESSION_ID);
+        datagram.put(hash);
+        datagram.flip();
         
-        // Attempt to send raw hash packet.
         try {
-            client.getUdpSocket().send(hashPacket);
+            client.getUdpChannel().send(datagram,
+                    client.getServerConnection().getUDPConnection().getSocketAddress());
         } catch (IOException e) {
             ClientConnectException exception = new ClientConnectException("Failed to send raw hash"
                     + " to server over UDP.", e);
@@ -1,16 +1,23 @@
 /*
- * To change this license header, choose License Headers in Project Properties.
- * To change this template file, choose Tools | Templates
- * and open the template in the editor.
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
 package net.neto_framework.client.packets.handlers;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
 import java.util.UUID;
 import net.neto_framework.ClientPacketHandler;
 import net.neto_framework.client.Client;
@@ -18,56 +25,34 @@ import net.neto_framework.client.exceptions.ClientConnectException;
 import net.neto_framework.packets.SuccessPacket;
 
 /**
- * 
+ * A client-side packet handler for SuccessPacket. The server sends it once it has received the
+ * raw hash sent over UDP, completing the handshake process.
  *
  * @author Jesse Prescott (BleedObsidian)
  */
 public class SuccessPacketHandler implements ClientPacketHandler<SuccessPacket> {
-
+    
     @Override
     public void onReceivePacket(Client client, SuccessPacket packet) {
-        if(packet.getRandom() == client.getRandom()) {
-            client.setUUID(UUID.fromString(packet.getUUID()));
-        } else {
-            ClientConnectException exception = new ClientConnectException("Received incorrect"
-                    + " random from server.");
-            client.setHandshakeException(exception);
-            client.disconnect(false);
-            
-            return;
-        }
-
-        // Hash success packet and sent it back to server over UDP.
-        String successPacket = client.getUUID().toString() +
-                client.getRandom();
-        MessageDigest md = null;
-
+        
+        // Store the UUID the server knows this client by.
         try {
-            md = MessageDigest.getInstance("SHA-512");
-            //md.update("TEST".getBytes());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Unkown hashing algorithm.", e);
-        }
-
-        byte[] data = md.digest(successPacket.getBytes());
-        data = Base64.getEncoder().withoutPadding().encode(data);
-        DatagramPacket hashedSuccessPacket = new DatagramPacket(data, data.length,
-                client.getAddress().getInetAddress(),
-                client.getAddress().getPort());
-
-        try {
-            client.getUdpSocket().send(hashedSuccessPacket);
-        } catch (IOException e) {
-            ClientConnectException exception = new ClientConnectException(
-                    "Failed to send hashed success packet", e);
+            client.setUUID(UUID.fromString(packet.getUUID()));
+        } catch (IllegalArgumentException e) {
+            ClientConnectException exception = new ClientConnectException("Received invalid UUID"
+                    + " from server.", e);
             client.setHandshakeException(exception);
             client.disconnect(false);
-            
             return;
         }
-
+        
+        // Every frame after the success packet is encrypted, this handler runs before the next
+        // frame is read.
+        client.getServerConnection().enableEncryption();
+        
+        // Place the client in the completed handshake state.
         client.setHandshakeCompleted(true);
         client.getTimer().cancel();
     }
-
+    
 }
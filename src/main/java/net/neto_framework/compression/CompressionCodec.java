@@ -0,0 +1,60 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compression algorithm used to compress large frames. Each connection creates one codec to
+ * compress frames and another to decompress them, reusing them for every frame, so
+ * implementations may keep state between calls but are never used by more than one thread at a
+ * time.
+ * 
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public interface CompressionCodec {
+    
+    /**
+     * @return The ID written in the header of frames compressed with this codec. (1 to 255, must
+     *         be the same on server and client)
+     */
+    public int getId();
+    
+    /**
+     * Compress all of the given data.
+     * 
+     * @param input Data in read mode. (Heap buffer)
+     * @param output Heap buffer in write mode the compressed data is written to.
+     * @return False if the compressed data did not fit in the output buffer, in which case the
+     *         frame is sent uncompressed.
+     */
+    public boolean compress(ByteBuffer input, ByteBuffer output);
+    
+    /**
+     * Decompress all of the given data.
+     * 
+     * @param input Compressed data in read mode. (Heap buffer)
+     * @param output Heap buffer in write mode with exactly enough room left for the decompressed
+     *               data.
+     * @throws IOException If the compressed data is invalid or does not decompress to exactly
+     *                     the room left in the output buffer.
+     */
+    public void decompress(ByteBuffer input, ByteBuffer output) throws IOException;
+}
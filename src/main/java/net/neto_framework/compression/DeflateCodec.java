@@ -0,0 +1,129 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link net.neto_framework.compression.CompressionCodec CompressionCodec} using the JDK's
+ * {@link java.util.zip.Deflater Deflater} and {@link java.util.zip.Inflater Inflater}, which are
+ * reset and reused for every frame.
+ * 
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class DeflateCodec implements CompressionCodec {
+    
+    /**
+     * The ID of frames compressed with this codec.
+     */
+    public static final int ID = 1;
+    
+    /**
+     * The compression level used by new codecs.
+     */
+    public static int LEVEL = Deflater.BEST_SPEED;
+    
+    /**
+     * Deflater used to compress frames. (Lazily created)
+     */
+    private Deflater deflater;
+    
+    /**
+     * Inflater used to decompress frames. (Lazily created)
+     */
+    private Inflater inflater;
+    
+    /**
+     * Room for one more byte, used to check that a frame has no more data than it should.
+     */
+    private final byte[] overflow = new byte[1];
+
+    @Override
+    public int getId() {
+        return DeflateCodec.ID;
+    }
+
+    @Override
+    public boolean compress(ByteBuffer input, ByteBuffer output) {
+        if(this.deflater == null) {
+            this.deflater = new Deflater(DeflateCodec.LEVEL, true);
+        }
+        
+        this.deflater.reset();
+        this.deflater.setInput(input.array(), input.arrayOffset() + input.position(),
+                input.remaining());
+        this.deflater.finish();
+        
+        // Compress until finished or the output buffer is full.
+        while(!this.deflater.finished() && output.hasRemaining()) {
+            int written = this.deflater.deflate(output.array(),
+                    output.arrayOffset() + output.position(), output.remaining());
+            output.position(output.position() + written);
+        }
+        
+        if(!this.deflater.finished()) {
+            return false;
+        }
+        
+        input.position(input.limit());
+        return true;
+    }
+
+    @Override
+    public void decompress(ByteBuffer input, ByteBuffer output) throws IOException {
+        if(this.inflater == null) {
+            this.inflater = new Inflater(true);
+        }
+        
+        this.inflater.reset();
+        this.inflater.setInput(input.array(), input.arrayOffset() + input.position(),
+                input.remaining());
+        
+        try {
+            while(output.hasRemaining()) {
+                int written = this.inflater.inflate(output.array(),
+                        output.arrayOffset() + output.position(), output.remaining());
+                output.position(output.position() + written);
+                
+                if(written == 0 && (this.inflater.finished() || this.inflater.needsInput()
+                        || this.inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            
+            // The end of the stream may not have been read if the output buffer filled exactly.
+            if(!output.hasRemaining() && !this.inflater.finished()
+                    && this.inflater.inflate(this.overflow) > 0) {
+                throw new IOException("Frame decompressed to more than its original length.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Failed to decompress frame.", e);
+        }
+        
+        if(output.hasRemaining() || !this.inflater.finished()) {
+            throw new IOException("Frame did not decompress to its original length.");
+        }
+        
+        input.position(input.limit());
+    }
+}
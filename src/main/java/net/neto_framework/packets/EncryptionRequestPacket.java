@@ -50,6 +50,16 @@ public class EncryptionRequestPacket implements Packet {
      * A random sequence of bytes that must be returned in encrypted form over UDP by the client.
      */
     private byte[] random;
+    
+    /**
+     * The session ID every datagram to and from the client must start with.
+     */
+    private int sessionId;
+    
+    /**
+     * The time compact UDP timestamps are sent relative to.
+     */
+    private long timestampBase;
 
     @Override
     public void send(Connection connection) throws IOException {
@@ -57,6 +67,8 @@ public class EncryptionRequestPacket implements Packet {
         connection.sendByteArray(this.secretKey);
         connection.sendByteArray(this.iv);
         connection.sendByteArray(this.random);
+        connection.sendInteger(this.sessionId);
+        connection.sendLong(this.timestampBase);
     }
 
     @Override
@@ -65,6 +77,8 @@ public class EncryptionRequestPacket implements Packet {
         this.secretKey = connection.receiveByteArray();
         this.iv = connection.receiveByteArray();
         this.random = connection.receiveByteArray();
+        this.sessionId = connection.receiveInteger();
+        this.timestampBase = connection.receiveLong();
     }
     
     /**
@@ -117,6 +131,34 @@ public class EncryptionRequestPacket implements Packet {
     public void setRandom(byte[] random) {
         this.random = random;
     }
+    
+    /**
+     * @return The session ID every datagram to and from the client must start with.
+     */
+    public int getSessionId() {
+        return this.sessionId;
+    }
+    
+    /**
+     * @param sessionId The session ID every datagram to and from the client must start with.
+     */
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+    
+    /**
+     * @return The time compact UDP timestamps are sent relative to.
+     */
+    public long getTimestampBase() {
+        return this.timestampBase;
+    }
+    
+    /**
+     * @param timestampBase The time compact UDP timestamps are sent relative to.
+     */
+    public void setTimestampBase(long timestampBase) {
+        this.timestampBase = timestampBase;
+    }
 
     @Override
     public int getId() {
@@ -21,12 +21,13 @@ package net.neto_framework.packets;
 import java.io.IOException;
 import net.neto_framework.Connection;
 import net.neto_framework.Packet;
+import net.neto_framework.annotations.PacketField;
 
 /**
  * The handshake packet is the first packet sent from client to server. It contains a magic string
  * that is used to check that both parties are using the Neto-Framework. It also contains version
  * information allowing the server to ensure that both parties are using versions of Neto-Framework
- * that work together.
+ * that work together. Encoded by the generated {@link HandshakePacketCodec}.
  *
  * @author Jesse Prescott (BleedObsidian)
  */
@@ -35,30 +36,30 @@ public class HandshakePacket implements Packet {
     /**
      * The magic string that is sent to ensure the same framework is being used.
      */
-    private String magicStringValue;
+    @PacketField(order = 0)
+    String magicStringValue;
     
     /**
      * The version of Neto-Framework the client is running.
      */
-    private String clientVersion;
+    @PacketField(order = 1)
+    String clientVersion;
     
     /**
      * The UDP port the client is listening on.
      */
-    private int listeningUdpPort;
+    @PacketField(order = 2)
+    int listeningUdpPort;
 
     @Override
     public void send(Connection connection) throws IOException {
-        connection.sendString(Connection.MAGIC_STRING);
-        connection.sendString(this.clientVersion);
-        connection.sendInteger(this.listeningUdpPort);
+        this.magicStringValue = Connection.MAGIC_STRING;
+        HandshakePacketCodec.send(this, connection);
     }
     
     @Override
     public void receive(Connection connection) throws IOException {
-        this.magicStringValue = connection.receiveString();
-        this.clientVersion = connection.receiveString();
-        this.listeningUdpPort = connection.receiveInteger();
+        HandshakePacketCodec.receive(this, connection);
     }
     
     /**
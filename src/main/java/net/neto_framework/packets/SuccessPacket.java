@@ -24,8 +24,8 @@ import net.neto_framework.Packet;
 
 /**
  * The success packet is sent from server to client and is the final packet involved in the
- * handshake process. This packet contains sensitive information such as the client's UUID. This
- * UUID will be used by the client to authenticate every incoming and outgoing UDP packet.
+ * handshake process, sent once the server has received the raw hash the client sent over UDP. It
+ * tells the client the UUID the server knows it by.
  *
  * @author BleedObsidian (Jesse Prescott)
  */
@@ -0,0 +1,178 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.packets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.neto_framework.Connection;
+import net.neto_framework.Packet;
+import net.neto_framework.buffer.BufferPool;
+import net.neto_framework.transfer.BulkTransfer;
+
+/**
+ * A single chunk of a {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}, can be sent
+ * to/from either server or client.
+ *
+ * @author Jesse Prescott (BleedObsidian)
+ */
+public class TransferChunkPacket implements Packet {
+    
+    /**
+     * The transfer being sent. (Null when received)
+     */
+    private BulkTransfer transfer;
+    
+    /**
+     * ID of the transfer.
+     */
+    private int transferId;
+    
+    /**
+     * Total length of the transfer.
+     */
+    private long length;
+    
+    /**
+     * Offset of this chunk within the transfer.
+     */
+    private long offset;
+    
+    /**
+     * Length of this chunk.
+     */
+    private int chunkLength;
+    
+    /**
+     * Received chunk data. (Pooled, null until received)
+     */
+    private ByteBuffer data;
+    
+    /**
+     * Used when receiving.
+     */
+    public TransferChunkPacket() {
+    }
+    
+    /**
+     * @param transfer The {@link net.neto_framework.transfer.BulkTransfer BulkTransfer} to send a
+     *                 chunk of.
+     * @param offset Offset of the chunk within the transfer.
+     * @param chunkLength Length of the chunk.
+     */
+    public TransferChunkPacket(BulkTransfer transfer, long offset, int chunkLength) {
+        this.transfer = transfer;
+        this.transferId = transfer.getId();
+        this.length = transfer.getLength();
+        this.offset = offset;
+        this.chunkLength = chunkLength;
+    }
+
+    @Override
+    public void send(Connection connection) throws IOException {
+        connection.sendInteger(this.transferId);
+        connection.sendLong(this.length);
+        connection.sendLong(this.offset);
+        connection.sendInteger(this.chunkLength);
+        connection.send(this.transfer.getFileChannel(),
+                this.transfer.getPosition() + this.offset, this.chunkLength);
+    }
+
+    @Override
+    public void receive(Connection connection) throws IOException {
+        this.transferId = connection.receiveInteger();
+        this.length = connection.receiveLong();
+        this.offset = connection.receiveLong();
+        this.chunkLength = connection.receiveInteger();
+        
+        if(this.length < 0 || this.offset < 0 || this.chunkLength < 0
+                || this.offset > this.length - this.chunkLength) {
+            throw new IOException("Invalid transfer chunk.");
+        }
+        
+        // Check the chunk is in the frame before taking a buffer for it.
+        connection.receiveSection(this.chunkLength);
+        
+        this.data = BufferPool.HEAP.acquire(this.chunkLength);
+        this.data.limit(this.chunkLength);
+        
+        try {
+            connection.receive(this.data);
+        } catch (IOException e) {
+            this.release();
+            throw e;
+        }
+        
+        this.data.flip();
+    }
+    
+    /**
+     * Return the received chunk data to the pool once it has been handled.
+     */
+    public void release() {
+        BufferPool.HEAP.release(this.data);
+        this.data = null;
+    }
+
+    @Override
+    public int getId() {
+        return -5;
+    }
+    
+    /**
+     * @return The transfer being sent. (Null when received)
+     */
+    public BulkTransfer getTransfer() {
+        return this.transfer;
+    }
+    
+    /**
+     * @return ID of the transfer.
+     */
+    public int getTransferId() {
+        return this.transferId;
+    }
+    
+    /**
+     * @return Total length of the transfer.
+     */
+    public long getLength() {
+        return this.length;
+    }
+    
+    /**
+     * @return Offset of this chunk within the transfer.
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+    
+    /**
+     * @return Length of this chunk.
+     */
+    public int getChunkLength() {
+        return this.chunkLength;
+    }
+    
+    /**
+     * @return Received chunk data in read mode. (Null until received)
+     */
+    public ByteBuffer getData() {
+        return this.data;
+    }
+}
@@ -18,32 +18,56 @@
 
 package net.neto_framework.server;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Timer;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import net.neto_framework.Connection;
+import net.neto_framework.FragmentChannel;
+import net.neto_framework.OutboundQueue;
 import net.neto_framework.Packet;
+import net.neto_framework.PacketSender;
 import net.neto_framework.Protocol;
+import net.neto_framework.ReliableChannel;
 import net.neto_framework.exceptions.PacketException;
 import net.neto_framework.packets.DisconnectPacket;
+import net.neto_framework.packets.SuccessPacket;
+import net.neto_framework.packets.TransferChunkPacket;
 import net.neto_framework.server.event.events.ClientDisconnectEvent;
 import net.neto_framework.server.event.events.ClientDisconnectEvent.ClientDisconnectReason;
 import net.neto_framework.server.event.events.ClientFailedToConnectEvent;
 import net.neto_framework.server.event.events.PacketExceptionEvent;
 import net.neto_framework.server.exceptions.ConnectionException;
+import net.neto_framework.transfer.BulkTransfer;
+import net.neto_framework.transfer.BulkTransferManager;
+import net.neto_framework.transfer.TransferListener;
+import net.neto_framework.transfer.TransferProgress;
+import net.neto_framework.utils.SerialExecutor;
 
 /**
- * A thread to handle all client connections individually.
+ * Handles a single client connection, either on its own thread or driven by a
+ * {@link net.neto_framework.server.ServerEventLoop ServerEventLoop}.
  * 
  * @author BleedObsidian (Jesse Prescott)
  */
 public class ClientConnection implements Runnable {
     
+    /**
+     * The maximum number of bulk transfer chunks written each time the channel becomes writable,
+     * so that other connections on the same event loop are not starved.
+     */
+    public static int TRANSFER_CHUNKS_PER_WRITE = 4;
+    
     /**
      * UUID of client.
      */
@@ -69,6 +93,41 @@ public class ClientConnection implements Runnable {
      */
     private Connection udpConnection;
     
+    /**
+     * The server UDP channel datagrams are sent to the client with.
+     */
+    private volatile DatagramChannel udpChannel;
+    
+    /**
+     * The secure channel used when driven by an event loop. (Null if running on its own thread).
+     */
+    private final SecureSocketChannel secureChannel;
+    
+    /**
+     * The event loop this client is registered with. (Null if running on its own thread).
+     */
+    private final ServerEventLoop eventLoop;
+    
+    /**
+     * TCP frames waiting to be written to the socket. (Null if driven by an event loop).
+     */
+    private final OutboundQueue outboundQueue;
+    
+    /**
+     * The bulk transfers of this connection.
+     */
+    private final BulkTransferManager transferManager = new BulkTransferManager();
+    
+    /**
+     * Encodes and sends packets to the client.
+     */
+    private final PacketSender sender;
+    
+    /**
+     * Runs packet handlers in order. (Null if run on the thread that read the packet)
+     */
+    private final SerialExecutor handlerExecutor;
+    
     /**
      * If the client is currently connected.
      */
@@ -79,6 +138,11 @@ public class ClientConnection implements Runnable {
      */
     private int clientUdpPort;
     
+    /**
+     * The session ID every datagram to and from the client starts with.
+     */
+    private volatile int sessionId;
+    
     /**
      * The secret key used for packet encryption.
      */
@@ -95,9 +159,10 @@ public class ClientConnection implements Runnable {
     private byte[] hashedRandom;
     
     /**
-     * A timer used to kick a client if they do not complete the handshake process in enough time.
+     * A scheduled task used to kick a client if they do not complete the handshake process in
+     * enough time.
      */
-    private Timer handshakeTimer;
+    private ScheduledFuture<?> handshakeTimeout;
     
     /**
      * If the client and server have completed the handshake process.
@@ -113,9 +178,78 @@ public class ClientConnection implements Runnable {
         this.server = server;
         this.uuid = uuid;
         this.tcpConnection = tcpConnection;
+        this.secureChannel = null;
+        this.eventLoop = null;
+        this.outboundQueue = new OutboundQueue(tcpConnection.getTCPSocket());
+        this.sender = this.createSender();
+        this.handlerExecutor = server.getHandlerExecutor() != null
+                ? new SerialExecutor(server.getHandlerExecutor()) : null;
         this.storage = new HashMap<>();
         this.isConnected = true;
     }
+    
+    /**
+     * @param server Running instance of {@link net.neto_framework.server.Server Server}.
+     * @param uuid UUID of client.
+     * @param secureChannel The {@link net.neto_framework.server.SecureSocketChannel
+     *                      SecureSocketChannel} of the client.
+     * @param eventLoop The {@link net.neto_framework.server.ServerEventLoop ServerEventLoop} that
+     *                  will drive this connection.
+     */
+    public ClientConnection(Server server, UUID uuid, SecureSocketChannel secureChannel,
+            ServerEventLoop eventLoop) {
+        this.server = server;
+        this.uuid = uuid;
+        this.tcpConnection = new Connection(secureChannel.getChannel());
+        this.secureChannel = secureChannel;
+        this.eventLoop = eventLoop;
+        this.outboundQueue = null;
+        this.sender = this.createSender();
+        this.handlerExecutor = server.getHandlerExecutor() != null
+                ? new SerialExecutor(server.getHandlerExecutor()) : null;
+        this.storage = new HashMap<>();
+        this.isConnected = true;
+    }
+    
+    /**
+     * @return {@link net.neto_framework.PacketSender PacketSender} that writes TCP frames to the
+     *         secure channel or the outbound queue, and sends datagrams with the client's session
+     *         ID.
+     */
+    private PacketSender createSender() {
+        return new PacketSender(this.server.getPacketManager(), this.tcpConnection,
+                this.outboundQueue) {
+            @Override
+            protected CompletableFuture<Void> writeFrame(ByteBuffer frame) throws IOException {
+                if(ClientConnection.this.secureChannel == null) {
+                    return super.writeFrame(frame);
+                }
+                
+                // Hand the frame to the event loop if the channel could not take all of it.
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                if(!ClientConnection.this.secureChannel.write(frame, future)) {
+                    ClientConnection.this.eventLoop.requestWrite(ClientConnection.this);
+                }
+                
+                return future;
+            }
+            
+            @Override
+            protected DatagramChannel getUdpChannel() {
+                return ClientConnection.this.udpChannel;
+            }
+            
+            @Override
+            protected int getSessionId() {
+                return ClientConnection.this.sessionId;
+            }
+            
+            @Override
+            protected void onReliableFailure(IOException e) {
+                ClientConnection.this.onReliableFailure(e);
+            }
+        };
+    }
 
     @Override
     public void run() {
@@ -127,184 +261,438 @@ public class ClientConnection implements Runnable {
         // longer connected.
         while (this.server.isRunning() && this.isConnected) {
             
-            // Define metadata variables.
-            int packetId = 0;
-            long timestamp = 0;
-            
-            // Attempt to receive metadata.
+            // Attempt to read the next whole frame.
             try {
-                packetId = this.tcpConnection.receiveInteger();
-                timestamp = this.tcpConnection.receiveLong();
+                this.tcpConnection.receiveFrame();
             } catch (IOException e) {
-                
-                // Check if the TCP socket has not been closed.
-                if(!this.tcpConnection.getTCPSocket().isClosed()) {
-                    
-                    // Call a packet exception event.
-                    PacketException exception = new PacketException("Failed to read packet. Client"
-                            + " most likely closed the connection without sending a disconnect"
-                            + " packet.", e);
-                    PacketExceptionEvent packetEvent = new PacketExceptionEvent(this.server,
-                            exception, this.uuid);
-                    this.server.getEventHandler().callEvent(packetEvent);
-                    this.disconnect(false);
-                    
-                    // If the client has completed the handshake, call a client disconnect event.
-                    if(this.isHandshakeCompleted) {
-                        ClientDisconnectEvent event = new ClientDisconnectEvent(this.server, 
-                                ClientDisconnectReason.EXCEPTION, this, exception);
-                        this.server.getEventHandler().callEvent(event);
-                    }
-                }
+                this.onReadFailed(e);
                 
                 // End the thread.
                 break;
             }
             
-            // Check to see if the packet arrived within the replay window.
-            if((System.currentTimeMillis() - timestamp) > Connection.REPLAY_WINDOW) {
-                try {
-                    int available = this.tcpConnection.getTCPSocket().getInputStream().available();
-                    this.tcpConnection.getTCPSocket().getInputStream().skip(available);
-                } catch (IOException e) { }
-                
-                continue;
+            // Handle the frame, ending the thread if the client was disconnected.
+            if(!this.handleFrame()) {
+                break;
             }
-            
-            // If the client has not completed the handshake process, they should not be able to
-            // send any other packets except those of the handshake process.
-            if(!this.isHandshakeCompleted && packetId != -1 && packetId != -4) {
-                ConnectionException exception = new ConnectionException("A client sent an unkown"
-                        + " packet or other before completing the handshake process.");
-                ClientFailedToConnectEvent event = new ClientFailedToConnectEvent(this.server,
-                exception);
-                this.server.getEventHandler().callEvent(event);
+        }
+    }
 
-                this.disconnect();
-                break;
+    /**
+     * Called by the {@link net.neto_framework.server.ServerEventLoop ServerEventLoop} when the
+     * channel has data to read.
+     */
+    public void onReadable() {
+        try {
+            int read = this.secureChannel.read();
+            
+            // Handle every whole frame received, leaving any partial frame in the buffer.
+            ByteBuffer inbound = this.secureChannel.getInbound();
+            inbound.flip();
+            try {
+                while(this.isConnected && this.tcpConnection.receiveFrame(inbound)) {
+                    this.handleFrame();
+                }
+            } finally {
+                inbound.compact();
             }
             
-            // Check to see if the server knows the given packet.
-            if(!this.server.getPacketManager().hasPacket(packetId)) {
-                PacketException exception = new PacketException("Unkown TCP packet received.");
-                PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
-                this.server.getEventHandler().callEvent(event);
+            // The client closed the connection.
+            if(read < 0) {
+                throw new EOFException("End of stream.");
+            }
+            
+            // Send any handshake data produced while reading.
+            if(!this.secureChannel.flush()) {
+                this.eventLoop.requestWrite(this);
+            }
+        } catch (IOException e) {
+            this.onReadFailed(e);
+        }
+    }
+    
+    /**
+     * Called by the {@link net.neto_framework.server.ServerEventLoop ServerEventLoop} when the
+     * channel can accept more data.
+     * 
+     * @return True if all queued data has been written.
+     */
+    public boolean onWritable() {
+        try {
+            if(!this.secureChannel.flush()) {
+                return false;
+            }
+            
+            // Send a few queued bulk transfer chunks while the channel keeps up.
+            for(int i = 0; i < ClientConnection.TRANSFER_CHUNKS_PER_WRITE; i++) {
+                TransferChunkPacket chunk = this.transferManager.nextChunk();
                 
-                this.disconnect();
+                if(chunk == null) {
+                    return true;
+                }
+                
+                this.sendTransferChunk(chunk);
+                
+                if(!this.secureChannel.flush()) {
+                    return false;
+                }
+            }
+            
+            return false;
+        } catch (IOException e) {
+            this.onReadFailed(e);
+            return true;
+        }
+    }
+    
+    /**
+     * Decode and handle the packet in the frame currently being read from the TCP connection.
+     * 
+     * @return False if the client was disconnected.
+     */
+    private boolean handleFrame() {
+        
+        // Define metadata variables.
+        int packetId;
+        long timestamp;
+
+        // Attempt to receive metadata.
+        try {
+            packetId = this.tcpConnection.receivePacketId();
+            timestamp = this.tcpConnection.receiveTimestamp();
+        } catch (IOException e) {
+            this.onReadFailed(e);
+            return false;
+        }
+        
+        // Skip the whole frame if the packet did not arrive within the replay window.
+        if((System.currentTimeMillis() - timestamp) > Connection.REPLAY_WINDOW) {
+            return true;
+        }
+
+        // If the client has not completed the handshake process, they should not be able to
+        // send any other packets except those of the handshake process.
+        if(!this.isHandshakeCompleted && packetId != -1 && packetId != -4) {
+            ConnectionException exception = new ConnectionException("A client sent an unkown"
+                    + " packet or other before completing the handshake process.");
+            ClientFailedToConnectEvent event = new ClientFailedToConnectEvent(this.server,
+            exception);
+            this.server.getEventHandler().callEvent(event);
+
+            this.disconnect();
+            return false;
+        }
+
+        // Check to see if the server knows the given packet.
+        if(!this.server.getPacketManager().hasPacket(packetId)) {
+            PacketException exception = new PacketException("Unkown TCP packet received.");
+            PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
+            this.server.getEventHandler().callEvent(event);
+
+            this.disconnect();
+            ClientDisconnectEvent disconnectEvent = new ClientDisconnectEvent(this.server, 
+                    ClientDisconnectReason.EXCEPTION, this, exception);
+            this.server.getEventHandler().callEvent(disconnectEvent);
+            return false;
+        }
+
+        // Attempt to receive packet data.
+        try {
+            this.server.getPacketManager().receive(this.server, packetId, this, Protocol.TCP);
+        } catch (IOException e) {
+            PacketException exception = new PacketException("Failed to read TCP packet"
+                    + " data.", e);
+            PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
+            this.server.getEventHandler().callEvent(event);
+            this.disconnect();
+
+            // If the client has completed the handshake, call a client disconnect event.
+            if(this.isHandshakeCompleted) {
                 ClientDisconnectEvent disconnectEvent = new ClientDisconnectEvent(this.server, 
                         ClientDisconnectReason.EXCEPTION, this, exception);
                 this.server.getEventHandler().callEvent(disconnectEvent);
-                break;
             }
             
-            // Attempt to receive packet data.
-            try {
-                this.server.getPacketManager().receive(this.server, packetId, this, Protocol.TCP);
-            } catch (IOException e) {
-                PacketException exception = new PacketException("Failed to read TCP packet"
-                        + " data.", e);
-                PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Called when reading from the client fails.
+     * 
+     * @param e The IOException that occurred.
+     */
+    private void onReadFailed(IOException e) {
+        
+        // Check if the TCP socket has not been closed.
+        if(!this.tcpConnection.getTCPSocket().isClosed()) {
+
+            // Call a packet exception event.
+            PacketException exception = new PacketException("Failed to read packet. Client"
+                    + " most likely closed the connection without sending a disconnect"
+                    + " packet.", e);
+            PacketExceptionEvent packetEvent = new PacketExceptionEvent(this.server,
+                    exception, this.uuid);
+            this.server.getEventHandler().callEvent(packetEvent);
+            this.disconnect(false);
+
+            // If the client has completed the handshake, call a client disconnect event.
+            if(this.isHandshakeCompleted) {
+                ClientDisconnectEvent event = new ClientDisconnectEvent(this.server, 
+                        ClientDisconnectReason.EXCEPTION, this, exception);
                 this.server.getEventHandler().callEvent(event);
-                this.disconnect();
-                    
-                // If the client has completed the handshake, call a client disconnect event.
-                if(this.isHandshakeCompleted) {
-                    ClientDisconnectEvent disconnectEvent = new ClientDisconnectEvent(this.server, 
-                            ClientDisconnectReason.EXCEPTION, this, exception);
-                    this.server.getEventHandler().callEvent(disconnectEvent);
-                }
             }
         }
     }
 
     /**
-     * Send client packet.
+     * Send client packet, waiting until a TCP packet has been written to the socket. While a
+     * batch is open the packet is only queued until the batch is {@link #flush() flushed}.
      * 
      * @param packet The {@link net.neto_framework.Packet Packet} to send.
      * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
      * @throws IOException If fails to send packet.
      */
-    public synchronized void sendPacket(Packet packet, Protocol protocol) throws IOException {
+    public void sendPacket(Packet packet, Protocol protocol) throws IOException {
+        this.sender.sendPacket(packet, protocol);
+    }
+    
+    /**
+     * Send client packet without waiting for it to be written. TCP packets are queued and written
+     * in order by the transport, UDP packets are sent immediately unless a batch is open.
+     * Reliable UDP packets are always sent immediately, in a datagram of their own.
+     * 
+     * @param packet The {@link net.neto_framework.Packet Packet} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @return CompletableFuture completed once the packet has been written, or for reliable
+     *         UDP once it has been acknowledged, or completed exceptionally with an IOException
+     *         if it could not be.
+     */
+    public CompletableFuture<Void> sendPacketAsync(Packet packet, Protocol protocol) {
+        return this.sender.sendPacketAsync(packet, protocol);
+    }
+    
+    /**
+     * Send several client packets at once, waiting until they have been written. TCP packets are
+     * written with a single write and UDP packets are packed into as few datagrams as possible.
+     * 
+     * @param packets The {@link net.neto_framework.Packet Packets} to send.
+     * @param protocol What {@link net.neto_framework.Protocol Protocol} to use when sending.
+     * @throws IOException If fails to send packets.
+     */
+    public void sendPackets(Collection<? extends Packet> packets, Protocol protocol)
+            throws IOException {
+        this.sender.sendPackets(packets, protocol);
+    }
+    
+    /**
+     * Open a batch. Packets sent until the batch is {@link #flush() flushed} are held back and
+     * then written together, TCP packets with a single write and UDP packets packed into as few
+     * datagrams as possible.
+     */
+    public void beginBatch() {
+        this.sender.beginBatch();
+    }
+    
+    /**
+     * Write every packet sent since the batch was {@link #beginBatch() opened} and close the
+     * batch, waiting until the TCP packets have been written.
+     * 
+     * @throws IOException If fails to send the batched packets.
+     */
+    public void flush() throws IOException {
+        this.sender.flush();
+    }
+    
+    /**
+     * Called when reliable frames could not be resent to the client or it stopped acknowledging
+     * them.
+     * 
+     * @param e The IOException that occurred.
+     */
+    private void onReliableFailure(IOException e) {
+        if(this.isConnected) {
+            PacketException exception = new PacketException("Lost reliable UDP connection to"
+                    + " client.", e);
+            PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception,
+                    this.uuid);
+            this.server.getEventHandler().callEvent(event);
+            this.disconnect();
         
-        // Throw an exception if an attempt to send an unregistered packet is made.
-        if(!this.server.getPacketManager().hasPacket(packet.getId())) {
-            throw new RuntimeException("You can not attempt to send an unregistered packet, please"
-                    + " register it with the PacketManager first.");
+            ClientDisconnectEvent disconnectEvent = new ClientDisconnectEvent(this.server,
+                    ClientDisconnectReason.EXCEPTION, this, exception);
+            this.server.getEventHandler().callEvent(disconnectEvent);
         }
+    }
+    
+    /**
+     * Send part of a file to the client in chunks over TCP. Chunks are sent one at a time, taking
+     * turns with other transfers and packets. Event loop connections send chunks whenever the
+     * channel is writable, otherwise chunks are sent from a shared sender thread.
+     * 
+     * @param source {@link java.nio.channels.FileChannel FileChannel} to read from.
+     * @param position Position within the file to start reading from.
+     * @param length Number of bytes to send.
+     * @param listener {@link net.neto_framework.transfer.TransferListener TransferListener}.
+     *                 (May be null)
+     * @return {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     */
+    public BulkTransfer sendTransfer(FileChannel source, long position, long length,
+            TransferListener listener) {
+        BulkTransfer transfer = this.transferManager.add(source, position, length, listener);
         
-        // If sending the packet over TCP.
-        if(protocol == Protocol.TCP) {
-            // Send the Packet ID.
-            this.tcpConnection.sendInteger(packet.getId());
-            
-            // Send the current timestamp.
-            this.tcpConnection.sendLong(System.currentTimeMillis());
-            
-            // Send the packet data.
-            packet.send(this.tcpConnection);
+        // Start sending chunks if not already doing so.
+        if(this.eventLoop != null) {
+            if(this.transferManager.startSending()) {
+                this.eventLoop.requestWrite(this);
+            }
+        } else {
+            this.transferManager.sendOnSenderThread(new Consumer<TransferChunkPacket>() {
+                @Override
+                public void accept(TransferChunkPacket chunk) {
+                    CompletableFuture<Void> future = ClientConnection.this.sendTransferChunk(chunk);
+                    
+                    try {
+                        ClientConnection.this.outboundQueue.flush(future);
+                    } catch (IOException e) { } // Reported to the transfer by sendTransferChunk.
+                }
+            });
         }
         
-        // If sending the packet over UDP.
-        if(protocol == Protocol.UDP) {
-            // Send the Packet ID.
-            this.udpConnection.sendInteger(packet.getId());
-            
-            // Send the Client's UUID.
-            this.udpConnection.sendString(this.uuid.toString());
-            
-            // Send the current timestamp.
-            this.udpConnection.sendLong(System.currentTimeMillis());
-            
-            // Send the packet data.
-            packet.send(this.udpConnection);
-            
-            // Get the entire packet's data from stream.
-            byte[] data = this.udpConnection.getUdpData();
-            
-            // Encode the entire packet in Base64.
-            data = Base64.getEncoder().withoutPadding().encode(data);
-            
-            // Craft the raw UDP packet.
-            DatagramPacket dataPacket = new DatagramPacket(
-                    data,
-                    data.length,
-                    this.udpConnection.getAddress(),
-                    this.udpConnection.getPort());
-            
-            // Attempt to send the packet.
-            this.server.getUdpSocket().send(dataPacket);
-        }
+        return transfer;
     }
     
     /**
-     * Disconnect client from the server.
+     * Send a whole file to the client in chunks over TCP.
      * 
-     * @param sendDisconnectPacket If true, sends a disconnect packet to the client before closing.
+     * @param source {@link java.nio.channels.FileChannel FileChannel} to read from.
+     * @param listener {@link net.neto_framework.transfer.TransferListener TransferListener}.
+     *                 (May be null)
+     * @return {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     * @throws IOException If fails to get the size of the file.
+     */
+    public BulkTransfer sendTransfer(FileChannel source, TransferListener listener)
+            throws IOException {
+        return this.sendTransfer(source, 0, source.size(), listener);
+    }
+    
+    /**
+     * Send a single bulk transfer chunk without waiting for it to be written, reporting progress
+     * to its transfer once it has been.
+     * 
+     * @param chunk {@link net.neto_framework.packets.TransferChunkPacket TransferChunkPacket}.
+     * @return CompletableFuture completed once the chunk has been written.
      */
-    public synchronized void disconnect(boolean sendDisconnectPacket) {
+    private CompletableFuture<Void> sendTransferChunk(TransferChunkPacket chunk) {
+        BulkTransfer transfer = chunk.getTransfer();
+        int chunkLength = chunk.getChunkLength();
         
-        // Send a disconnect packet to the client if desired.
-        if(sendDisconnectPacket) {
-            try {
-                this.sendPacket(new DisconnectPacket(), Protocol.TCP);
-            } catch (IOException e) {} //TODO: Log
-        }
+        CompletableFuture<Void> future = this.sendPacketAsync(chunk, Protocol.TCP);
+        future.whenComplete(new TransferProgress(transfer, chunkLength));
+        return future;
+    }
+    
+    /**
+     * Send the {@link net.neto_framework.packets.SuccessPacket SuccessPacket} that completes the
+     * handshake, enabling encryption around it. The success packet is the last plain frame sent,
+     * so frames the client encrypts once it receives it can already be opened.
+     * 
+     * @throws IOException If fails to send the success packet.
+     */
+    public void sendSuccess() throws IOException {
+        SuccessPacket packet = new SuccessPacket();
+        packet.setUUID(this.uuid.toString());
         
-        // Attempt to close the TCP socket cleanly.
+        CompletableFuture<Void> future;
+        
+        ReentrantLock sendLock = this.sender.getSendLock();
+        sendLock.lock();
         try {
-            this.tcpConnection.getTCPSocket().close();
-        } catch (IOException e) { } //TODO: Log
+            this.tcpConnection.enableDecryption(this.secretKey, this.ivParameterSpec, true);
+            future = this.sender.queuePacket(packet, Protocol.TCP);
+            this.enableEncryption();
+        } finally {
+            sendLock.unlock();
+        }
         
-        // If the client was in the handshake process cancel the handshake timer.
-        if(!this.isHandshakeCompleted) {
-            this.handshakeTimer.cancel();
+        if(this.outboundQueue != null) {
+            this.outboundQueue.flush(future);
         }
+    }
+    
+    /**
+     * Disconnect client from the server.
+     * 
+     * @param sendDisconnectPacket If true, sends a disconnect packet to the client before closing.
+     */
+    public void disconnect(boolean sendDisconnectPacket) {
+        ReentrantLock sendLock = this.sender.getSendLock();
+        sendLock.lock();
+        try {
+            // Write any packets left in an open batch.
+            try {
+                this.sender.writeBatch();
+            } catch (IOException e) {
+                this.onDisconnectFailed("Failed to send batched packets to client before"
+                        + " disconnecting.", e);
+            }
+            
+            // Send a disconnect packet to the client if desired.
+            if(sendDisconnectPacket) {
+                try {
+                    this.sendPacket(new DisconnectPacket(), Protocol.TCP);
+                } catch (IOException e) {
+                    this.onDisconnectFailed("Failed to send disconnect packet to client.", e);
+                }
+            }
+            
+            // Attempt to close the TCP socket cleanly.
+            if(this.secureChannel != null) {
+                this.secureChannel.close();
+            } else {
+                this.outboundQueue.close();
+                
+                try {
+                    this.tcpConnection.getTCPSocket().close();
+                } catch (IOException e) {
+                    this.onDisconnectFailed("Failed to close client TCP socket.", e);
+                }
+            }
+            
+            // If the client was in the handshake process cancel the handshake timeout.
+            if(!this.isHandshakeCompleted && this.handshakeTimeout != null) {
+                this.handshakeTimeout.cancel(false);
+            }
 
-        // Tell the connection manager to remve the client.
-        this.server.getConnectionManager().removeClientConnection(this.uuid);
-        
-        // Place the ClientConnection into an unconnected state.
-        this.isConnected = false;
+            // Fail any bulk transfers that have not completed.
+            this.transferManager.close();
+            
+            // Fail any reliable frames that have not been acknowledged.
+            this.sender.close();
+
+            // Tell the connection manager to remve the client.
+            this.server.getConnectionManager().removeClientConnection(this.uuid);
+            
+            // Place the ClientConnection into an unconnected state.
+            this.isConnected = false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+    
+    /**
+     * Call a packet exception event for a failure while disconnecting the client, which does not
+     * stop the client being disconnected.
+     * 
+     * @param message Message.
+     * @param e The IOException that occurred.
+     */
+    private void onDisconnectFailed(String message, IOException e) {
+        PacketException exception = new PacketException(message, e);
+        PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception, this.uuid);
+        this.server.getEventHandler().callEvent(event);
     }
     
     /**
@@ -318,8 +706,8 @@ public class ClientConnection implements Runnable {
      * Enable encryption.
      */
     public void enableEncryption() {
-        this.tcpConnection.enableEncryption(this.secretKey, this.ivParameterSpec);
-        this.udpConnection.enableEncryption(this.secretKey, this.ivParameterSpec);
+        this.tcpConnection.enableEncryption(this.secretKey, this.ivParameterSpec, true);
+        this.udpConnection.enableEncryption(this.secretKey, this.ivParameterSpec, true);
     }
     
     /**
@@ -350,6 +738,23 @@ public class ClientConnection implements Runnable {
      */
     public void addUdpConnection(Connection udpConnection) {
         this.udpConnection = udpConnection;
+        this.sender.addUdpConnection(udpConnection);
+        this.udpChannel = this.server.getUdpChannel();
+    }
+    
+    /**
+     * @return The server UDP channel datagrams are sent to the client with.
+     */
+    public DatagramChannel getUdpChannel() {
+        return this.udpChannel;
+    }
+    
+    /**
+     * @param udpChannel The server UDP channel the client's datagrams arrive on, used to send
+     *                   datagrams back to the client.
+     */
+    public void setUdpChannel(DatagramChannel udpChannel) {
+        this.udpChannel = udpChannel;
     }
     
     /**
@@ -396,17 +801,19 @@ public class ClientConnection implements Runnable {
     }
     
     /**
-     * @return {@link java.util.Timer Timer} for handshake process.
+     * @return {@link java.util.concurrent.ScheduledFuture ScheduledFuture} that kicks the client
+     *         if the handshake process takes too long.
      */
-    public Timer getTimer() {
-        return this.handshakeTimer;
+    public ScheduledFuture<?> getHandshakeTimeout() {
+        return this.handshakeTimeout;
     }
     
     /**
-     * @param timer {@link java.util.Timer Timer} for handshake process.
+     * @param timeout {@link java.util.concurrent.ScheduledFuture ScheduledFuture} that kicks the
+     *                client if the handshake process takes too long.
      */
-    public void setTimer(Timer timer) {
-        this.handshakeTimer = timer;
+    public void setHandshakeTimeout(ScheduledFuture<?> timeout) {
+        this.handshakeTimeout = timeout;
     }
     
     /**
@@ -430,6 +837,14 @@ public class ClientConnection implements Runnable {
         return this.uuid;
     }
 
+    /**
+     * @return The {@link net.neto_framework.server.SecureSocketChannel SecureSocketChannel} of the
+     *         client. (Null if running on its own thread).
+     */
+    public SecureSocketChannel getSecureChannel() {
+        return this.secureChannel;
+    }
+
     /**
      * @return TCP {@link net.neto_framework.Connection Connection}.
      */
@@ -444,6 +859,36 @@ public class ClientConnection implements Runnable {
         return this.udpConnection;
     }
     
+    /**
+     * @return {@link net.neto_framework.ReliableChannel ReliableChannel} of the UDP connection.
+     *         (Null until the UDP connection has been added)
+     */
+    public ReliableChannel getReliableChannel() {
+        return this.sender.getReliableChannel();
+    }
+    
+    /**
+     * @return {@link net.neto_framework.FragmentChannel FragmentChannel} of the UDP connection.
+     *         (Null until the UDP connection has been added)
+     */
+    public FragmentChannel getFragmentChannel() {
+        return this.sender.getFragmentChannel();
+    }
+    
+    /**
+     * @return The session ID every datagram to and from the client starts with.
+     */
+    public int getSessionId() {
+        return this.sessionId;
+    }
+    
+    /**
+     * @param sessionId The session ID every datagram to and from the client starts with.
+     */
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+    
     /**
      * @return The UDP port number the client is sending packets from.
      */
@@ -457,4 +902,20 @@ public class ClientConnection implements Runnable {
     public void setClientUdpPort(int clientUdpPort) {
         this.clientUdpPort = clientUdpPort;
     }
+    
+    /**
+     * @return The {@link net.neto_framework.utils.SerialExecutor SerialExecutor} packet handlers
+     *         are run on. (Null if run on the thread that read the packet)
+     */
+    public SerialExecutor getHandlerExecutor() {
+        return this.handlerExecutor;
+    }
+    
+    /**
+     * @return The {@link net.neto_framework.transfer.BulkTransferManager BulkTransferManager} of
+     *         this connection.
+     */
+    public BulkTransferManager getTransferManager() {
+        return this.transferManager;
+    }
 }
@@ -0,0 +1,366 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import net.neto_framework.buffer.BufferPool;
+
+/**
+ * A non-blocking {@link java.nio.channels.SocketChannel SocketChannel} secured with an
+ * {@link javax.net.ssl.SSLEngine SSLEngine}. Used by a
+ * {@link net.neto_framework.server.ServerEventLoop ServerEventLoop} in place of an SSLSocket.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class SecureSocketChannel {
+
+    /**
+     * Empty buffer used to drive the handshake.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * The underlying non-blocking SocketChannel.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The SSLEngine used to wrap and unwrap data.
+     */
+    private final SSLEngine engine;
+
+    /**
+     * Encrypted data read from the channel that has not been unwrapped yet.
+     */
+    private ByteBuffer netInbound;
+
+    /**
+     * Decrypted data waiting to be decoded into packets.
+     */
+    private ByteBuffer inbound;
+
+    /**
+     * Encrypted data waiting to be written to the channel.
+     */
+    private final ArrayDeque<ByteBuffer> netOutbound = new ArrayDeque<>();
+
+    /**
+     * Copies of plain data written before the handshake completed.
+     */
+    private final ArrayDeque<ByteBuffer> pendingOutbound = new ArrayDeque<>();
+
+    /**
+     * Futures completed once the encrypted buffer they are mapped to has been written.
+     */
+    private final IdentityHashMap<ByteBuffer, CompletableFuture<Void>> completions =
+            new IdentityHashMap<>();
+
+    /**
+     * If the TLS handshake has completed.
+     */
+    private boolean isHandshakeComplete;
+
+    /**
+     * @param channel Non-blocking {@link java.nio.channels.SocketChannel SocketChannel}.
+     * @param engine Server mode {@link javax.net.ssl.SSLEngine SSLEngine}.
+     * @throws SSLException If fails to begin the handshake.
+     */
+    public SecureSocketChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.netInbound = BufferPool.DIRECT.acquire(engine.getSession().getPacketBufferSize());
+        this.inbound = BufferPool.HEAP.acquire(engine.getSession().getApplicationBufferSize());
+        this.engine.beginHandshake();
+    }
+
+    /**
+     * Read available data from the channel and unwrap it into the
+     * {@link #getInbound() inbound buffer}.
+     *
+     * @return Number of bytes read from the channel, -1 if end of stream has been reached.
+     * @throws IOException If fails to read or unwrap data.
+     */
+    public synchronized int read() throws IOException {
+        int read = this.channel.read(this.netInbound);
+
+        if(read < 0) {
+            return -1;
+        }
+
+        this.netInbound.flip();
+
+        unwrapLoop:
+        while(this.netInbound.hasRemaining()) {
+            SSLEngineResult result = this.engine.unwrap(this.netInbound, this.inbound);
+
+            switch(result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                this.inbound = BufferPool.HEAP.grow(this.inbound,
+                        this.engine.getSession().getApplicationBufferSize());
+                continue;
+            case BUFFER_UNDERFLOW:
+                if(this.netInbound.limit() == this.netInbound.capacity()) {
+                    this.netInbound.compact();
+                    this.netInbound = BufferPool.DIRECT.grow(this.netInbound,
+                            this.engine.getSession().getPacketBufferSize());
+                    this.netInbound.flip();
+                }
+                break unwrapLoop;
+            case CLOSED:
+                this.netInbound.clear();
+                return -1;
+            default:
+                break;
+            }
+
+            this.onHandshakeStatus(result.getHandshakeStatus());
+
+            if(result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break;
+            }
+        }
+
+        this.netInbound.compact();
+        this.onHandshakeStatus(this.engine.getHandshakeStatus());
+
+        return read;
+    }
+
+    /**
+     * Wrap the given data and attempt to write it to the channel. Data written before the
+     * handshake completes is copied and held until it does.
+     *
+     * @param data Plain data. (Fully consumed, may be reused once this returns)
+     * @return True if all data was written to the channel, false if some is still queued.
+     * @throws IOException If fails to wrap or write data.
+     */
+    public boolean write(ByteBuffer data) throws IOException {
+        return this.write(data, null);
+    }
+
+    /**
+     * Wrap the given data and attempt to write it to the channel. Data written before the
+     * handshake completes is copied and held until it does.
+     *
+     * @param data Plain data. (Fully consumed, may be reused once this returns)
+     * @param future CompletableFuture completed once all of the data has been written to the
+     *               channel. (May be null)
+     * @return True if all data was written to the channel, false if some is still queued.
+     * @throws IOException If fails to wrap or write data.
+     */
+    public synchronized boolean write(ByteBuffer data, CompletableFuture<Void> future)
+            throws IOException {
+        if(!data.hasRemaining()) {
+            if(future != null) {
+                future.complete(null);
+            }
+        } else if(!this.isHandshakeComplete) {
+            ByteBuffer copy = BufferPool.HEAP.acquire(data.remaining());
+            copy.put(data);
+            copy.flip();
+            this.pendingOutbound.add(copy);
+
+            if(future != null) {
+                this.completions.put(copy, future);
+            }
+        } else {
+            this.wrap(data);
+            this.complete(this.netOutbound.peekLast(), future);
+        }
+
+        return this.flush();
+    }
+
+    /**
+     * Write as much queued data to the channel as it will accept, using a single gathering write
+     * when several encrypted buffers are queued.
+     *
+     * @return True if all queued data was written, false if the channel is not ready for more.
+     * @throws IOException If fails to write.
+     */
+    public synchronized boolean flush() throws IOException {
+        while(!this.netOutbound.isEmpty()) {
+            if(this.netOutbound.size() == 1) {
+                this.channel.write(this.netOutbound.peek());
+            } else {
+                this.channel.write(this.netOutbound.toArray(
+                        new ByteBuffer[this.netOutbound.size()]));
+            }
+
+            // Release every buffer that was written completely.
+            while(!this.netOutbound.isEmpty() && !this.netOutbound.peek().hasRemaining()) {
+                ByteBuffer buffer = this.netOutbound.poll();
+                this.complete(null, this.completions.remove(buffer));
+                BufferPool.DIRECT.release(buffer);
+            }
+
+            if(!this.netOutbound.isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Send a close notification, attempt to flush remaining data and close the channel.
+     */
+    public synchronized void close() {
+        try {
+            this.engine.closeOutbound();
+            this.wrap(SecureSocketChannel.EMPTY);
+            this.flush();
+        } catch (IOException e) { }
+
+        try {
+            this.channel.close();
+        } catch (IOException e) { }
+
+        // Return buffers to the pool.
+        while(!this.netOutbound.isEmpty()) {
+            BufferPool.DIRECT.release(this.netOutbound.poll());
+        }
+
+        while(!this.pendingOutbound.isEmpty()) {
+            BufferPool.HEAP.release(this.pendingOutbound.poll());
+        }
+
+        // Fail writes that never made it to the channel.
+        IOException exception = new IOException("Channel closed.");
+        for(Map.Entry<ByteBuffer, CompletableFuture<Void>> entry : this.completions.entrySet()) {
+            entry.getValue().completeExceptionally(exception);
+        }
+
+        this.completions.clear();
+    }
+
+    /**
+     * Complete the given future once the given encrypted buffer has been written.
+     *
+     * @param buffer Encrypted buffer in the outbound queue, or null to complete the future now.
+     * @param future CompletableFuture. (May be null)
+     */
+    private void complete(ByteBuffer buffer, CompletableFuture<Void> future) {
+        if(future == null) {
+            return;
+        }
+
+        if(buffer == null) {
+            future.complete(null);
+        } else {
+            this.completions.put(buffer, future);
+        }
+    }
+
+    /**
+     * Wrap the given data into the outbound queue.
+     *
+     * @param data Plain data.
+     * @throws IOException If fails to wrap data.
+     */
+    private void wrap(ByteBuffer data) throws IOException {
+        do {
+            ByteBuffer buffer = BufferPool.DIRECT.acquire(
+                    this.engine.getSession().getPacketBufferSize());
+            SSLEngineResult result = this.engine.wrap(data, buffer);
+
+            buffer.flip();
+            if(buffer.hasRemaining()) {
+                this.netOutbound.add(buffer);
+            } else {
+                BufferPool.DIRECT.release(buffer);
+            }
+
+            if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                if(data.hasRemaining()) {
+                    throw new SSLException("Attempt to write to a closed channel.");
+                }
+
+                return;
+            }
+
+            this.onHandshakeStatus(result.getHandshakeStatus());
+
+            if(result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break;
+            }
+        } while(data.hasRemaining());
+    }
+
+    /**
+     * Progress the handshake with the given status.
+     *
+     * @param status HandshakeStatus.
+     * @throws IOException If fails to wrap handshake data.
+     */
+    private void onHandshakeStatus(HandshakeStatus status) throws IOException {
+        switch(status) {
+        case NEED_TASK:
+            Runnable task;
+            while((task = this.engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+
+            this.onHandshakeStatus(this.engine.getHandshakeStatus());
+            break;
+        case NEED_WRAP:
+            this.wrap(SecureSocketChannel.EMPTY);
+            break;
+        case FINISHED:
+            this.isHandshakeComplete = true;
+
+            while(!this.pendingOutbound.isEmpty()) {
+                ByteBuffer pending = this.pendingOutbound.poll();
+                this.wrap(pending);
+                this.complete(this.netOutbound.peekLast(), this.completions.remove(pending));
+                BufferPool.HEAP.release(pending);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * The decrypted data waiting to be decoded. The buffer is in write mode, it must be flipped
+     * before reading and compacted afterwards.
+     *
+     * @return Inbound buffer.
+     */
+    public ByteBuffer getInbound() {
+        return this.inbound;
+    }
+
+    /**
+     * @return The underlying {@link java.nio.channels.SocketChannel SocketChannel}.
+     */
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+}
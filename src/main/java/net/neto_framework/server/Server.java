@@ -19,9 +19,14 @@
 package net.neto_framework.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -29,22 +34,29 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import net.neto_framework.PacketManager;
 import net.neto_framework.address.SocketAddress;
 import net.neto_framework.event.EventHandler;
 import net.neto_framework.packets.DisconnectPacket;
+import net.neto_framework.packets.EncryptionRequestPacket;
 import net.neto_framework.packets.HandshakePacket;
 import net.neto_framework.packets.SuccessPacket;
+import net.neto_framework.packets.TransferChunkPacket;
 import net.neto_framework.server.exceptions.ServerException;
 import net.neto_framework.server.packets.handlers.DisconnectPacketHandler;
 import net.neto_framework.server.packets.handlers.HandshakePacketHandler;
+import net.neto_framework.server.packets.handlers.TransferChunkPacketHandler;
+import net.neto_framework.transfer.ServerTransferHandler;
 import net.neto_framework.utils.NetoFramework;
+import net.neto_framework.utils.Threads;
 
 /**
  * A server handler that receives and accepts connections using a given
@@ -60,9 +72,45 @@ public class Server {
     public static final int DEFAULT_BACKLOG = 50;
     
     /**
-     * Default key size for DESede used for encrypting UDP.
+     * Default number of event loop threads used to handle client connections.
      */
-    public static final int DEFAULT_KEYSIZE = 2048;
+    public static final int DEFAULT_EVENT_LOOP_THREADS =
+            Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Default number of UDP channels and threads receiving datagrams.
+     */
+    public static final int DEFAULT_UDP_THREADS = 1;
+    
+    /**
+     * StandardSocketOptions.SO_REUSEPORT, null if not supported by the running JVM. (Java 9+)
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT;
+    
+    static {
+        SocketOption<Boolean> reusePort = null;
+        
+        try {
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            reusePort = option;
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            reusePort = null;
+        }
+        
+        SO_REUSEPORT = reusePort;
+    }
+    
+    /**
+     * The TLS cipher suite used when no KeyStore is provided.
+     */
+    private static final String ANONYMOUS_CIPHER_SUITE = "TLS_ECDH_anon_WITH_3DES_EDE_CBC_SHA";
+    
+    /**
+     * Default key size for AES used for encrypting UDP.
+     */
+    public static final int DEFAULT_KEYSIZE = 128;
     
     /**
      * The version of Neto-Framework the server is using loaded at runtime.
@@ -81,10 +129,11 @@ public class Server {
     private final ServerTCPConnectionHandler tcpConnectionHandler;
     
     /**
-     * The {@link net.neto_framework.server.ServerUDPConnectionHandler 
-     * ServerUDPConnectionHandler}.
+     * The {@link net.neto_framework.server.ServerUDPConnectionHandler
+     * ServerUDPConnectionHandlers}, one per UDP channel.
      */
-    private final ServerUDPConnectionHandler udpConnectionHandler;
+    private ServerUDPConnectionHandler[] udpConnectionHandlers =
+            new ServerUDPConnectionHandler[0];
     
     /**
      * The {@link net.neto_framework.server.ServerConnectionManager
@@ -117,17 +166,58 @@ public class Server {
      * The TCP backlog value.
      */
     private int backlog;
+    
+    /**
+     * The number of event loop threads used to handle client connections.
+     */
+    private int eventLoopThreads;
+    
+    /**
+     * The number of UDP channels sharing the server's port, each read by its own thread.
+     */
+    private int udpThreads;
+    
+    /**
+     * The SSLContext used to secure TCP connections.
+     */
+    private SSLContext sslContext;
 
     /**
-     * The TCP Socket. (If using TCP)
+     * The TCP Socket. (If not using event loops)
      */
     private SSLServerSocket tcpSocket;
     
     /**
-     * The UDP Socket. (If using UDP)
+     * The TCP channel. (If using event loops)
+     */
+    private ServerSocketChannel tcpChannel;
+    
+    /**
+     * The {@link net.neto_framework.server.ServerEventLoop ServerEventLoops} handling client
+     * connections. (Empty if not using event loops)
+     */
+    private ServerEventLoop[] eventLoops = new ServerEventLoop[0];
+    
+    /**
+     * The UDP channels sharing the server's port. (Empty if the server has not been started)
+     */
+    private DatagramChannel[] udpChannels = new DatagramChannel[0];
+    
+    /**
+     * The UDP Socket of the UDP channel. (If using UDP)
      */
     private DatagramSocket udpSocket;
 
+    /**
+     * The executor packet handlers are run on. (Null if run on the thread that read the packet)
+     */
+    private Executor handlerExecutor;
+
+    /**
+     * The handler told about bulk transfers started by clients. (May be null)
+     */
+    private ServerTransferHandler transferHandler;
+
     /**
      * If the server is currently running.
      */
@@ -143,28 +233,33 @@ public class Server {
      */
     public Server(SocketAddress address, KeyStore keyStore, String keyStorePassword) {
         
-        try {
+        try(InputStream stream = Server.class.getResourceAsStream(
+                NetoFramework.PROPERTIES_LOCATION)) {
             Properties properties = new Properties();
-            properties.load(ClassLoader.getSystemResourceAsStream(
-                    NetoFramework.PROPERTIES_LOCATION));
+            properties.load(stream);
             this.version = properties.getProperty("version");
         } catch (IOException e) {
             throw new RuntimeException("Failed to detect version of neto-framework.", e);
         }
         
         this.packetManager = new PacketManager();
-        this.packetManager.registerPacket(HandshakePacket.class, new HandshakePacketHandler());
-        this.packetManager.registerPacket(SuccessPacket.class);
-        this.packetManager.registerPacket(DisconnectPacket.class, new DisconnectPacketHandler());
+        this.packetManager.registerPacket(HandshakePacket::new, new HandshakePacketHandler());
+        this.packetManager.registerPacket(EncryptionRequestPacket::new);
+        this.packetManager.registerPacket(SuccessPacket::new);
+        this.packetManager.registerPacket(DisconnectPacket::new, new DisconnectPacketHandler());
+        this.packetManager.registerPacket(TransferChunkPacket::new,
+                new TransferChunkPacketHandler());
+        this.packetManager.reserveInternalIds();
         
         this.tcpConnectionHandler = new ServerTCPConnectionHandler(this);
-        this.udpConnectionHandler = new ServerUDPConnectionHandler(this);
         
         this.connectionManager = new ServerConnectionManager(this);
         this.eventHandler = new EventHandler();
 
         this.address = address;
         this.backlog = Server.DEFAULT_BACKLOG;
+        this.eventLoopThreads = Server.DEFAULT_EVENT_LOOP_THREADS;
+        this.udpThreads = Server.DEFAULT_UDP_THREADS;
         this.keyStore = keyStore;
         this.keyStorePassword = keyStorePassword;
     }
@@ -189,6 +284,9 @@ public class Server {
         //TODO: Document.
         
         if (!this.isRunning) {
+            // Packets can no longer be registered once clients may send them.
+            this.packetManager.freeze();
+            
             KeyManagerFactory keyManagerFactory = null;
             
             if(this.keyStore != null) {
@@ -221,32 +319,106 @@ public class Server {
                 Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
             }
             
-            try {
-                SSLServerSocketFactory factory = context.getServerSocketFactory();
-                this.tcpSocket = (SSLServerSocket) factory.createServerSocket(
-                        this.address.getPort(), this.backlog, this.address.getInetAddress());
+            this.sslContext = context;
+            
+            if(this.eventLoopThreads > 0) {
+                try {
+                    this.tcpChannel = ServerSocketChannel.open();
+                    this.tcpChannel.bind(new InetSocketAddress(this.address.getInetAddress(),
+                            this.address.getPort()), this.backlog);
+                } catch (IOException e) {
+                    throw new ServerException("Failed to start server on given address.", e);
+                }
                 
-                if(this.keyStore == null) {
-                    this.tcpSocket.setEnabledCipherSuites(new String[] {
-                        "TLS_ECDH_anon_WITH_3DES_EDE_CBC_SHA"});
+                this.eventLoops = new ServerEventLoop[this.eventLoopThreads];
+                for(int i = 0; i < this.eventLoops.length; i++) {
+                    try {
+                        this.eventLoops[i] = new ServerEventLoop(this);
+                    } catch (IOException e) {
+                        this.closeTcpListener();
+                        throw new ServerException("Failed to open event loop selector.", e);
+                    }
                 }
-            } catch (IOException e) {
-                throw new ServerException("Failed to start server on given address.", e);
+            } else {
+                try {
+                    SSLServerSocketFactory factory = context.getServerSocketFactory();
+                    this.tcpSocket = (SSLServerSocket) factory.createServerSocket(
+                            this.address.getPort(), this.backlog, this.address.getInetAddress());
+
+                    if(this.keyStore == null) {
+                        this.tcpSocket.setEnabledCipherSuites(new String[] {
+                            Server.ANONYMOUS_CIPHER_SUITE});
+                    }
+                } catch (IOException e) {
+                    throw new ServerException("Failed to start server on given address.", e);
+                }
+
+                this.tcpSocket.setNeedClientAuth(false);
             }
-            
-            this.tcpSocket.setNeedClientAuth(false);
 
+            // Open every UDP channel on the same port, letting the kernel spread clients across
+            // them.
+            this.udpChannels = new DatagramChannel[Math.max(1, this.udpThreads)];
+            this.udpConnectionHandlers = new ServerUDPConnectionHandler[this.udpChannels.length];
+            
             try {
-                this.udpSocket = new DatagramSocket(this.address.getPort(),
-                        this.address.getInetAddress());
-            } catch (SocketException e) {
+                for(int i = 0; i < this.udpChannels.length; i++) {
+                    this.udpChannels[i] = DatagramChannel.open();
+                    
+                    if(this.udpChannels.length > 1) {
+                        if(Server.SO_REUSEPORT == null || !this.udpChannels[i].supportedOptions()
+                                .contains(Server.SO_REUSEPORT)) {
+                            this.closeUdpChannels();
+                            this.closeTcpListener();
+                            throw new ServerException("Multiple UDP threads require SO_REUSEPORT,"
+                                    + " which is not supported on this platform.");
+                        }
+                        
+                        this.udpChannels[i].setOption(Server.SO_REUSEPORT, true);
+                    }
+                    
+                    this.udpChannels[i].bind(new InetSocketAddress(
+                            this.address.getInetAddress(), this.address.getPort()));
+                    this.udpConnectionHandlers[i] = new ServerUDPConnectionHandler(this,
+                            this.udpChannels[i], i);
+                }
+            } catch (IOException e) {
+                this.closeUdpChannels();
+                this.closeTcpListener();
                 throw new ServerException("Failed to start server on given address.", e);
             }
             
-            (new Thread(this.tcpConnectionHandler)).start();
-            (new Thread(this.udpConnectionHandler)).start();
+            this.udpSocket = this.udpChannels[0].socket();
+            
             this.isRunning = true;
+            
+            for(ServerEventLoop eventLoop : this.eventLoops) {
+                (new Thread(eventLoop)).start();
+            }
+            
+            Threads.newThread(this.tcpConnectionHandler).start();
+            
+            for(ServerUDPConnectionHandler udpConnectionHandler : this.udpConnectionHandlers) {
+                Threads.newThread(udpConnectionHandler).start();
+            }
+        }
+    }
+    
+    /**
+     * Create a new server mode SSLEngine for a client connection accepted by an event loop.
+     * 
+     * @return {@link javax.net.ssl.SSLEngine SSLEngine}.
+     */
+    public SSLEngine createSSLEngine() {
+        SSLEngine engine = this.sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(false);
+        
+        if(this.keyStore == null) {
+            engine.setEnabledCipherSuites(new String[] {Server.ANONYMOUS_CIPHER_SUITE});
         }
+        
+        return engine;
     }
 
     /**
@@ -263,16 +435,66 @@ public class Server {
             
             this.isRunning = false;
             
+            for(ServerEventLoop eventLoop : this.eventLoops) {
+                eventLoop.wakeup();
+            }
+            
             try {
-                this.tcpSocket.close();
+                this.getTcpSocket().close();
             } catch (IOException e) {
                 throw new ServerException("Failed to close server socket.", e);
             }
 
-            this.udpSocket.close();
+            for(DatagramChannel udpChannel : this.udpChannels) {
+                try {
+                    udpChannel.close();
+                } catch (IOException e) {
+                    throw new ServerException("Failed to close UDP channel.", e);
+                }
+            }
         }
     }
     
+    /**
+     * Close every UDP channel opened so far, after failing to open the rest.
+     */
+    private void closeUdpChannels() {
+        for(DatagramChannel udpChannel : this.udpChannels) {
+            if(udpChannel != null) {
+                try {
+                    udpChannel.close();
+                } catch (IOException e) { }
+            }
+        }
+        
+        this.udpChannels = new DatagramChannel[0];
+    }
+    
+    /**
+     * Close the TCP listener and the selectors of the event loops that have not been started yet,
+     * after the server failed to start.
+     */
+    private void closeTcpListener() {
+        for(ServerEventLoop eventLoop : this.eventLoops) {
+            if(eventLoop != null) {
+                eventLoop.close();
+            }
+        }
+        
+        this.eventLoops = new ServerEventLoop[0];
+        
+        try {
+            if(this.tcpChannel != null) {
+                this.tcpChannel.close();
+            } else if(this.tcpSocket != null) {
+                this.tcpSocket.close();
+            }
+        } catch (IOException e) { }
+        
+        this.tcpChannel = null;
+        this.tcpSocket = null;
+    }
+    
     /**
      * @return he version of Neto-Framework the server is using loaded at runtime.
      */
@@ -316,13 +538,67 @@ public class Server {
         this.backlog = backlog;
     }
 
+    /**
+     * @return The number of event loop threads used to handle client connections.
+     */
+    public int getEventLoopThreads() {
+        return this.eventLoopThreads;
+    }
+    
+    /**
+     * @param eventLoopThreads The number of event loop threads used to handle client connections.
+     *                         If 0, each client is handled on its own thread. (Must be set before
+     *                         server is started).
+     */
+    public void setEventLoopThreads(int eventLoopThreads) {
+        this.eventLoopThreads = eventLoopThreads;
+    }
+    
+    /**
+     * @return The number of UDP channels sharing the server's port, each read by its own thread.
+     */
+    public int getUdpThreads() {
+        return this.udpThreads;
+    }
+    
+    /**
+     * @param udpThreads The number of UDP channels opened on the server's port with SO_REUSEPORT,
+     *                   each read by its own thread. The kernel hashes each client to one
+     *                   channel, so a client is always read by the same thread. Values above 1
+     *                   require SO_REUSEPORT. (Java 9+ on Linux, macOS or BSD, must be set before
+     *                   server is started)
+     */
+    public void setUdpThreads(int udpThreads) {
+        this.udpThreads = udpThreads;
+    }
+
     /**
      * @return TCP Server Socket. (Null if not using TCP as protocol or if the
      *         server has not been started.)
      */
     public ServerSocket getTcpSocket() {
+        if(this.tcpChannel != null) {
+            return this.tcpChannel.socket();
+        }
+        
         return this.tcpSocket;
     }
+    
+    /**
+     * @return TCP Server Channel. (Null if not using event loops or if the server has not been
+     *         started.)
+     */
+    public ServerSocketChannel getTcpChannel() {
+        return this.tcpChannel;
+    }
+    
+    /**
+     * @return The {@link net.neto_framework.server.ServerEventLoop ServerEventLoops} handling
+     *         client connections. (Empty if not using event loops)
+     */
+    public ServerEventLoop[] getEventLoops() {
+        return this.eventLoops;
+    }
 
     /**
      * @return UDP Socket. (Null if not using UDP as protocol or if the server
@@ -331,6 +607,59 @@ public class Server {
     public DatagramSocket getUdpSocket() {
         return this.udpSocket;
     }
+    
+    /**
+     * @return The first UDP channel datagrams are sent and received with. (Null if not using UDP
+     *         as protocol or if the server has not been started.)
+     */
+    public DatagramChannel getUdpChannel() {
+        return this.udpChannels.length > 0 ? this.udpChannels[0] : null;
+    }
+    
+    /**
+     * @return Every UDP channel sharing the server's port. (Empty if the server has not been
+     *         started)
+     */
+    public DatagramChannel[] getUdpChannels() {
+        return this.udpChannels;
+    }
+
+    /**
+     * @return The {@link java.util.concurrent.Executor Executor} packet handlers are run on. (Null
+     *         if run on the thread that read the packet)
+     */
+    public Executor getHandlerExecutor() {
+        return this.handlerExecutor;
+    }
+
+    /**
+     * Run packet handlers on the given executor instead of the I/O thread that read the packet.
+     * Each client's packets are still handled one at a time in the order they were received.
+     * 
+     * @param handlerExecutor {@link java.util.concurrent.Executor Executor}, or null to run
+     *                        handlers on the thread that read the packet. (Must be set before
+     *                        server is started).
+     */
+    public void setHandlerExecutor(Executor handlerExecutor) {
+        this.handlerExecutor = handlerExecutor;
+    }
+
+    /**
+     * @return The {@link net.neto_framework.transfer.ServerTransferHandler ServerTransferHandler}
+     *         told about bulk transfers started by clients. (May be null)
+     */
+    public ServerTransferHandler getTransferHandler() {
+        return this.transferHandler;
+    }
+
+    /**
+     * @param transferHandler The {@link net.neto_framework.transfer.ServerTransferHandler
+     *                        ServerTransferHandler} told about bulk transfers started by clients.
+     *                        If null, received transfers are discarded.
+     */
+    public void setTransferHandler(ServerTransferHandler transferHandler) {
+        this.transferHandler = transferHandler;
+    }
 
     /**
      * @return If server is currently running.
@@ -18,17 +18,26 @@
 
 package net.neto_framework.server;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import net.neto_framework.Connection;
 import net.neto_framework.server.event.events.ClientConnectEvent;
 import net.neto_framework.server.event.events.ClientFailedToConnectEvent;
 import net.neto_framework.server.exceptions.ConnectionException;
+import net.neto_framework.utils.Threads;
 
 /**
  * A manager to take care of all client connections.
@@ -53,13 +62,59 @@ public class ServerConnectionManager {
      * A hashmap of all connected {@link net.neto_framework.server.ClientConnection
      * ClientConnections} and their UUID as keys.
      */
-    private volatile HashMap<UUID, ClientConnection> connections = new HashMap<>();
+    private final ConcurrentHashMap<UUID, ClientConnection> connections =
+            new ConcurrentHashMap<>();
     
     /**
      * A hashmap of all connected {@link net.neto_framework.server.ClientConnection
      * ClientConnections} in the handshake process.
      */
-    private volatile HashMap<UUID, ClientConnection> pendingConnections = new HashMap<>();
+    private final ConcurrentHashMap<UUID, ClientConnection> pendingConnections =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * All {@link net.neto_framework.server.ClientConnection ClientConnections}, including those in
+     * the handshake process, keyed by their session ID.
+     */
+    private final SessionTable sessions = new SessionTable();
+    
+    /**
+     * {@link net.neto_framework.server.ClientConnection ClientConnections} in the handshake
+     * process keyed by the hashed random they are expected to send over UDP.
+     */
+    private final ConcurrentHashMap<ByteBuffer, ClientConnection> handshakeTokens =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Connected {@link net.neto_framework.server.ClientConnection ClientConnections} keyed by the
+     * address and port they send UDP packets from.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, ClientConnection> udpSources =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * A single scheduler shared by all servers used to kick clients if they do not complete the
+     * handshake process in enough time. Cancelled timeouts are removed straight away so they do
+     * not hold on to their clients.
+     */
+    private static final ScheduledThreadPoolExecutor HANDSHAKE_TIMER =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "Neto-Framework Handshake Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    
+    static {
+        ServerConnectionManager.HANDSHAKE_TIMER.setRemoveOnCancelPolicy(true);
+    }
+    
+    /**
+     * Used to assign new connections to event loops in turn.
+     */
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
     
     /**
      * Add given TCP clientConnection into pool.
@@ -67,34 +122,129 @@ public class ServerConnectionManager {
      * @param server Running instance of {@link net.neto_framework.server.Server
      *               Server}.
      * @param socket TCP socket used to communicate with client.
-     * @return {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     * @return {@link net.neto_framework.server.ClientConnection ClientConnection}, or null if
+     *         the server has too many sessions and closed the socket.
      */
     public ClientConnection addClientConnection(Server server, Socket socket) {
         UUID uuid = UUID.randomUUID();
         ClientConnection clientConnection = new ClientConnection(server, uuid,
                 new Connection(socket));
         
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                clientConnection.disconnect(false);
-                
-                ConnectionException exception = new ConnectionException("Client took too long to "
-                        + "complete handshake process.");
-                ClientFailedToConnectEvent event = new ClientFailedToConnectEvent(
-                        ServerConnectionManager.this.server, exception);
-                ServerConnectionManager.this.server.getEventHandler().callEvent(event);
-            }
-        }, Connection.HANDSHAKE_TIMEOUT);
-        clientConnection.setTimer(timer);
+        if(this.sessions.add(clientConnection) == 0) {
+            try {
+                socket.close();
+            } catch (IOException e) { } //TODO: Log
+            
+            this.onTooManySessions();
+            return null;
+        }
+        
+        this.pendingConnections.put(uuid, clientConnection);
+        this.scheduleHandshakeTimeout(clientConnection);
+        Threads.newThread(clientConnection).start();
+
+        return clientConnection;
+    }
+    
+    /**
+     * Add given non-blocking TCP channel into pool and register it with one of the server's
+     * {@link net.neto_framework.server.ServerEventLoop ServerEventLoops}.
+     * 
+     * @param server Running instance of {@link net.neto_framework.server.Server
+     *               Server}.
+     * @param channel TCP channel used to communicate with client.
+     * @return {@link net.neto_framework.server.ClientConnection ClientConnection}, or null if
+     *         the server has too many sessions and closed the channel.
+     * @throws IOException If fails to configure channel.
+     */
+    public ClientConnection addClientConnection(Server server, SocketChannel channel)
+            throws IOException {
+        channel.configureBlocking(false);
+        SecureSocketChannel secureChannel = new SecureSocketChannel(channel,
+                server.createSSLEngine());
+        
+        ServerEventLoop[] eventLoops = server.getEventLoops();
+        ServerEventLoop eventLoop = eventLoops[Math.floorMod(this.nextEventLoop.getAndIncrement(),
+                eventLoops.length)];
+        
+        UUID uuid = UUID.randomUUID();
+        ClientConnection clientConnection = new ClientConnection(server, uuid, secureChannel,
+                eventLoop);
+        
+        if(this.sessions.add(clientConnection) == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) { } //TODO: Log
+            
+            this.onTooManySessions();
+            return null;
+        }
         
         this.pendingConnections.put(uuid, clientConnection);
-        (new Thread(clientConnection)).start();
+        this.scheduleHandshakeTimeout(clientConnection);
+        eventLoop.register(clientConnection);
 
         return clientConnection;
     }
     
+    /**
+     * Tell listeners a connection was rejected because every session ID is in use.
+     */
+    private void onTooManySessions() {
+        ConnectionException exception = new ConnectionException("Too many sessions, rejected"
+                + " connection.");
+        ClientFailedToConnectEvent event = new ClientFailedToConnectEvent(this.server, exception);
+        this.server.getEventHandler().callEvent(event);
+    }
+    
+    /**
+     * Kick the given client if they do not complete the handshake process in enough time.
+     * 
+     * @param clientConnection {@link net.neto_framework.server.ClientConnection
+     *                         ClientConnection}.
+     */
+    private void scheduleHandshakeTimeout(ClientConnection clientConnection) {
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                ServerConnectionManager.this.onHandshakeTimeout(clientConnection);
+            }
+        };
+        
+        clientConnection.setHandshakeTimeout(ServerConnectionManager.HANDSHAKE_TIMER.schedule(
+                timeout, Connection.HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    /**
+     * Called on the shared timer thread when the given client has not completed the handshake
+     * process in time.
+     * 
+     * @param clientConnection {@link net.neto_framework.server.ClientConnection
+     *                         ClientConnection}.
+     */
+    private void onHandshakeTimeout(ClientConnection clientConnection) {
+        // Only one of the timeout and the validation may take the client out of the pending
+        // connections, the other does nothing.
+        if(!this.pendingConnections.remove(clientConnection.getUUID(), clientConnection)) {
+            return;
+        }
+        
+        // Never let a failure escape, the timer thread is shared by every server.
+        try {
+            clientConnection.disconnect(false);
+            this.removeSession(clientConnection);
+            
+            ConnectionException exception = new ConnectionException("Client took too long to "
+                    + "complete handshake process.");
+            ClientFailedToConnectEvent event = new ClientFailedToConnectEvent(this.server,
+                    exception);
+            this.server.getEventHandler().callEvent(event);
+        } catch (Throwable e) {
+            Logger.getLogger(ServerConnectionManager.class.getName()).log(Level.SEVERE,
+                    "Failed to kick client that took too long to complete handshake process.", e);
+        }
+    }
+    
     /**
      * Called by a {@link net.neto_framework.packets.HandshakePacket HandshakePacket} when a client
      * has completed the handshake process.
@@ -102,10 +252,37 @@ public class ServerConnectionManager {
      * @param uuid UUID of client.
      */
     public void onConnectionValidated(UUID uuid) {
-        ClientConnection client = this.pendingConnections.get(uuid);
+        ClientConnection client = this.pendingConnections.remove(uuid);
+        
+        // The client may have timed out or disconnected before its hash arrived.
+        if(client == null) {
+            return;
+        }
+        
         this.connections.put(uuid, client);
-        this.pendingConnections.remove(uuid);
-        client.getTimer().cancel();
+        this.removeHandshakeToken(client);
+        client.getHandshakeTimeout().cancel(false);
+        
+        if(client.getUDPConnection() != null) {
+            this.udpSources.put(ServerConnectionManager.getUdpSource(client), client);
+        }
+        
+        // Place the client in the completed handshake state before telling it so, as it may
+        // start sending packets as soon as it receives the success packet.
+        client.setHandshakeCompleted(true);
+        
+        try {
+            client.sendSuccess();
+        } catch (IOException e) {
+            client.disconnect(false);
+            
+            ConnectionException exception = new ConnectionException("Failed to send success"
+                    + " packet to client.", e);
+            ClientFailedToConnectEvent event = new ClientFailedToConnectEvent(this.server,
+                    exception);
+            this.server.getEventHandler().callEvent(event);
+            return;
+        }
         
         ClientConnectEvent event = new ClientConnectEvent(this.server, client);
         this.server.getEventHandler().callEvent(event);
@@ -117,8 +294,62 @@ public class ServerConnectionManager {
      * @param uuid UUID of ClientConnection.
      */
     public void removeClientConnection(UUID uuid) {
-        this.connections.remove(uuid);
-        this.pendingConnections.remove(uuid);
+        ClientConnection client = this.connections.remove(uuid);
+        
+        if(client == null) {
+            client = this.pendingConnections.remove(uuid);
+        }
+        
+        if(client != null) {
+            this.removeSession(client);
+        }
+    }
+            
+    /**
+     * Stop routing datagrams to the given client that has been removed from the pool.
+     * 
+     * @param client {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     */
+    private void removeSession(ClientConnection client) {
+        this.sessions.remove(client);
+        this.removeHandshakeToken(client);
+        
+        if(client.getUDPConnection() != null) {
+            this.udpSources.remove(ServerConnectionManager.getUdpSource(client), client);
+        }
+    }
+    
+    /**
+     * Register the hashed random the given client in the handshake process is expected to send
+     * over UDP.
+     * 
+     * @param client {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     * @param hashedRandom SHA-512 hash of the random sent to the client.
+     */
+    public void addHandshakeToken(ClientConnection client, byte[] hashedRandom) {
+        client.setHashedRandom(hashedRandom);
+        this.handshakeTokens.put(ByteBuffer.wrap(hashedRandom), client);
+    }
+    
+    /**
+     * Stop expecting the hashed random of the given client.
+     * 
+     * @param client {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     */
+    private void removeHandshakeToken(ClientConnection client) {
+        if(client.getHashedRandom() != null) {
+            this.handshakeTokens.remove(ByteBuffer.wrap(client.getHashedRandom()), client);
+        }
+    }
+    
+    /**
+     * @param client Connected {@link net.neto_framework.server.ClientConnection
+     *               ClientConnection} with a UDP connection.
+     * @return The address and port the given client sends UDP packets from.
+     */
+    private static InetSocketAddress getUdpSource(ClientConnection client) {
+        return new InetSocketAddress(client.getUDPConnection().getAddress(),
+                client.getClientUdpPort());
     }
 
     /**
@@ -141,6 +372,16 @@ public class ServerConnectionManager {
         return this.connections.get(uuid);
     }
     
+    /**
+     * Get ClientConnection from the session ID a datagram started with.
+     * 
+     * @param sessionId Session ID.
+     * @return Connection. (May be null)
+     */
+    public ClientConnection getClientConnection(int sessionId) {
+        return this.sessions.get(sessionId);
+    }
+    
     /**
      * Get ClientConnection from given IP address.
      * 
@@ -149,14 +390,33 @@ public class ServerConnectionManager {
      * @return Connection. (May be null)
      */
     public ClientConnection getClientConnection(InetAddress address, int clientUdpPort) {
-        for(ClientConnection connection : this.connections.values()) {
-            if(connection.getTCPConnection().getTCPSocket().getInetAddress().equals(address) &&
-                    connection.getClientUdpPort() == clientUdpPort) {
-                return connection;
-            }
+        return this.getClientConnection(new InetSocketAddress(address, clientUdpPort));
+    }
+    
+    /**
+     * Get ClientConnection from the address and port it sends UDP packets from.
+     * 
+     * @param source InetSocketAddress a datagram was received from.
+     * @return Connection. (May be null)
+     */
+    public ClientConnection getClientConnection(InetSocketAddress source) {
+        return this.udpSources.get(source);
+    }
+    
+    /**
+     * Get the ClientConnection in the handshake process that is expected to send the given hashed
+     * random.
+     * 
+     * @param hashedRandom Rest of a handshake datagram in read mode. (Not consumed)
+     * @return Connection. (May be null)
+     */
+    public ClientConnection getPendingClientConnection(ByteBuffer hashedRandom) {
+        if(hashedRandom.remaining() != Connection.HASHED_RANDOM_LENGTH
+                || this.handshakeTokens.isEmpty()) {
+            return null;
         }
         
-        return null;
+        return this.handshakeTokens.get(hashedRandom);
     }
     
     /**
@@ -0,0 +1,163 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import net.neto_framework.exceptions.PacketException;
+import net.neto_framework.server.event.events.PacketExceptionEvent;
+
+/**
+ * An event loop that reads and writes many client connections on a single thread using a
+ * {@link java.nio.channels.Selector Selector}.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class ServerEventLoop implements Runnable {
+
+    /**
+     * Running instance of Server.
+     */
+    private final Server server;
+
+    /**
+     * The Selector used to wait for channels to become ready.
+     */
+    private final Selector selector;
+
+    /**
+     * Client connections waiting to be registered with the selector.
+     */
+    private final ConcurrentLinkedQueue<ClientConnection> registrations =
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * Client connections that have data waiting to be written.
+     */
+    private final ConcurrentLinkedQueue<ClientConnection> writeRequests =
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param server Running instance of {@link net.neto_framework.server.Server Server}.
+     * @throws IOException If fails to open selector.
+     */
+    public ServerEventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        // Name this thread.
+        Thread.currentThread().setName("Neto-Framework Server Event Loop");
+
+        // Continuously select ready channels until the server has stopped.
+        while(this.server.isRunning()) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                PacketException exception = new PacketException("Event loop failed to select"
+                        + " ready channels.", e);
+                PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
+                this.server.getEventHandler().callEvent(event);
+                break;
+            }
+
+            // Register new client connections.
+            ClientConnection client;
+            while((client = this.registrations.poll()) != null) {
+                try {
+                    client.getSecureChannel().getChannel().register(this.selector,
+                            SelectionKey.OP_READ, client);
+                } catch (ClosedChannelException e) { }
+            }
+
+            // Start listening for writability on connections with queued data.
+            while((client = this.writeRequests.poll()) != null) {
+                SelectionKey key = client.getSecureChannel().getChannel().keyFor(this.selector);
+
+                if(key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+
+            // Handle ready channels.
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while(iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                client = (ClientConnection) key.attachment();
+
+                if(key.isValid() && key.isReadable()) {
+                    client.onReadable();
+                }
+
+                if(key.isValid() && key.isWritable() && client.onWritable()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        try {
+            this.selector.close();
+        } catch (IOException e) { }
+    }
+
+    /**
+     * Register the given client connection with this event loop.
+     *
+     * @param client {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     */
+    public void register(ClientConnection client) {
+        this.registrations.add(client);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Called when the given client connection has data queued that could not be written
+     * immediately.
+     *
+     * @param client {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     */
+    public void requestWrite(ClientConnection client) {
+        this.writeRequests.add(client);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Wake the event loop so it can notice that the server has stopped.
+     */
+    public void wakeup() {
+        this.selector.wakeup();
+    }
+
+    /**
+     * Close the selector of an event loop that was never started, after the server failed to
+     * start.
+     */
+    public void close() {
+        try {
+            this.selector.close();
+        } catch (IOException e) { }
+    }
+}
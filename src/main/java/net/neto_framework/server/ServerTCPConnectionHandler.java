@@ -20,6 +20,7 @@ package net.neto_framework.server;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import net.neto_framework.server.event.events.ClientFailedToConnectEvent;
 import net.neto_framework.server.exceptions.ConnectionException;
 
@@ -52,11 +53,19 @@ public class ServerTCPConnectionHandler extends Thread {
             
             // Attempt to create connection.
             try {
-                //    Accept TCP socket.
-                Socket socket = this.server.getTcpSocket().accept();
-                
-                //    Pass on to connection manager.
-                this.server.getConnectionManager().addClientConnection(this.server, socket);
+                if(this.server.getTcpChannel() != null) {
+                    //    Accept TCP channel.
+                    SocketChannel channel = this.server.getTcpChannel().accept();
+                    
+                    //    Pass on to connection manager to register with an event loop.
+                    this.server.getConnectionManager().addClientConnection(this.server, channel);
+                } else {
+                    //    Accept TCP socket.
+                    Socket socket = this.server.getTcpSocket().accept();
+
+                    //    Pass on to connection manager.
+                    this.server.getConnectionManager().addClientConnection(this.server, socket);
+                }
             } catch (IOException e) {
                 if(!this.server.getTcpSocket().isClosed()) {
                     ClientFailedToConnectEvent event = new ClientFailedToConnectEvent(this.server,
@@ -18,14 +18,14 @@
 
 package net.neto_framework.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.util.Arrays;
-import java.util.Base64;
-import java.util.UUID;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import net.neto_framework.Connection;
 import net.neto_framework.Protocol;
+import net.neto_framework.ReliableChannel;
+import net.neto_framework.buffer.BufferPool;
 import net.neto_framework.exceptions.PacketException;
 import net.neto_framework.server.event.events.PacketExceptionEvent;
 
@@ -35,86 +35,112 @@ import net.neto_framework.server.event.events.PacketExceptionEvent;
  * @author BleedObsidian (Jesse Prescott)
  */
 public class ServerUDPConnectionHandler extends Thread {
+    
+    /**
+     * The size of the buffer datagrams are received into, large enough for the largest possible
+     * datagram.
+     */
+    private static final int BUFFER_SIZE = 65536;
 
     /**
      * Running instance of Server.
      */
     private final Server server;
+    
+    /**
+     * The UDP channel read by this handler.
+     */
+    private final DatagramChannel channel;
+    
+    /**
+     * The index of the UDP channel among the server's UDP channels.
+     */
+    private final int index;
 
     /**
      * @param server Running instance of {@link net.neto_framework.server.Server Server}.
+     * @param channel The UDP channel to read, one of the channels sharing the server's port.
+     * @param index The index of the UDP channel among the server's UDP channels.
      */
-    public ServerUDPConnectionHandler(Server server) {
+    public ServerUDPConnectionHandler(Server server, DatagramChannel channel, int index) {
         this.server = server;
+        this.channel = channel;
+        this.index = index;
     }
 
     @Override
     public void run() {
         // Name this thread.
-        Thread.currentThread().setName("Neto-Framework Server UDP Handler");
+        Thread.currentThread().setName("Neto-Framework Server UDP Handler #" + this.index);
+        
+        // Acquire a single buffer large enough for any datagram, reused for every datagram.
+        ByteBuffer buffer = BufferPool.DIRECT.acquire(ServerUDPConnectionHandler.BUFFER_SIZE);
         
         // Continuously read UDP packets until the server is no longer running.
-        mainLoop:
         while (this.server.isRunning()) {
             
-            // Create a data buffer and packet.
-            byte[] data = new byte[65508];
-            DatagramPacket dataPacket = new DatagramPacket(data, data.length);
-
-            // Attempt to read UDP data and place it into the data buffer.
+            // Attempt to read a whole datagram into the buffer.
+            InetSocketAddress source;
+            buffer.clear();
+            
             try {
-                this.server.getUdpSocket().receive(dataPacket);
+                source = (InetSocketAddress) this.channel.receive(buffer);
             } catch (IOException e) {
-                if(!this.server.getUdpSocket().isClosed()) {
+                if(this.channel.isOpen()) {
                     PacketException exception = new PacketException("Failed to read an incoming"
                             + " UDP packet.", e);
                     PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
                     this.server.getEventHandler().callEvent(event);
                 }
+                
+                continue;
             }
             
-            // Trim the data if it does not fit exactly into 65508 bytes.
-            //    Store the length of the data.
-            int i = data.length - 1;
+            buffer.flip();
+            
+            // Read the session ID every datagram starts with.
+            int sessionId = Connection.HANDSHAKE_SESSION_ID;
             
-            //    Iterate through data array and reduce the size of the data length for every null
-            //    null byte found.
-            while(i >= 0 && data[i] == 0) {
-                --i;
+            if(buffer.remaining() >= Connection.SESSION_ID_LENGTH) {
+                sessionId = buffer.getInt();
             }
             
-            //   Copy the array but truncate any bytes above found length.
-            data = Arrays.copyOf(data, i + 1);
+            // Check if the data received is actually the hashed random of a pending (in handshake
+            // process) client. Only handshake datagrams are looked up.
+            ClientConnection pending = null;
             
-            // Decode the data with Base64.
-            data = Base64.getDecoder().decode(data);
+            if(sessionId == Connection.HANDSHAKE_SESSION_ID) {
+                pending = this.server.getConnectionManager().getPendingClientConnection(buffer);
+            }
             
-            // Check if the data received is actually a hashed random.
-            //    Loop through each pending (in handshake process) client.
-            for(ClientConnection client :
-                    this.server.getConnectionManager().getPendingClientConnections()) {
+            if(pending != null) {
+                //    Record the port that this packet came from so the correct cipher can be
+                //    used in the future when reading UDP packets.
+                pending.setClientUdpPort(source.getPort());
                 
-                //    Check if the data is equal to their hash.
-                if(Arrays.equals(data, client.getHashedRandom())) {
-                    
-                    //    Validate the connection completing the handshake process server side.
-                    this.server.getConnectionManager().onConnectionValidated(client.getUUID());
-                    
-                    //    Record the port that this packet came from so the correct cipher can be
-                    //    used in the future when reading UDP packets.
-                    client.setClientUdpPort(dataPacket.getPort());
-                    
-                    //    Place the client in the completed handshake state.
-                    client.setHandshakeCompleted(true);
-                    
-                    //    Continue main loop ready to read another UDP packet.
-                    continue mainLoop;
-                }
+                //    Reply over the channel the client's datagrams arrive on.
+                pending.setUdpChannel(this.channel);
+                
+                //    Validate the connection completing the handshake process server side and
+                //    send the client the success packet.
+                this.server.getConnectionManager().onConnectionValidated(pending.getUUID());
+                
+                //    Continue main loop ready to read another UDP packet.
+                continue;
+            }
+            
+            // Attempt to retreive the ClientConnection that sent this UDP packet from the session
+            // ID it starts with, making sure it came from where that client sends packets from.
+            ClientConnection client = null;
+            
+            if(sessionId != Connection.HANDSHAKE_SESSION_ID) {
+                client = this.server.getConnectionManager().getClientConnection(sessionId);
             }
             
-            // Attempt to retreive the ClientConnection that sent this UDP packet.
-            ClientConnection client = this.server.getConnectionManager().getClientConnection(
-                    dataPacket.getAddress(), dataPacket.getPort());
+            if(client != null
+                    && this.server.getConnectionManager().getClientConnection(source) != client) {
+                client = null;
+            }
             
             // Check if we managed to find a ClientConnection.
             if(client == null) {
@@ -128,54 +154,99 @@ public class ServerUDPConnectionHandler extends Thread {
             // Load the UDP connection interface for the client.
             Connection connection = client.getUDPConnection();
             
-            // Place the data into a stream so the connection interface can read it.
-            connection.setUdpDataInputStream(new ByteArrayInputStream(data));
-            
-            // Define metadata variables.
-            int packetId = 0;
-            UUID uuid = null;
-            long timestamp = 0;
-            
-            // Attempt to read metadata.
+            // Open the record straight from the buffer into the connection interface's input
+            // buffer, dropping replayed datagrams.
             try {
-                packetId = connection.receiveInteger();
-                uuid = UUID.fromString(connection.receiveString());
-                timestamp = connection.receiveLong();
+                if(!connection.receiveDatagram(buffer)) {
+                    continue;
+                }
             } catch (IOException e) {
-                PacketException exception = new PacketException("Failed to read metadata for"
-                        + " incoming UDP packet.", e);
+                PacketException exception = new PacketException("Failed to decrypt incoming UDP"
+                        + " packet.", e);
                 PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
                 this.server.getEventHandler().callEvent(event);
-            }
-            
-            // Check to see if the packet arrived within the replay window.
-            if((System.currentTimeMillis() - timestamp) > Connection.REPLAY_WINDOW) {
                 continue;
             }
             
-            // Check to see if the received UUID is valid.
-            if(!client.getUUID().equals(uuid)) {
-                PacketException exception = new PacketException("UDP Packet was received with an"
-                        + " invalid UUID.");
+            // Hold fragments until the whole frame has arrived.
+            try {
+                if(!client.getFragmentChannel().receiveFrame(connection)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                PacketException exception = new PacketException("Failed to reassemble incoming"
+                        + " UDP packet.", e);
                 PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
                 this.server.getEventHandler().callEvent(event);
+                continue;
             }
             
-            // Check to see if the server knows the given packet.
-            if(!this.server.getPacketManager().hasPacket(packetId)) {
-                PacketException exception = new PacketException("Unkown UDP packet received.");
-                PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
-                this.server.getEventHandler().callEvent(event);
-            }
+            // Read the reliability header of reliable frames, skipping frames that must not be
+            // delivered now.
+            ReliableChannel reliableChannel = client.getReliableChannel();
+            Protocol protocol;
             
-            // Attempt to read packet data.
             try {
-                this.server.getPacketManager().receive(this.server, packetId, client, Protocol.UDP);
+                protocol = reliableChannel.receiveFrame(connection);
             } catch (IOException e) {
-                PacketException exception = new PacketException("Failed to read UDP packet.", e);
+                PacketException exception = new PacketException("Failed to read reliability"
+                        + " header of incoming UDP packet.", e);
                 PacketExceptionEvent event = new PacketExceptionEvent(this.server, exception);
                 this.server.getEventHandler().callEvent(event);
+                continue;
+            }
+            
+            if(protocol == null) {
+                continue;
             }
+            
+            // Read every packet packed into the datagram, followed by any held back reliable
+            // frames it allowed to be delivered.
+            do {
+                while(connection.hasRemaining()) {
+                    // Define metadata variables.
+                    int packetId = 0;
+                    
+                    // Attempt to read metadata.
+                    try {
+                        packetId = connection.receivePacketId();
+                    } catch (IOException e) {
+                        PacketException exception = new PacketException("Failed to read metadata"
+                                + " for incoming UDP packet.", e);
+                        PacketExceptionEvent event = new PacketExceptionEvent(this.server,
+                                exception);
+                        this.server.getEventHandler().callEvent(event);
+                        break;
+                    }
+                    
+                    // Check to see if the server knows the given packet.
+                    if(!this.server.getPacketManager().hasPacket(packetId)) {
+                        PacketException exception = new PacketException("Unkown UDP packet"
+                                + " received.");
+                        PacketExceptionEvent event = new PacketExceptionEvent(this.server,
+                                exception);
+                        this.server.getEventHandler().callEvent(event);
+                        break;
+                    }
+                    
+                    // Attempt to read packet data.
+                    try {
+                        this.server.getPacketManager().receive(this.server, packetId, client,
+                                protocol);
+                    } catch (IOException e) {
+                        PacketException exception = new PacketException("Failed to read UDP"
+                                + " packet.", e);
+                        PacketExceptionEvent event = new PacketExceptionEvent(this.server,
+                                exception);
+                        this.server.getEventHandler().callEvent(event);
+                        break;
+                    }
+                }
+                
+                protocol = Protocol.RELIABLE_UDP;
+            } while(reliableChannel.receiveHeldFrame(connection));
         }
+        
+        BufferPool.DIRECT.release(buffer);
     }
 }
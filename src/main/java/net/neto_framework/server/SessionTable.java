@@ -0,0 +1,157 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A table of {@link net.neto_framework.server.ClientConnection ClientConnections} keyed by the
+ * session ID every datagram from the client starts with. The low 24 bits of a session ID index
+ * the table directly, so a lookup is a single array read. Only the high 8 bits are random, so a
+ * stale or guessed session ID matches a reused slot 1 time in 256. A session ID is therefore only
+ * a lookup key, not a secret, the real guard is that datagrams are also checked against the
+ * address the client sends from and the records it seals.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class SessionTable {
+
+    /**
+     * The number of low bits of a session ID used as the slot index, allowing 16,777,216
+     * sessions at once and leaving 8 random bits.
+     */
+    private static final int SLOT_BITS = 24;
+
+    /**
+     * Mask of the slot index bits.
+     */
+    private static final int SLOT_MASK = (1 << SessionTable.SLOT_BITS) - 1;
+
+    /**
+     * The initial number of slots.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Used to generate the random bits of session IDs.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Client connections indexed by slot. (Replaced when grown)
+     */
+    private volatile AtomicReferenceArray<ClientConnection> slots =
+            new AtomicReferenceArray<>(SessionTable.INITIAL_CAPACITY);
+
+    /**
+     * Slots released by removed clients, reused before new slots are taken.
+     */
+    private int[] freeSlots = new int[SessionTable.INITIAL_CAPACITY];
+
+    /**
+     * Number of released slots.
+     */
+    private int freeCount;
+
+    /**
+     * The next slot that has never been used.
+     */
+    private int nextSlot;
+
+    /**
+     * Add the given client connection and give it a new session ID.
+     *
+     * @param client {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     * @return Session ID, or 0 if every slot is in use.
+     */
+    public synchronized int add(ClientConnection client) {
+        int slot;
+
+        // Reuse a released slot or take a new one, growing the table if needed.
+        if(this.freeCount > 0) {
+            slot = this.freeSlots[--this.freeCount];
+        } else {
+            if(this.nextSlot > SessionTable.SLOT_MASK) {
+                return 0;
+            }
+
+            slot = this.nextSlot++;
+
+            if(slot == this.slots.length()) {
+                AtomicReferenceArray<ClientConnection> grown =
+                        new AtomicReferenceArray<>(slot * 2);
+                for(int i = 0; i < slot; i++) {
+                    grown.set(i, this.slots.get(i));
+                }
+
+                this.slots = grown;
+            }
+        }
+
+        int sessionId;
+        do {
+            sessionId = (this.random.nextInt() << SessionTable.SLOT_BITS) | slot;
+        } while(sessionId == 0);
+
+        client.setSessionId(sessionId);
+        this.slots.set(slot, client);
+        return sessionId;
+    }
+
+    /**
+     * Remove the given client connection, its session ID will no longer match.
+     *
+     * @param client {@link net.neto_framework.server.ClientConnection ClientConnection}.
+     */
+    public synchronized void remove(ClientConnection client) {
+        int slot = client.getSessionId() & SessionTable.SLOT_MASK;
+
+        if(slot >= this.slots.length() || this.slots.get(slot) != client) {
+            return;
+        }
+
+        this.slots.set(slot, null);
+
+        if(this.freeCount == this.freeSlots.length) {
+            int[] grown = new int[this.freeCount * 2];
+            System.arraycopy(this.freeSlots, 0, grown, 0, this.freeCount);
+            this.freeSlots = grown;
+        }
+
+        this.freeSlots[this.freeCount++] = slot;
+    }
+
+    /**
+     * @param sessionId Session ID.
+     * @return {@link net.neto_framework.server.ClientConnection ClientConnection} with the given
+     *         session ID. (May be null)
+     */
+    public ClientConnection get(int sessionId) {
+        AtomicReferenceArray<ClientConnection> slots = this.slots;
+        int slot = sessionId & SessionTable.SLOT_MASK;
+
+        if(slot >= slots.length()) {
+            return null;
+        }
+
+        ClientConnection client = slots.get(slot);
+        return client != null && client.getSessionId() == sessionId ? client : null;
+    }
+}
@@ -30,6 +30,13 @@ public class ServerException extends Exception {
      */
     private static final long serialVersionUID = -1234551643243035737L;
 
+    /**
+     * @param message Reason for exception.
+     */
+    public ServerException(String message) {
+        super(message);
+    }
+
     /**
      * @param message Reason for exception.
      * @param exception Cause exception.
@@ -27,6 +27,7 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import net.neto_framework.Connection;
 import net.neto_framework.Protocol;
+import net.neto_framework.RecordCipher;
 import net.neto_framework.ServerPacketHandler;
 import net.neto_framework.packets.EncryptionRequestPacket;
 import net.neto_framework.packets.HandshakePacket;
@@ -60,15 +61,15 @@ public class HandshakePacketHandler implements ServerPacketHandler<HandshakePack
         // Create new secure random.
         SecureRandom secureRandom = new SecureRandom();
         
-        // Generate a new DESede secret key and IV Parameter.
+        // Generate a new AES secret key and IV Parameter.
         try {
             KeyGenerator generator;
-            generator = KeyGenerator.getInstance("DESede");
+            generator = KeyGenerator.getInstance(RecordCipher.KEY_ALGORITHM);
             generator.init(Server.DEFAULT_KEYSIZE);
             SecretKey secretKey = generator.generateKey();
             client.setSecretKey(secretKey);
 
-            byte[] iv = new byte[8];
+            byte[] iv = new byte[RecordCipher.NONCE_LENGTH];
             secureRandom.nextBytes(iv);
             IvParameterSpec ivSpec = new IvParameterSpec(iv);
             client.setIvParameterSpec(ivSpec);
@@ -85,7 +86,7 @@ public class HandshakePacketHandler implements ServerPacketHandler<HandshakePack
         try {
             MessageDigest messageDigest = MessageDigest.getInstance("SHA-512");
             byte[] hashedRandom = messageDigest.digest(random);
-            client.setHashedRandom(hashedRandom);
+            server.getConnectionManager().addHandshakeToken(client, hashedRandom);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Failed to hash random.", e);
         }
@@ -96,6 +97,7 @@ public class HandshakePacketHandler implements ServerPacketHandler<HandshakePack
                 client.getTCPConnection().getTCPSocket().getInetAddress(),
                 packet.getListeningUdpPort()
             );
+        udpConnection.setTimestampBase(System.currentTimeMillis());
         client.addUdpConnection(udpConnection);
         
         // Craft an EncryptionRequestPacket.
@@ -103,6 +105,8 @@ public class HandshakePacketHandler implements ServerPacketHandler<HandshakePack
         encryptionRequestPacket.setSecretKey(client.getSecretKey().getEncoded());
         encryptionRequestPacket.setIv(client.getIvParameterSpec().getIV());
         encryptionRequestPacket.setRandom(random);
+        encryptionRequestPacket.setSessionId(client.getSessionId());
+        encryptionRequestPacket.setTimestampBase(udpConnection.getTimestampBase());
         
         // Attempt to send EncryptionRequestPacket.
         try {
@@ -0,0 +1,72 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.server.packets.handlers;
+
+import java.io.IOException;
+import net.neto_framework.ServerPacketHandler;
+import net.neto_framework.exceptions.PacketException;
+import net.neto_framework.packets.TransferChunkPacket;
+import net.neto_framework.server.ClientConnection;
+import net.neto_framework.server.Server;
+import net.neto_framework.server.event.events.PacketExceptionEvent;
+import net.neto_framework.transfer.BulkTransfer;
+import net.neto_framework.transfer.BulkTransferManager;
+
+/**
+ * A server-side packet handler for TransferChunkPacket.
+ *
+ * @author Jesse Prescott (BleedObsidian)
+ */
+public class TransferChunkPacketHandler implements ServerPacketHandler<TransferChunkPacket> {
+
+    @Override
+    public void onReceivePacket(Server server, ClientConnection client,
+            TransferChunkPacket packet) {
+        BulkTransferManager manager = client.getTransferManager();
+        
+        try {
+            BulkTransfer transfer = manager.getIncoming(packet.getTransferId());
+            
+            // If this is the first chunk, start tracking the transfer and let the server decide
+            // where to put it.
+            if(transfer == null) {
+                if(packet.getOffset() != 0) {
+                    throw new IOException("Chunk received for unknown transfer.");
+                }
+                
+                transfer = manager.addIncoming(packet.getTransferId(), packet.getLength());
+                
+                if(server.getTransferHandler() != null) {
+                    server.getTransferHandler().onTransferStart(server, client, transfer);
+                }
+            }
+            
+            manager.receive(transfer, packet);
+        } catch (IOException e) {
+            PacketException exception = new PacketException("Failed to receive transfer chunk.",
+                    e);
+            PacketExceptionEvent event = new PacketExceptionEvent(server, exception,
+                    client.getUUID());
+            server.getEventHandler().callEvent(event);
+        } finally {
+            packet.release();
+        }
+    }
+
+}
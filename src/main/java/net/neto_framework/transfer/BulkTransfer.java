@@ -0,0 +1,298 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import net.neto_framework.packets.TransferChunkPacket;
+
+/**
+ * A large block of data sent over a TCP connection in chunks. Chunks are read straight from a
+ * {@link java.nio.channels.FileChannel FileChannel} when sending and written straight to a
+ * FileChannel or memory region when receiving, so the whole transfer is never held in memory.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class BulkTransfer {
+
+    /**
+     * The maximum size of a single chunk in bytes.
+     */
+    public static int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * ID of the transfer, unique per connection and direction.
+     */
+    private final int id;
+
+    /**
+     * Total length of the transfer in bytes.
+     */
+    private final long length;
+
+    /**
+     * The FileChannel data is read from or written to. (May be null)
+     */
+    private FileChannel fileChannel;
+
+    /**
+     * The position within the file channel the transfer starts at.
+     */
+    private long position;
+
+    /**
+     * The memory region data is written to. (May be null)
+     */
+    private ByteBuffer region;
+
+    /**
+     * Listener notified of progress. (May be null)
+     */
+    private TransferListener listener;
+
+    /**
+     * Number of bytes handed out as chunks to be sent.
+     */
+    private long scheduled;
+
+    /**
+     * Number of bytes sent or received.
+     */
+    private volatile long transferred;
+
+    /**
+     * If at least one chunk has been sent or received.
+     */
+    private volatile boolean isStarted;
+
+    /**
+     * If the transfer has failed.
+     */
+    private volatile boolean isFailed;
+
+    /**
+     * An outgoing transfer.
+     *
+     * @param id ID of the transfer.
+     * @param source {@link java.nio.channels.FileChannel FileChannel} to read from.
+     * @param position Position within the file to start reading from.
+     * @param length Number of bytes to send.
+     * @param listener {@link net.neto_framework.transfer.TransferListener TransferListener}.
+     *                 (May be null)
+     */
+    public BulkTransfer(int id, FileChannel source, long position, long length,
+            TransferListener listener) {
+        if(position < 0 || length < 0) {
+            throw new IllegalArgumentException("Position and length must not be negative.");
+        }
+
+        this.id = id;
+        this.fileChannel = source;
+        this.position = position;
+        this.length = length;
+        this.listener = listener;
+    }
+
+    /**
+     * An incoming transfer.
+     *
+     * @param id ID of the transfer.
+     * @param length Number of bytes that will be received.
+     */
+    public BulkTransfer(int id, long length) {
+        this.id = id;
+        this.length = length;
+    }
+
+    /**
+     * Write received data to the given file channel.
+     *
+     * @param destination {@link java.nio.channels.FileChannel FileChannel} to write to.
+     * @param position Position within the file to start writing at.
+     */
+    public void setDestination(FileChannel destination, long position) {
+        this.fileChannel = destination;
+        this.position = position;
+        this.region = null;
+    }
+
+    /**
+     * Write received data to the given memory region, for example a
+     * {@link java.nio.MappedByteBuffer MappedByteBuffer}.
+     *
+     * @param region Region starting at its current position with room for the whole transfer.
+     */
+    public void setDestination(ByteBuffer region) {
+        if(region.remaining() < this.length) {
+            throw new IllegalArgumentException("Region is too small for transfer.");
+        }
+
+        this.region = region.slice();
+        this.fileChannel = null;
+    }
+
+    /**
+     * Create the packet for the next chunk to send.
+     *
+     * @return {@link net.neto_framework.packets.TransferChunkPacket TransferChunkPacket}.
+     */
+    public TransferChunkPacket nextChunk() {
+        int chunkLength = (int) Math.min(BulkTransfer.CHUNK_SIZE, this.length - this.scheduled);
+        TransferChunkPacket packet = new TransferChunkPacket(this, this.scheduled, chunkLength);
+        this.scheduled += chunkLength;
+
+        return packet;
+    }
+
+    /**
+     * @return If there are chunks that have not been handed out to be sent yet.
+     */
+    public boolean hasMoreChunks() {
+        return !this.isFailed && (this.scheduled < this.length
+                || (this.length == 0 && !this.isStarted));
+    }
+
+    /**
+     * Called once a chunk has been sent.
+     *
+     * @param chunkLength Length of the chunk.
+     */
+    public void onChunkSent(int chunkLength) {
+        this.isStarted = true;
+        this.transferred += chunkLength;
+
+        if(this.listener != null) {
+            this.listener.onProgress(this);
+        }
+    }
+
+    /**
+     * Write a received chunk to the destination.
+     *
+     * @param offset Offset of the chunk within the transfer.
+     * @param data Chunk data in read mode.
+     * @throws IOException If the chunk is out of order or fails to write.
+     */
+    public void onChunkReceived(long offset, ByteBuffer data) throws IOException {
+        if(offset != this.transferred || offset + data.remaining() > this.length) {
+            throw new IOException("Transfer chunk out of order.");
+        }
+
+        int chunkLength = data.remaining();
+
+        if(this.fileChannel != null) {
+            long writePosition = this.position + offset;
+            while(data.hasRemaining()) {
+                writePosition += this.fileChannel.write(data, writePosition);
+            }
+        } else if(this.region != null) {
+            ByteBuffer target = this.region.duplicate();
+            target.position((int) offset);
+            target.put(data);
+        }
+
+        this.isStarted = true;
+        this.transferred += chunkLength;
+
+        if(this.listener != null) {
+            this.listener.onProgress(this);
+        }
+    }
+
+    /**
+     * Mark the transfer as failed.
+     *
+     * @param exception The IOException that caused the transfer to fail.
+     */
+    public void onFailed(IOException exception) {
+        if(this.isFailed) {
+            return;
+        }
+
+        this.isFailed = true;
+
+        if(this.listener != null) {
+            this.listener.onFailed(this, exception);
+        }
+    }
+
+    /**
+     * @return ID of the transfer.
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * @return Total length of the transfer in bytes.
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return Number of bytes sent or received so far.
+     */
+    public long getTransferred() {
+        return this.transferred;
+    }
+
+    /**
+     * @return If the whole transfer has been sent or received.
+     */
+    public boolean isComplete() {
+        return this.isStarted && this.transferred == this.length;
+    }
+
+    /**
+     * @return If the transfer has failed.
+     */
+    public boolean isFailed() {
+        return this.isFailed;
+    }
+
+    /**
+     * @return The FileChannel data is read from or written to. (May be null)
+     */
+    public FileChannel getFileChannel() {
+        return this.fileChannel;
+    }
+
+    /**
+     * @return The position within the file channel the transfer starts at.
+     */
+    public long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return {@link net.neto_framework.transfer.TransferListener TransferListener}. (May be null)
+     */
+    public TransferListener getListener() {
+        return this.listener;
+    }
+
+    /**
+     * @param listener {@link net.neto_framework.transfer.TransferListener TransferListener}.
+     */
+    public void setListener(TransferListener listener) {
+        this.listener = listener;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.transfer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import net.neto_framework.packets.TransferChunkPacket;
+import net.neto_framework.utils.Threads;
+
+/**
+ * Tracks the bulk transfers of a single connection. Outgoing transfers are sent one chunk at a
+ * time in turn, so that several transfers and ordinary packets share the connection fairly.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class BulkTransferManager {
+
+    /**
+     * The number of shared threads sending chunks for connections without an event loop. (Must
+     * be set before the first transfer is sent)
+     */
+    public static int SENDER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The maximum number of chunks a sender thread sends for one connection before taking turns
+     * with other connections.
+     */
+    public static int CHUNKS_PER_TURN = 4;
+
+    /**
+     * Shared threads that send chunks for connections without an event loop.
+     */
+    private static final ExecutorService SENDERS = Executors.newFixedThreadPool(
+            BulkTransferManager.SENDER_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = Threads.newThread(task);
+                    thread.setName("Neto-Framework Transfer Sender");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Outgoing transfers with chunks left to send, in the order they will be sent.
+     */
+    private final ArrayDeque<BulkTransfer> outgoing = new ArrayDeque<>();
+
+    /**
+     * Incoming transfers that have not completed yet.
+     */
+    private final HashMap<Integer, BulkTransfer> incoming = new HashMap<>();
+
+    /**
+     * The ID of the next outgoing transfer.
+     */
+    private int nextId;
+
+    /**
+     * If chunks are currently being sent.
+     */
+    private boolean isSending;
+
+    /**
+     * Queue a new outgoing transfer.
+     *
+     * @param source {@link java.nio.channels.FileChannel FileChannel} to read from.
+     * @param position Position within the file to start reading from.
+     * @param length Number of bytes to send.
+     * @param listener {@link net.neto_framework.transfer.TransferListener TransferListener}.
+     *                 (May be null)
+     * @return {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     */
+    public synchronized BulkTransfer add(FileChannel source, long position, long length,
+            TransferListener listener) {
+        BulkTransfer transfer = new BulkTransfer(this.nextId++, source, position, length,
+                listener);
+        this.outgoing.add(transfer);
+
+        return transfer;
+    }
+
+    /**
+     * Mark that chunks are being sent.
+     *
+     * @return False if chunks were already being sent, in which case the caller should not start
+     *         sending them.
+     */
+    public synchronized boolean startSending() {
+        if(this.isSending) {
+            return false;
+        }
+
+        this.isSending = true;
+        return true;
+    }
+
+    /**
+     * Send queued chunks on a shared sender thread if not already doing so. Chunks are sent a few
+     * at a time, so that connections sharing the sender threads take turns.
+     *
+     * @param sender Sends a single chunk, waiting until it has been written.
+     */
+    public void sendOnSenderThread(Consumer<TransferChunkPacket> sender) {
+        if(!this.startSending()) {
+            return;
+        }
+
+        BulkTransferManager.SENDERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0; i < BulkTransferManager.CHUNKS_PER_TURN; i++) {
+                    TransferChunkPacket chunk = BulkTransferManager.this.nextChunk();
+
+                    if(chunk == null) {
+                        return;
+                    }
+
+                    sender.accept(chunk);
+                }
+
+                BulkTransferManager.SENDERS.execute(this);
+            }
+        });
+    }
+
+    /**
+     * Take the next chunk to send, moving its transfer to the back of the queue. Once there are no
+     * chunks left the manager is marked as no longer sending.
+     *
+     * @return {@link net.neto_framework.packets.TransferChunkPacket TransferChunkPacket}, or null
+     *         if there are no chunks left to send.
+     */
+    public synchronized TransferChunkPacket nextChunk() {
+        BulkTransfer transfer;
+        while((transfer = this.outgoing.poll()) != null && !transfer.hasMoreChunks()) { }
+
+        if(transfer == null) {
+            this.isSending = false;
+            return null;
+        }
+
+        TransferChunkPacket packet = transfer.nextChunk();
+
+        if(transfer.hasMoreChunks()) {
+            this.outgoing.add(transfer);
+        }
+
+        return packet;
+    }
+
+    /**
+     * @param id ID of an incoming transfer.
+     * @return {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}, or null if there is
+     *         no incoming transfer with the given ID.
+     */
+    public synchronized BulkTransfer getIncoming(int id) {
+        return this.incoming.get(id);
+    }
+
+    /**
+     * Start tracking a new incoming transfer.
+     *
+     * @param id ID of the transfer.
+     * @param length Number of bytes that will be received.
+     * @return {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     */
+    public synchronized BulkTransfer addIncoming(int id, long length) {
+        BulkTransfer transfer = new BulkTransfer(id, length);
+        this.incoming.put(id, transfer);
+
+        return transfer;
+    }
+
+    /**
+     * Write a received chunk to its transfer, no longer tracking the transfer once it has
+     * completed or failed.
+     *
+     * @param transfer {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     * @param packet {@link net.neto_framework.packets.TransferChunkPacket TransferChunkPacket}.
+     * @throws IOException If the chunk fails to be written.
+     */
+    public void receive(BulkTransfer transfer, TransferChunkPacket packet) throws IOException {
+        try {
+            transfer.onChunkReceived(packet.getOffset(), packet.getData());
+        } catch (IOException e) {
+            this.removeIncoming(transfer.getId());
+            transfer.onFailed(e);
+            throw e;
+        }
+
+        if(transfer.isComplete()) {
+            this.removeIncoming(transfer.getId());
+        }
+    }
+
+    /**
+     * @param id ID of an incoming transfer to no longer track.
+     */
+    private synchronized void removeIncoming(int id) {
+        this.incoming.remove(id);
+    }
+
+    /**
+     * Fail every transfer that has not completed. (Used when the connection is closed)
+     */
+    public void close() {
+        ArrayList<BulkTransfer> transfers;
+        synchronized(this) {
+            transfers = new ArrayList<>(this.outgoing);
+            transfers.addAll(this.incoming.values());
+            this.outgoing.clear();
+            this.incoming.clear();
+        }
+
+        IOException exception = new IOException("Connection closed.");
+        for(BulkTransfer transfer : transfers) {
+            transfer.onFailed(exception);
+        }
+    }
+}
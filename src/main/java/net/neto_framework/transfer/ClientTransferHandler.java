@@ -0,0 +1,39 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.transfer;
+
+import net.neto_framework.client.Client;
+
+/**
+ * An interface that will be called when the server starts a bulk transfer to the client.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public interface ClientTransferHandler {
+
+    /**
+     * Called when the first chunk of a transfer is received. A destination must be set with
+     * {@link net.neto_framework.transfer.BulkTransfer#setDestination(
+     * java.nio.channels.FileChannel, long) setDestination()}, otherwise the data is discarded.
+     *
+     * @param client Running instance of Client.
+     * @param transfer {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     */
+    public void onTransferStart(Client client, BulkTransfer transfer);
+}
@@ -0,0 +1,45 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.transfer;
+
+import java.io.IOException;
+
+/**
+ * An interface used to follow the progress of a {@link net.neto_framework.transfer.BulkTransfer
+ * BulkTransfer}.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public interface TransferListener {
+
+    /**
+     * Called each time a chunk of the transfer has been sent or received.
+     *
+     * @param transfer {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     */
+    public void onProgress(BulkTransfer transfer);
+
+    /**
+     * Called if the transfer fails, no more progress will be made.
+     *
+     * @param transfer {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     * @param exception The IOException that caused the transfer to fail.
+     */
+    public void onFailed(BulkTransfer transfer, IOException exception);
+}
@@ -0,0 +1,62 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.transfer;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * Reports a chunk of a {@link net.neto_framework.transfer.BulkTransfer BulkTransfer} as sent, or
+ * the transfer as failed, once the future of the chunk's write completes.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class TransferProgress implements BiConsumer<Void, Throwable> {
+
+    /**
+     * The transfer the chunk belongs to.
+     */
+    private final BulkTransfer transfer;
+
+    /**
+     * Length of the chunk.
+     */
+    private final int chunkLength;
+
+    /**
+     * @param transfer {@link net.neto_framework.transfer.BulkTransfer BulkTransfer} the chunk
+     *                 belongs to.
+     * @param chunkLength Length of the chunk.
+     */
+    public TransferProgress(BulkTransfer transfer, int chunkLength) {
+        this.transfer = transfer;
+        this.chunkLength = chunkLength;
+    }
+
+    @Override
+    public void accept(Void result, Throwable failure) {
+        if(failure == null) {
+            this.transfer.onChunkSent(this.chunkLength);
+        } else if(failure instanceof IOException) {
+            this.transfer.onFailed((IOException) failure);
+        } else {
+            this.transfer.onFailed(new IOException("Failed to send transfer chunk.", failure));
+        }
+    }
+}
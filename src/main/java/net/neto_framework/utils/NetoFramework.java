@@ -25,8 +25,7 @@ package net.neto_framework.utils;
  */
 public class NetoFramework {
     /**
-     * The location within the jar of the pom.properties file used to load version information.
+     * The location within the jar of the build.properties file used to load version information.
      */
-    public static final String PROPERTIES_LOCATION = 
-            "/META-INF/maven/com.neto-framework/Neto-Framework/pom.properties";
+    public static final String PROPERTIES_LOCATION = "/net/neto_framework/build.properties";
 }
@@ -0,0 +1,127 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.utils;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that runs tasks one at a time in the order they were submitted on top of a shared
+ * executor. Each connection has its own SerialExecutor so packet handlers of one connection run
+ * in order while handlers of different connections run in parallel.
+ *
+ * @author Jesse Prescott (BleedObsidian)
+ */
+public class SerialExecutor implements Executor {
+    
+    /**
+     * The maximum number of tasks run before giving the shared executor's thread up to other
+     * connections.
+     */
+    public static int MAX_BATCH_SIZE = 64;
+    
+    /**
+     * The shared executor tasks are run on.
+     */
+    private final Executor executor;
+    
+    /**
+     * Tasks waiting to be run.
+     */
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    
+    /**
+     * Runs queued tasks on the shared executor.
+     */
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            SerialExecutor.this.drain();
+        }
+    };
+    
+    /**
+     * If the drain task has been submitted to the shared executor and not finished.
+     */
+    private boolean isScheduled;
+    
+    /**
+     * @param executor The shared {@link java.util.concurrent.Executor Executor} tasks are run on.
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized(this.tasks) {
+            this.tasks.add(task);
+            
+            if(this.isScheduled) {
+                return;
+            }
+            
+            this.isScheduled = true;
+        }
+        
+        this.schedule();
+    }
+    
+    /**
+     * Submit the drain task to the shared executor.
+     */
+    private void schedule() {
+        try {
+            this.executor.execute(this.drainTask);
+        } catch (RuntimeException e) {
+            synchronized(this.tasks) {
+                this.isScheduled = false;
+            }
+            
+            throw e;
+        }
+    }
+    
+    /**
+     * Run queued tasks in order until there are none left or the batch size is reached.
+     */
+    private void drain() {
+        for(int i = 0; i < SerialExecutor.MAX_BATCH_SIZE; i++) {
+            Runnable task;
+            synchronized(this.tasks) {
+                task = this.tasks.poll();
+                
+                if(task == null) {
+                    this.isScheduled = false;
+                    return;
+                }
+            }
+            
+            // A failing task must not stop the tasks queued after it.
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+        
+        this.schedule();
+    }
+}
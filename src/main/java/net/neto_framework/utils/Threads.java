@@ -0,0 +1,128 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Properties;
+
+/**
+ * A static utility class used to create the threads that run blocking connection loops. When
+ * virtual threads are enabled and the running JVM supports them (Java 21+), these loops run on
+ * virtual threads so that a single JVM can hold a very large number of mostly idle connections.
+ *
+ * <p>Virtual threads are enabled by default in builds made with the <code>java21</code> Maven
+ * profile and can be toggled at runtime with the <code>neto.virtualThreads</code> system
+ * property. Virtual threads never keep the JVM alive, so applications using them must keep their
+ * own main thread running.</p>
+ *
+ * @author Jesse Prescott (BleedObsidian)
+ */
+public class Threads {
+    
+    /**
+     * The system property used to enable or disable virtual threads.
+     */
+    public static final String VIRTUAL_THREADS_PROPERTY = "neto.virtualThreads";
+    
+    /**
+     * The location within the jar of the properties written by the build.
+     */
+    public static final String BUILD_PROPERTIES_LOCATION =
+            "/net/neto_framework/build.properties";
+    
+    /**
+     * Thread.ofVirtual(), null if not supported or not enabled.
+     */
+    private static final Method OF_VIRTUAL;
+    
+    /**
+     * Thread.Builder.unstarted(Runnable), null if not supported or not enabled.
+     */
+    private static final Method UNSTARTED;
+    
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        
+        if(Threads.isVirtualThreadsEnabled()) {
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted",
+                        Runnable.class);
+            } catch (NoSuchMethodException | ClassNotFoundException e) {
+                ofVirtual = null;
+                unstarted = null;
+            }
+        }
+        
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+    
+    /**
+     * Create a new unstarted thread for the given task, a virtual thread if they are enabled and
+     * supported.
+     * 
+     * @param task Runnable task.
+     * @return Thread.
+     */
+    public static Thread newThread(Runnable task) {
+        if(Threads.OF_VIRTUAL != null) {
+            try {
+                return (Thread) Threads.UNSTARTED.invoke(Threads.OF_VIRTUAL.invoke(null), task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException("Failed to create virtual thread.", e);
+            }
+        }
+        
+        return new Thread(task);
+    }
+    
+    /**
+     * @return If new threads are virtual threads.
+     */
+    public static boolean isVirtual() {
+        return Threads.OF_VIRTUAL != null;
+    }
+    
+    /**
+     * @return If virtual threads have been enabled by the system property or the build.
+     */
+    private static boolean isVirtualThreadsEnabled() {
+        String value = System.getProperty(Threads.VIRTUAL_THREADS_PROPERTY);
+        
+        if(value == null) {
+            Properties properties = new Properties();
+            
+            try(InputStream stream = Threads.class.getResourceAsStream(
+                    Threads.BUILD_PROPERTIES_LOCATION)) {
+                if(stream != null) {
+                    properties.load(stream);
+                }
+            } catch (IOException e) { }
+            
+            value = properties.getProperty("virtualThreads");
+        }
+        
+        return Boolean.parseBoolean(value);
+    }
+}
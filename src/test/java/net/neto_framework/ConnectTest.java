@@ -0,0 +1,393 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import net.neto_framework.address.SocketAddress;
+import net.neto_framework.client.Client;
+import net.neto_framework.client.ServerConnection;
+import net.neto_framework.server.ClientConnection;
+import net.neto_framework.server.Server;
+import net.neto_framework.server.event.ServerEventListener;
+import net.neto_framework.server.exceptions.ServerException;
+import net.neto_framework.server.event.events.ClientConnectEvent;
+import net.neto_framework.transfer.BulkTransfer;
+import net.neto_framework.transfer.ClientTransferHandler;
+import net.neto_framework.transfer.ServerTransferHandler;
+import net.neto_framework.transfer.TransferListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Starts a server on the loopback interface and connects a client to it.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class ConnectTest {
+    
+    /**
+     * Password of the generated KeyStore.
+     */
+    private static final String PASSWORD = "password";
+    
+    /**
+     * Folder the generated KeyStore is written to.
+     */
+    @ClassRule
+    public static final TemporaryFolder FOLDER = new TemporaryFolder();
+    
+    /**
+     * KeyStore holding a self-signed certificate, used by the server as its key and by the client
+     * to trust it.
+     */
+    private static KeyStore keyStore;
+    
+    /**
+     * Server under test.
+     */
+    private Server server;
+    
+    /**
+     * Client under test.
+     */
+    private Client client;
+    
+    /**
+     * Client connections the server has validated.
+     */
+    private final AtomicReference<ClientConnection> connected = new AtomicReference<>();
+    
+    /**
+     * Counted down once the server has validated the client.
+     */
+    private final CountDownLatch connectLatch = new CountDownLatch(1);
+    
+    /**
+     * Echo packets the client has received back from the server.
+     */
+    private final BlockingQueue<EchoPacket> echoes = new LinkedBlockingQueue<>();
+    
+    /**
+     * Data received by the most recent incoming transfer.
+     */
+    private final BlockingQueue<ByteBuffer> received = new LinkedBlockingQueue<>();
+    
+    @BeforeClass
+    public static void createKeyStore() throws Exception {
+        File file = new File(ConnectTest.FOLDER.getRoot(), "test.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "keytool";
+        
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server",
+                "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", ConnectTest.PASSWORD, "-keypass", ConnectTest.PASSWORD)
+                .inheritIO().start();
+        assertEquals(0, process.waitFor());
+        
+        ConnectTest.keyStore = KeyStore.getInstance("PKCS12");
+        
+        try(InputStream stream = new FileInputStream(file)) {
+            ConnectTest.keyStore.load(stream, ConnectTest.PASSWORD.toCharArray());
+        }
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        int port;
+        
+        try(ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        
+        SocketAddress address = new SocketAddress("127.0.0.1", port);
+        
+        this.server = new Server(address, ConnectTest.keyStore, ConnectTest.PASSWORD);
+        this.server.setTransferHandler(new ServerTransferHandler() {
+            @Override
+            public void onTransferStart(Server server, ClientConnection client,
+                    BulkTransfer transfer) {
+                ConnectTest.this.receive(transfer);
+            }
+        });
+        this.server.getPacketManager().registerPacket(EchoPacket::new,
+                new ServerPacketHandler<EchoPacket>() {
+            @Override
+            public void onReceivePacket(Server server, ClientConnection client,
+                    EchoPacket packet) {
+                try {
+                    client.sendPacket(packet, packet.getProtocol());
+                } catch (IOException e) { }
+            }
+        });
+        this.server.getEventHandler().registerServerEventListener(new ServerEventListener() {
+            @Override
+            public void onClientConnect(ClientConnectEvent event) {
+                ConnectTest.this.connected.set(event.getClientConnection());
+                ConnectTest.this.connectLatch.countDown();
+            }
+        });
+        
+        this.client = new Client(address, ConnectTest.keyStore);
+        this.client.setTransferHandler(new ClientTransferHandler() {
+            @Override
+            public void onTransferStart(Client client, BulkTransfer transfer) {
+                ConnectTest.this.receive(transfer);
+            }
+        });
+        this.client.getPacketManager().registerPacket(EchoPacket::new,
+                new ClientPacketHandler<EchoPacket>() {
+            @Override
+            public void onReceivePacket(Client client, EchoPacket packet) {
+                ConnectTest.this.echoes.add(packet);
+            }
+        });
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        if(this.client.isConnected()) {
+            this.client.disconnect();
+        }
+        
+        if(this.server.isRunning()) {
+            this.server.stop();
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void testHandshakeCompletes() throws Exception {
+        this.server.start();
+        this.assertConnects();
+    }
+    
+    @Test(timeout = 10000)
+    public void testHandshakeCompletesWithoutEventLoops() throws Exception {
+        this.server.setEventLoopThreads(0);
+        this.server.start();
+        this.assertConnects();
+    }
+    
+    @Test(timeout = 10000)
+    public void testFailedStartClosesTcpListener() throws Exception {
+        int port = this.server.getAddress().getPort();
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        
+        // Take the UDP port so that the server fails after opening its TCP listener.
+        try(DatagramSocket socket = new DatagramSocket(port, address)) {
+            try {
+                this.server.start();
+                fail("Server started without its UDP port.");
+            } catch (ServerException e) { }
+        }
+        
+        assertFalse(this.server.isRunning());
+        
+        try(ServerSocket socket = new ServerSocket(port, 50, address)) {
+            assertEquals(port, socket.getLocalPort());
+        }
+    }
+    
+    /**
+     * Connect the client and check both sides completed the handshake.
+     * 
+     * @throws Exception If fails to connect.
+     */
+    private void assertConnects() throws Exception {
+        this.client.connect();
+        
+        assertTrue(this.client.isHandshakeCompleted());
+        assertTrue(this.connectLatch.await(5, TimeUnit.SECONDS));
+        
+        ClientConnection connection = this.connected.get();
+        assertTrue(connection.isHandshakeCompleted());
+        assertEquals(connection.getUUID(), this.client.getUUID());
+        
+        // Both sides encrypt everything sent after the handshake.
+        ServerConnection serverConnection = this.client.getServerConnection();
+        assertTrue(serverConnection.getTCPConnection().isEncrypted());
+        assertTrue(serverConnection.getTCPConnection().isDecrypted());
+        assertTrue(serverConnection.getUDPConnection().isEncrypted());
+        assertTrue(serverConnection.getUDPConnection().isDecrypted());
+        assertTrue(connection.getTCPConnection().isEncrypted());
+        assertTrue(connection.getTCPConnection().isDecrypted());
+        assertTrue(connection.getUDPConnection().isEncrypted());
+        assertTrue(connection.getUDPConnection().isDecrypted());
+        
+        this.assertEchoes(Protocol.TCP, 1);
+        this.assertEchoes(Protocol.UDP, 2);
+        this.assertEchoes(Protocol.TCP, 3);
+        
+        this.assertTransfers(false);
+        this.assertTransfers(true);
+    }
+    
+    /**
+     * Receive the given transfer into memory, queueing the data once it has completed.
+     * 
+     * @param transfer Incoming {@link net.neto_framework.transfer.BulkTransfer BulkTransfer}.
+     */
+    private void receive(BulkTransfer transfer) {
+        ByteBuffer region = ByteBuffer.allocate((int) transfer.getLength());
+        transfer.setDestination(region);
+        transfer.setListener(new TransferListener() {
+            @Override
+            public void onProgress(BulkTransfer transfer) {
+                if(transfer.isComplete()) {
+                    ConnectTest.this.received.add(region);
+                }
+            }
+            
+            @Override
+            public void onFailed(BulkTransfer transfer, IOException exception) { }
+        });
+    }
+    
+    /**
+     * Send a file of several chunks and check it arrives whole, with progress reported up to
+     * its full length.
+     * 
+     * @param toClient If the server sends the file, otherwise the client does.
+     * @throws Exception If fails to send the file.
+     */
+    private void assertTransfers(boolean toClient) throws Exception {
+        byte[] data = new byte[BulkTransfer.CHUNK_SIZE * 3 + 100];
+        new SecureRandom().nextBytes(data);
+        
+        File file = ConnectTest.FOLDER.newFile();
+        Files.write(file.toPath(), data);
+        
+        CountDownLatch sentLatch = new CountDownLatch(1);
+        TransferListener listener = new TransferListener() {
+            @Override
+            public void onProgress(BulkTransfer transfer) {
+                if(transfer.getTransferred() == transfer.getLength()) {
+                    sentLatch.countDown();
+                }
+            }
+            
+            @Override
+            public void onFailed(BulkTransfer transfer, IOException exception) { }
+        };
+        
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            BulkTransfer transfer;
+            
+            if(toClient) {
+                transfer = this.connected.get().sendTransfer(channel, listener);
+            } else {
+                transfer = this.client.getServerConnection().sendTransfer(channel, listener);
+            }
+            
+            assertTrue(sentLatch.await(5, TimeUnit.SECONDS));
+            assertFalse(transfer.isFailed());
+            
+            ByteBuffer region = this.received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(region);
+            assertArrayEquals(data, region.array());
+        }
+    }
+    
+    /**
+     * Send an echo packet to the server and check the same packet comes back.
+     * 
+     * @param protocol Protocol to send the packet with.
+     * @param value Value the packet carries.
+     * @throws Exception If fails to send the packet.
+     */
+    private void assertEchoes(Protocol protocol, int value) throws Exception {
+        EchoPacket packet = new EchoPacket();
+        packet.protocol = protocol;
+        packet.value = value;
+        this.client.getServerConnection().sendPacket(packet, protocol);
+        
+        EchoPacket echo = this.echoes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(echo);
+        assertEquals(protocol, echo.getProtocol());
+        assertEquals(value, echo.value);
+    }
+    
+    /**
+     * A packet the server sends straight back with the protocol it names.
+     */
+    public static class EchoPacket implements Packet {
+        
+        /**
+         * Protocol the packet is sent with.
+         */
+        private Protocol protocol;
+        
+        /**
+         * Value carried by the packet.
+         */
+        private int value;
+        
+        @Override
+        public void send(Connection connection) throws IOException {
+            connection.sendInteger(this.protocol.ordinal());
+            connection.sendInteger(this.value);
+        }
+        
+        @Override
+        public void receive(Connection connection) throws IOException {
+            this.protocol = Protocol.values()[connection.receiveInteger()];
+            this.value = connection.receiveInteger();
+        }
+        
+        @Override
+        public int getId() {
+            return 1;
+        }
+        
+        /**
+         * @return Protocol the packet is sent with.
+         */
+        public Protocol getProtocol() {
+            return this.protocol;
+        }
+    }
+}
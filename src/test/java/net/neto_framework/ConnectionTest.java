@@ -0,0 +1,267 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link net.neto_framework.Connection Connection} encodings, using UDP connections
+ * which are buffered and so never touch a socket.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class ConnectionTest {
+    
+    /**
+     * Connection data is sent with.
+     */
+    private Connection sender;
+    
+    /**
+     * Connection data is received with.
+     */
+    private Connection receiver;
+    
+    @Before
+    public void setUp() {
+        this.sender = ConnectionTest.createConnection();
+        this.receiver = ConnectionTest.createConnection();
+    }
+    
+    /**
+     * @return A new buffered UDP connection.
+     */
+    private static Connection createConnection() {
+        return new Connection((DatagramSocket) null, InetAddress.getLoopbackAddress(), 0);
+    }
+    
+    /**
+     * Enable encryption from the sender to the receiver.
+     */
+    private void enableEncryption() {
+        SecretKeySpec secretKey = new SecretKeySpec(new byte[16], RecordCipher.KEY_ALGORITHM);
+        IvParameterSpec iv = new IvParameterSpec(new byte[RecordCipher.NONCE_LENGTH]);
+        this.sender.enableEncryption(secretKey, iv, true);
+        this.receiver.enableEncryption(secretKey, iv, false);
+    }
+    
+    /**
+     * Send the given value in a datagram of its own.
+     * 
+     * @param value Value to send.
+     * @return Copy of the datagram.
+     * @throws IOException If fails to seal the datagram.
+     */
+    private ByteBuffer sendDatagram(int value) throws IOException {
+        this.sender.sendInteger(value);
+        ByteBuffer frame = this.sender.getBufferedFrame();
+        
+        ByteBuffer datagram = ByteBuffer.allocate(frame.remaining());
+        datagram.put(frame);
+        datagram.flip();
+        return datagram;
+    }
+    
+    /**
+     * Check the given datagram is accepted once, and dropped when it is received again.
+     * 
+     * @param datagram Datagram to receive.
+     * @param value Value the datagram holds.
+     * @throws IOException If fails to receive the datagram.
+     */
+    private void assertReceivedOnce(ByteBuffer datagram, int value) throws IOException {
+        assertTrue(this.receiver.receiveDatagram(datagram.duplicate()));
+        assertEquals(value, this.receiver.receiveInteger());
+        assertFalse(this.receiver.receiveDatagram(datagram.duplicate()));
+        assertFalse(this.receiver.hasRemaining());
+    }
+    
+    /**
+     * Send the data written since the last datagram to the receiver.
+     * 
+     * @throws IOException If fails to send the datagram.
+     */
+    private void flushDatagram() throws IOException {
+        assertTrue(this.receiver.receiveDatagram(this.sender.getBufferedFrame()));
+    }
+    
+    @Test
+    public void testVarIntRoundTrip() throws IOException {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        int[] lengths = {1, 1, 1, 2, 2, 3, 5, 5, 5};
+        
+        for(int i = 0; i < values.length; i++) {
+            this.sender.sendVarInt(values[i]);
+            assertEquals(lengths[i], this.sender.getBufferedLength());
+            this.flushDatagram();
+            
+            assertEquals(values[i], this.receiver.receiveVarInt());
+            assertFalse(this.receiver.hasRemaining());
+        }
+    }
+    
+    @Test
+    public void testVarLongRoundTrip() throws IOException {
+        long[] values = {0, 127, 128, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        int[] lengths = {1, 1, 2, 6, 9, 10, 10};
+        
+        for(int i = 0; i < values.length; i++) {
+            this.sender.sendVarLong(values[i]);
+            assertEquals(lengths[i], this.sender.getBufferedLength());
+            this.flushDatagram();
+            
+            assertEquals(values[i], this.receiver.receiveVarLong());
+            assertFalse(this.receiver.hasRemaining());
+        }
+    }
+    
+    @Test
+    public void testZigZagIntRoundTrip() throws IOException {
+        int[] values = {0, -1, 1, -64, 63, 64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        int[] lengths = {1, 1, 1, 1, 1, 2, 2, 5, 5};
+        
+        for(int i = 0; i < values.length; i++) {
+            this.sender.sendZigZagInt(values[i]);
+            assertEquals(lengths[i], this.sender.getBufferedLength());
+            this.flushDatagram();
+            
+            assertEquals(values[i], this.receiver.receiveZigZagInt());
+            assertFalse(this.receiver.hasRemaining());
+        }
+    }
+    
+    @Test
+    public void testZigZagLongRoundTrip() throws IOException {
+        long[] values = {0, -1, 1, -64, 64, Long.MAX_VALUE, Long.MIN_VALUE};
+        int[] lengths = {1, 1, 1, 1, 2, 10, 10};
+        
+        for(int i = 0; i < values.length; i++) {
+            this.sender.sendZigZagLong(values[i]);
+            assertEquals(lengths[i], this.sender.getBufferedLength());
+            this.flushDatagram();
+            
+            assertEquals(values[i], this.receiver.receiveZigZagLong());
+            assertFalse(this.receiver.hasRemaining());
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void testVarIntTooLongRejected() throws IOException {
+        this.sender.sendInteger(-1);
+        this.sender.sendShort((short) -1);
+        this.flushDatagram();
+        
+        this.receiver.receiveVarInt();
+    }
+    
+    @Test(expected = EOFException.class)
+    public void testByteArrayLongerThanFrameRejected() throws IOException {
+        this.sender.sendInteger(Integer.MAX_VALUE);
+        this.flushDatagram();
+        
+        this.receiver.receiveByteArray();
+    }
+    
+    /**
+     * Send the given string and check it is encoded the same as the JDK encodes it, replacing
+     * unpaired surrogates with '?'.
+     * 
+     * @param string String to send.
+     * @throws IOException If fails to send the string.
+     */
+    private void assertStringRoundTrip(String string) throws IOException {
+        byte[] expected = string.getBytes(StandardCharsets.UTF_8);
+        
+        // Measure the length prefix of a short string.
+        this.sender.sendString("");
+        int prefixLength = this.sender.getBufferedLength();
+        this.flushDatagram();
+        assertEquals("", this.receiver.receiveString());
+        
+        this.sender.sendString(string);
+        assertEquals(prefixLength + expected.length, this.sender.getBufferedLength());
+        this.flushDatagram();
+        
+        assertEquals(new String(expected, StandardCharsets.UTF_8), this.receiver.receiveString());
+        assertFalse(this.receiver.hasRemaining());
+    }
+    
+    @Test
+    public void testEmptyString() throws IOException {
+        this.assertStringRoundTrip("");
+    }
+    
+    @Test
+    public void testStringEncodingBoundaries() throws IOException {
+        this.assertStringRoundTrip("Hello");
+        this.assertStringRoundTrip("\u007f\u0080\u00e9\u07ff");
+        this.assertStringRoundTrip("\u0800\ud7ff\ue000\ufffd\uffff");
+    }
+    
+    @Test
+    public void testSurrogatePairs() throws IOException {
+        this.assertStringRoundTrip("\ud83d\ude00");
+        this.assertStringRoundTrip("a\ud800\udc00b\udbff\udfff");
+    }
+    
+    @Test
+    public void testUnpairedSurrogatesReplaced() throws IOException {
+        this.assertStringRoundTrip("\ud83d");
+        this.assertStringRoundTrip("\ude00a");
+        this.assertStringRoundTrip("\ude00\ud83d");
+        this.assertStringRoundTrip("a\ud83d\ud83d\ude00");
+    }
+    
+    @Test
+    public void testPlainDatagramReplayDropped() throws IOException {
+        ByteBuffer first = this.sendDatagram(1);
+        ByteBuffer second = this.sendDatagram(2);
+        
+        this.assertReceivedOnce(second, 2);
+        this.assertReceivedOnce(first, 1);
+    }
+    
+    @Test
+    public void testEncryptedDatagramReplayDropped() throws IOException {
+        this.enableEncryption();
+        ByteBuffer first = this.sendDatagram(1);
+        ByteBuffer second = this.sendDatagram(2);
+        
+        this.assertReceivedOnce(second, 2);
+        this.assertReceivedOnce(first, 1);
+    }
+    
+    @Test(expected = IOException.class)
+    public void testPlainDatagramWithoutSequenceRejected() throws IOException {
+        this.receiver.receiveDatagram(ByteBuffer.wrap(new byte[7]));
+    }
+}
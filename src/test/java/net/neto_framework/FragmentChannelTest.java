@@ -0,0 +1,317 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link net.neto_framework.FragmentChannel FragmentChannel} splitting, reassembly and
+ * eviction of incomplete frames.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class FragmentChannelTest {
+    
+    /**
+     * The number of integers sent in a frame that must be split.
+     */
+    private static final int LARGE_FRAME_INTEGERS = 1000;
+    
+    /**
+     * Connection frames are split with.
+     */
+    private Connection sender;
+    
+    /**
+     * Channel frames are split with.
+     */
+    private FragmentChannel senderChannel;
+    
+    /**
+     * Channel frames are reassembled with.
+     */
+    private FragmentChannel receiverChannel;
+    
+    @Before
+    public void setUp() {
+        this.sender = FragmentChannelTest.createConnection();
+        this.senderChannel = new FragmentChannel();
+        this.receiverChannel = new FragmentChannel();
+    }
+    
+    @After
+    public void tearDown() {
+        this.senderChannel.close();
+        this.receiverChannel.close();
+        
+        FragmentChannel.MAX_INCOMPLETE_FRAMES = 16;
+        FragmentChannel.MAX_HELD_BYTES = 1024 * 1024;
+        FragmentChannel.REASSEMBLY_TIMEOUT = 1000;
+    }
+    
+    /**
+     * @return A new buffered UDP connection.
+     */
+    private static Connection createConnection() {
+        return new Connection((DatagramSocket) null, InetAddress.getLoopbackAddress(), 0);
+    }
+    
+    /**
+     * Send a frame holding the given number of integers, starting from the given value.
+     * 
+     * @param first First value.
+     * @param count The number of integers to send.
+     * @return Copies of the datagrams the frame was sent in.
+     * @throws IOException If fails to split the frame.
+     */
+    private List<ByteBuffer> sendFrame(int first, int count) throws IOException {
+        for(int i = 0; i < count; i++) {
+            this.sender.sendInteger(first + i);
+        }
+        
+        List<ByteBuffer> datagrams = new ArrayList<>();
+        if(!this.senderChannel.split(this.sender, Integer.MAX_VALUE)) {
+            datagrams.add(FragmentChannelTest.copy(this.sender.getBufferedFrame()));
+            return datagrams;
+        }
+        
+        while(this.senderChannel.writeNext(this.sender)) {
+            datagrams.add(FragmentChannelTest.copy(this.sender.getBufferedFrame()));
+        }
+        
+        return datagrams;
+    }
+    
+    /**
+     * @param frame Frame in read mode.
+     * @return Copy of the frame.
+     */
+    private static ByteBuffer copy(ByteBuffer frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame);
+        copy.flip();
+        return copy;
+    }
+    
+    /**
+     * Receive the given datagram on a connection of its own, so that the same datagram may be
+     * received twice.
+     * 
+     * @param datagram Datagram to receive.
+     * @return Connection holding the reassembled frame, or null if the frame is incomplete.
+     * @throws IOException If the fragment is invalid.
+     */
+    private Connection receive(ByteBuffer datagram) throws IOException {
+        Connection receiver = FragmentChannelTest.createConnection();
+        assertTrue(receiver.receiveDatagram(datagram.duplicate()));
+        return this.receiverChannel.receiveFrame(receiver) ? receiver : null;
+    }
+    
+    /**
+     * Check the given connection holds the frame sent by
+     * {@link #sendFrame(int, int) sendFrame}.
+     * 
+     * @param receiver Connection holding the frame.
+     * @param first First value.
+     * @param count The number of integers sent.
+     * @throws IOException If fails to read the frame.
+     */
+    private static void assertFrame(Connection receiver, int first, int count) throws IOException {
+        assertNotNull(receiver);
+        
+        for(int i = 0; i < count; i++) {
+            assertEquals(first + i, receiver.receiveInteger());
+        }
+        
+        assertFalse(receiver.hasRemaining());
+    }
+    
+    @Test
+    public void testSmallFrameNotSplit() throws IOException {
+        List<ByteBuffer> datagrams = this.sendFrame(0, 10);
+        assertEquals(1, datagrams.size());
+        
+        FragmentChannelTest.assertFrame(this.receive(datagrams.get(0)), 0, 10);
+    }
+    
+    @Test
+    public void testReassemblesInOrder() throws IOException {
+        List<ByteBuffer> datagrams = this.sendFrame(0, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        assertTrue(datagrams.size() > 2);
+        
+        for(int i = 0; i < datagrams.size() - 1; i++) {
+            assertTrue(datagrams.get(i).remaining() <= Connection.MAX_DATAGRAM_SIZE);
+            assertNull(this.receive(datagrams.get(i)));
+        }
+        
+        FragmentChannelTest.assertFrame(this.receive(datagrams.get(datagrams.size() - 1)), 0,
+                FragmentChannelTest.LARGE_FRAME_INTEGERS);
+    }
+    
+    @Test
+    public void testReassemblesOutOfOrder() throws IOException {
+        List<ByteBuffer> datagrams = this.sendFrame(0, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        Collections.reverse(datagrams);
+        
+        for(int i = 0; i < datagrams.size() - 1; i++) {
+            assertNull(this.receive(datagrams.get(i)));
+        }
+        
+        FragmentChannelTest.assertFrame(this.receive(datagrams.get(datagrams.size() - 1)), 0,
+                FragmentChannelTest.LARGE_FRAME_INTEGERS);
+    }
+    
+    @Test
+    public void testIgnoresDuplicateFragments() throws IOException {
+        List<ByteBuffer> datagrams = this.sendFrame(0, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        
+        assertNull(this.receive(datagrams.get(0)));
+        assertNull(this.receive(datagrams.get(0)));
+        
+        for(int i = 1; i < datagrams.size() - 1; i++) {
+            assertNull(this.receive(datagrams.get(i)));
+        }
+        
+        FragmentChannelTest.assertFrame(this.receive(datagrams.get(datagrams.size() - 1)), 0,
+                FragmentChannelTest.LARGE_FRAME_INTEGERS);
+    }
+    
+    @Test
+    public void testInterleavedFrames() throws IOException {
+        List<ByteBuffer> first = this.sendFrame(0, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        List<ByteBuffer> second = this.sendFrame(5000, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        assertEquals(first.size(), second.size());
+        
+        for(int i = 0; i < first.size() - 1; i++) {
+            assertNull(this.receive(first.get(i)));
+            assertNull(this.receive(second.get(i)));
+        }
+        
+        FragmentChannelTest.assertFrame(this.receive(second.get(second.size() - 1)), 5000,
+                FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        FragmentChannelTest.assertFrame(this.receive(first.get(first.size() - 1)), 0,
+                FragmentChannelTest.LARGE_FRAME_INTEGERS);
+    }
+    
+    @Test
+    public void testEvictsOldestWhenTooManyIncomplete() throws IOException {
+        FragmentChannel.MAX_INCOMPLETE_FRAMES = 2;
+        
+        List<ByteBuffer> first = this.sendFrame(0, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        List<ByteBuffer> second = this.sendFrame(5000, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        List<ByteBuffer> third = this.sendFrame(10000, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        
+        // The first frame is evicted when the third starts.
+        for(int i = 0; i < first.size() - 1; i++) {
+            assertNull(this.receive(first.get(i)));
+        }
+        
+        assertNull(this.receive(second.get(0)));
+        assertNull(this.receive(third.get(0)));
+        assertNull(this.receive(first.get(first.size() - 1)));
+        
+        // The second frame is evicted when the first starts again.
+        for(int i = 1; i < second.size(); i++) {
+            assertNull(this.receive(second.get(i)));
+        }
+    }
+    
+    @Test
+    public void testEvictsExpiredFrames() throws IOException {
+        List<ByteBuffer> first = this.sendFrame(0, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        List<ByteBuffer> second = this.sendFrame(5000, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        
+        assertNull(this.receive(first.get(0)));
+        
+        // Every frame held is expired by the time the next fragment arrives.
+        FragmentChannel.REASSEMBLY_TIMEOUT = -1;
+        for(int i = 1; i < first.size(); i++) {
+            assertNull(this.receive(first.get(i)));
+        }
+        
+        // Frames complete within the timeout are still delivered.
+        FragmentChannel.REASSEMBLY_TIMEOUT = 1000;
+        for(int i = 0; i < second.size() - 1; i++) {
+            assertNull(this.receive(second.get(i)));
+        }
+        
+        FragmentChannelTest.assertFrame(this.receive(second.get(second.size() - 1)), 5000,
+                FragmentChannelTest.LARGE_FRAME_INTEGERS);
+    }
+    
+    @Test
+    public void testEvictsOldestWhenTooManyBytesHeld() throws IOException {
+        List<ByteBuffer> first = this.sendFrame(0, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        List<ByteBuffer> second = this.sendFrame(5000, FragmentChannelTest.LARGE_FRAME_INTEGERS);
+        FragmentChannel.MAX_HELD_BYTES = Connection.MAX_DATAGRAM_SIZE * (first.size() - 1);
+        
+        for(int i = 0; i < first.size() - 1; i++) {
+            assertNull(this.receive(first.get(i)));
+        }
+        
+        // Holding the second frame pushes the first out.
+        assertNull(this.receive(second.get(0)));
+        assertNull(this.receive(second.get(1)));
+        assertNull(this.receive(first.get(first.size() - 1)));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testRejectsInvalidFragmentIndex() throws IOException {
+        this.sender.sendPacketId(FragmentChannel.HEADER_ID);
+        this.sender.sendVarInt(0);
+        this.sender.sendVarInt(2);
+        this.sender.sendVarInt(2);
+        this.sender.sendInteger(0);
+        
+        this.receive(FragmentChannelTest.copy(this.sender.getBufferedFrame()));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testRejectsMismatchedFragmentCount() throws IOException {
+        this.sender.sendPacketId(FragmentChannel.HEADER_ID);
+        this.sender.sendVarInt(0);
+        this.sender.sendVarInt(0);
+        this.sender.sendVarInt(2);
+        this.sender.sendInteger(0);
+        assertNull(this.receive(FragmentChannelTest.copy(this.sender.getBufferedFrame())));
+        
+        this.sender.sendPacketId(FragmentChannel.HEADER_ID);
+        this.sender.sendVarInt(0);
+        this.sender.sendVarInt(1);
+        this.sender.sendVarInt(3);
+        this.sender.sendInteger(0);
+        this.receive(FragmentChannelTest.copy(this.sender.getBufferedFrame()));
+    }
+}
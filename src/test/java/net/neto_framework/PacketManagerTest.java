@@ -0,0 +1,188 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+import net.neto_framework.server.ClientConnection;
+import net.neto_framework.server.Server;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link net.neto_framework.PacketManager PacketManager}.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class PacketManagerTest {
+    
+    /**
+     * Packet IDs used by internal packets and the headers of reliable and fragmented frames.
+     */
+    private static final int[] INTERNAL_IDS = {-1, -2, -3, -4, -5, ReliableChannel.HEADER_ID,
+            FragmentChannel.HEADER_ID};
+    
+    /**
+     * Packet manager under test.
+     */
+    private PacketManager packetManager;
+    
+    @Before
+    public void setUp() {
+        this.packetManager = new PacketManager();
+    }
+    
+    @Test
+    public void testRegistersInternalIdsBeforeReserving() {
+        this.packetManager.registerPacket(new IdPacketFactory(-5));
+        this.packetManager.registerPacket(new IdPacketFactory(ReliableChannel.HEADER_ID));
+        
+        assertTrue(this.packetManager.hasPacket(-5));
+        assertTrue(this.packetManager.hasPacket(ReliableChannel.HEADER_ID));
+    }
+    
+    @Test
+    public void testRejectsInternalIdsAfterReserving() {
+        this.packetManager.reserveInternalIds();
+        
+        for(int id : INTERNAL_IDS) {
+            try {
+                this.packetManager.registerPacket(new IdPacketFactory(id));
+                fail("Packet ID " + id + " was registered.");
+            } catch(RuntimeException e) {
+                assertTrue(e.getMessage().contains("reserved"));
+            }
+        }
+    }
+    
+    @Test
+    public void testRejectsRawInternalIdsAfterReserving() {
+        this.packetManager.reserveInternalIds();
+        
+        for(int id : INTERNAL_IDS) {
+            try {
+                this.packetManager.registerRawPacket(id, new IgnoringRawHandler());
+                fail("Pass-through packet ID " + id + " was registered.");
+            } catch(RuntimeException e) {
+                assertTrue(e.getMessage().contains("reserved"));
+            }
+        }
+    }
+    
+    @Test
+    public void testRejectsWholeNegativeRange() {
+        this.packetManager.reserveInternalIds();
+        
+        try {
+            this.packetManager.registerPacket(new IdPacketFactory(-1000));
+            fail("Negative packet ID was registered.");
+        } catch(RuntimeException e) {
+            assertTrue(e.getMessage().contains("reserved"));
+        }
+    }
+    
+    @Test
+    public void testRejectsZero() {
+        try {
+            this.packetManager.registerPacket(new IdPacketFactory(0));
+            fail("Packet ID 0 was registered.");
+        } catch(RuntimeException e) {
+            assertTrue(e.getMessage().contains("reserved"));
+        }
+    }
+    
+    @Test
+    public void testRegistersPositiveIdsAfterReserving() {
+        this.packetManager.reserveInternalIds();
+        this.packetManager.registerPacket(new IdPacketFactory(1));
+        this.packetManager.registerRawPacket(2, new IgnoringRawHandler());
+        
+        assertTrue(this.packetManager.hasPacket(1));
+        assertTrue(this.packetManager.hasPacket(2));
+    }
+    
+    /**
+     * Creates packets with a fixed ID.
+     */
+    private static class IdPacketFactory implements Supplier<IdPacket> {
+        
+        /**
+         * Packet ID.
+         */
+        private final int id;
+        
+        /**
+         * @param id Packet ID.
+         */
+        public IdPacketFactory(int id) {
+            this.id = id;
+        }
+        
+        @Override
+        public IdPacket get() {
+            return new IdPacket(this.id);
+        }
+    }
+    
+    /**
+     * Empty packet with the given ID.
+     */
+    private static class IdPacket implements Packet {
+        
+        /**
+         * Packet ID.
+         */
+        private final int id;
+        
+        /**
+         * @param id Packet ID.
+         */
+        public IdPacket(int id) {
+            this.id = id;
+        }
+        
+        @Override
+        public void send(Connection connection) throws IOException {
+        }
+        
+        @Override
+        public void receive(Connection connection) throws IOException {
+        }
+        
+        @Override
+        public int getId() {
+            return this.id;
+        }
+    }
+    
+    /**
+     * Pass-through handler that ignores every frame.
+     */
+    private static class IgnoringRawHandler implements RawServerPacketHandler {
+        
+        @Override
+        public void onReceiveFrame(Server server, ClientConnection client, int id,
+                Protocol protocol, ByteBuffer data) {
+        }
+    }
+}
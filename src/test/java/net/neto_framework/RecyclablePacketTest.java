@@ -0,0 +1,205 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link net.neto_framework.RecyclablePacket RecyclablePacket} references, and that
+ * {@link net.neto_framework.PacketSender PacketSender} only recycles pooled packets.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class RecyclablePacketTest {
+    
+    /**
+     * Packet manager the test packet is registered with.
+     */
+    private PacketManager packetManager;
+    
+    /**
+     * TCP frames written by the sender.
+     */
+    private List<ByteBuffer> frames;
+    
+    /**
+     * Sender writing TCP frames to {@link #frames}.
+     */
+    private PacketSender sender;
+    
+    @Before
+    public void setUp() {
+        this.packetManager = new PacketManager();
+        this.packetManager.registerPacket(TestPacket::new);
+        this.frames = new ArrayList<>();
+        
+        Connection connection = new Connection((DatagramSocket) null,
+                InetAddress.getLoopbackAddress(), 0);
+        this.sender = new PacketSender(this.packetManager, connection, null) {
+            @Override
+            protected CompletableFuture<Void> writeFrame(ByteBuffer frame) {
+                ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+                copy.put(frame);
+                copy.flip();
+                RecyclablePacketTest.this.frames.add(copy);
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            @Override
+            protected DatagramChannel getUdpChannel() {
+                return null;
+            }
+            
+            @Override
+            protected int getSessionId() {
+                return 0;
+            }
+            
+            @Override
+            protected void onReliableFailure(IOException e) {
+            }
+        };
+    }
+    
+    /**
+     * Check every frame written holds the given value.
+     * 
+     * @param count The number of frames expected.
+     * @param value Value every packet was sent with.
+     */
+    private void assertFrames(int count, int value) {
+        assertEquals(count, this.frames.size());
+        
+        for(ByteBuffer frame : this.frames) {
+            assertEquals(value, frame.getInt(frame.limit() - 4));
+        }
+    }
+    
+    @Test
+    public void testCreatedPacketNeverReset() throws IOException {
+        TestPacket packet = new TestPacket();
+        packet.value = 42;
+        
+        for(int i = 0; i < 3; i++) {
+            this.sender.sendPacket(packet, Protocol.TCP);
+        }
+        
+        this.assertFrames(3, 42);
+        assertEquals(0, packet.resets);
+    }
+    
+    @Test
+    public void testPooledPacketRecycledOnceSent() throws IOException {
+        TestPacket packet = this.packetManager.obtainPacket(TestPacket.class);
+        packet.value = 42;
+        
+        this.sender.sendPacket(packet, Protocol.TCP);
+        this.assertFrames(1, 42);
+        assertEquals(1, packet.resets);
+        assertTrue(packet.isRecycled());
+        assertSame(packet, this.packetManager.obtainPacket(TestPacket.class));
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testRecycledPacketNotSent() throws IOException {
+        TestPacket packet = this.packetManager.obtainPacket(TestPacket.class);
+        
+        this.sender.sendPacket(packet, Protocol.TCP);
+        this.sender.sendPacket(packet, Protocol.TCP);
+    }
+    
+    @Test
+    public void testRetainedPacketRecycledAfterLastSend() throws IOException {
+        TestPacket packet = this.packetManager.obtainPacket(TestPacket.class);
+        packet.value = 42;
+        packet.retain();
+        
+        for(int i = 0; i < 3; i++) {
+            this.sender.sendPacket(packet, Protocol.TCP);
+        }
+        
+        this.assertFrames(3, 42);
+        assertEquals(0, packet.resets);
+        assertFalse(packet.isRecycled());
+        
+        packet.recycle();
+        assertEquals(1, packet.resets);
+        assertTrue(packet.isRecycled());
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testRecycleTwiceFails() {
+        TestPacket packet = this.packetManager.obtainPacket(TestPacket.class);
+        
+        packet.recycle();
+        packet.recycle();
+    }
+    
+    /**
+     * A recyclable packet holding a single value.
+     */
+    public static class TestPacket extends RecyclablePacket {
+        
+        /**
+         * Value.
+         */
+        private int value;
+        
+        /**
+         * The number of times this packet has been reset.
+         */
+        private int resets;
+        
+        @Override
+        public void send(Connection connection) throws IOException {
+            connection.sendInteger(this.value);
+        }
+        
+        @Override
+        public void receive(Connection connection) throws IOException {
+            this.value = connection.receiveInteger();
+        }
+        
+        @Override
+        public int getId() {
+            return 1;
+        }
+        
+        @Override
+        public void reset() {
+            this.value = 0;
+            this.resets++;
+        }
+    }
+}
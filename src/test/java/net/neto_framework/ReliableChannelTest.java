@@ -0,0 +1,388 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.neto_framework;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link net.neto_framework.ReliableChannel ReliableChannel} acknowledgements,
+ * retransmission and ordering, passing frames between two channels by hand.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class ReliableChannelTest {
+    
+    /**
+     * Channel frames are sent with.
+     */
+    private ReliableChannel sender;
+    
+    /**
+     * Channel frames are received with.
+     */
+    private ReliableChannel receiver;
+    
+    /**
+     * Connection holding the frame last received.
+     */
+    private Connection received;
+    
+    @Before
+    public void setUp() {
+        this.sender = ReliableChannelTest.createChannel();
+        this.receiver = ReliableChannelTest.createChannel();
+    }
+    
+    @After
+    public void tearDown() {
+        this.sender.close();
+        this.receiver.close();
+        
+        ReliableChannel.INITIAL_RETRANSMISSION_TIMEOUT = 200;
+        ReliableChannel.MAX_RETRANSMISSIONS = 20;
+    }
+    
+    /**
+     * @return A new channel that ignores ticks.
+     */
+    private static ReliableChannel createChannel() {
+        return new ReliableChannel(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+    
+    /**
+     * @return A new buffered UDP connection.
+     */
+    private static Connection createConnection() {
+        return new Connection((DatagramSocket) null, InetAddress.getLoopbackAddress(), 0);
+    }
+    
+    /**
+     * Collect the frame written to the given connection.
+     * 
+     * @param connection Connection with a frame in progress.
+     * @return Copy of the datagram.
+     * @throws IOException If fails to collect the frame.
+     */
+    private static ByteBuffer collect(Connection connection) throws IOException {
+        ByteBuffer frame = connection.getBufferedFrame();
+        
+        ByteBuffer datagram = ByteBuffer.allocate(frame.remaining());
+        datagram.put(frame);
+        datagram.flip();
+        return datagram;
+    }
+    
+    /**
+     * Queue a reliable frame holding the given value.
+     * 
+     * @param protocol Reliable protocol to send the frame with.
+     * @param value Value to send.
+     * @return CompletableFuture completed once the frame has been acknowledged.
+     * @throws IOException If fails to queue the frame.
+     */
+    private CompletableFuture<Void> add(Protocol protocol, int value) throws IOException {
+        Connection connection = ReliableChannelTest.createConnection();
+        connection.sendInteger(value);
+        return this.sender.add(protocol, connection);
+    }
+    
+    /**
+     * Write the next frame due to be sent by the given channel.
+     * 
+     * @param channel Channel to write from.
+     * @return Datagram written, or null if there was nothing to write.
+     * @throws IOException If fails to write the frame.
+     */
+    private static ByteBuffer writeNext(ReliableChannel channel) throws IOException {
+        Connection connection = ReliableChannelTest.createConnection();
+        
+        if(!channel.writeNext(connection)) {
+            return null;
+        }
+        
+        return ReliableChannelTest.collect(connection);
+    }
+    
+    /**
+     * Queue and write a reliable frame holding the given value.
+     * 
+     * @param protocol Reliable protocol to send the frame with.
+     * @param value Value to send.
+     * @return Datagram written.
+     * @throws IOException If fails to write the frame.
+     */
+    private ByteBuffer send(Protocol protocol, int value) throws IOException {
+        this.add(protocol, value);
+        return ReliableChannelTest.writeNext(this.sender);
+    }
+    
+    /**
+     * Receive the given datagram with the given channel, on a connection of its own.
+     * 
+     * @param channel Channel to receive with.
+     * @param datagram Datagram to receive.
+     * @return The protocol of the frame, or null if it must not be delivered now.
+     * @throws IOException If the frame is invalid.
+     */
+    private Protocol receive(ReliableChannel channel, ByteBuffer datagram) throws IOException {
+        this.received = ReliableChannelTest.createConnection();
+        assertTrue(this.received.receiveDatagram(datagram.duplicate()));
+        return channel.receiveFrame(this.received);
+    }
+    
+    /**
+     * Check the frame last received was delivered with the given protocol and holds the given
+     * value.
+     * 
+     * @param protocol Expected protocol.
+     * @param value Expected value.
+     * @param actual Protocol returned when the frame was received.
+     * @throws IOException If fails to read the frame.
+     */
+    private void assertDelivered(Protocol protocol, int value, Protocol actual)
+            throws IOException {
+        assertEquals(protocol, actual);
+        assertEquals(value, this.received.receiveInteger());
+        assertFalse(this.received.hasRemaining());
+    }
+    
+    /**
+     * Send the pending acknowledgement of the receiver to the sender.
+     * 
+     * @throws IOException If fails to send the acknowledgement.
+     */
+    private void acknowledge() throws IOException {
+        ByteBuffer ack = ReliableChannelTest.writeNext(this.receiver);
+        assertNull(this.receive(this.sender, ack));
+        assertNull(ReliableChannelTest.writeNext(this.receiver));
+    }
+    
+    @Test
+    public void testUnreliableFramePassesThrough() throws IOException {
+        Connection connection = ReliableChannelTest.createConnection();
+        connection.sendInteger(7);
+        
+        this.assertDelivered(Protocol.UDP, 7, this.receive(this.receiver,
+                ReliableChannelTest.collect(connection)));
+    }
+    
+    @Test
+    public void testOrderedInOrder() throws IOException {
+        for(int i = 0; i < 3; i++) {
+            ByteBuffer datagram = this.send(Protocol.RELIABLE_UDP, i);
+            this.assertDelivered(Protocol.RELIABLE_UDP, i, this.receive(this.receiver, datagram));
+            assertFalse(this.receiver.receiveHeldFrame(this.received));
+        }
+    }
+    
+    @Test
+    public void testOrderedHeldBack() throws IOException {
+        ByteBuffer first = this.send(Protocol.RELIABLE_UDP, 0);
+        ByteBuffer second = this.send(Protocol.RELIABLE_UDP, 1);
+        ByteBuffer third = this.send(Protocol.RELIABLE_UDP, 2);
+        
+        assertNull(this.receive(this.receiver, third));
+        assertNull(this.receive(this.receiver, second));
+        
+        // The missing frame releases the frames held behind it in order.
+        this.assertDelivered(Protocol.RELIABLE_UDP, 0, this.receive(this.receiver, first));
+        assertTrue(this.receiver.receiveHeldFrame(this.received));
+        this.assertDelivered(Protocol.RELIABLE_UDP, 1, Protocol.RELIABLE_UDP);
+        assertTrue(this.receiver.receiveHeldFrame(this.received));
+        this.assertDelivered(Protocol.RELIABLE_UDP, 2, Protocol.RELIABLE_UDP);
+        assertFalse(this.receiver.receiveHeldFrame(this.received));
+    }
+    
+    @Test
+    public void testUnorderedNotHeldBack() throws IOException {
+        ByteBuffer first = this.send(Protocol.RELIABLE_UNORDERED_UDP, 0);
+        ByteBuffer second = this.send(Protocol.RELIABLE_UNORDERED_UDP, 1);
+        
+        this.assertDelivered(Protocol.RELIABLE_UNORDERED_UDP, 1,
+                this.receive(this.receiver, second));
+        this.assertDelivered(Protocol.RELIABLE_UNORDERED_UDP, 0,
+                this.receive(this.receiver, first));
+    }
+    
+    @Test
+    public void testDuplicateDropped() throws IOException {
+        ByteBuffer datagram = this.send(Protocol.RELIABLE_UDP, 0);
+        
+        this.assertDelivered(Protocol.RELIABLE_UDP, 0, this.receive(this.receiver, datagram));
+        assertNull(this.receive(this.receiver, datagram));
+        
+        // Duplicates are still acknowledged.
+        this.acknowledge();
+    }
+    
+    /**
+     * Write an ordered reliable frame by hand, as a peer ignoring the window could.
+     * 
+     * @param sequence Sequence number.
+     * @param order Order number.
+     * @return Datagram written.
+     * @throws IOException If fails to write the frame.
+     */
+    private static ByteBuffer forgeOrdered(int sequence, int order) throws IOException {
+        Connection connection = ReliableChannelTest.createConnection();
+        connection.sendPacketId(ReliableChannel.HEADER_ID);
+        connection.sendVarInt(1);
+        connection.sendVarInt(0);
+        connection.sendVarLong(0);
+        connection.sendVarInt(sequence);
+        connection.sendVarInt(order);
+        connection.sendInteger(0);
+        return ReliableChannelTest.collect(connection);
+    }
+    
+    @Test(expected = IOException.class)
+    public void testOrderAheadOfWindowRejected() throws IOException {
+        this.receive(this.receiver, ReliableChannelTest.forgeOrdered(0,
+                ReliableChannel.WINDOW_SIZE));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testOrderAlreadyDeliveredRejected() throws IOException {
+        this.assertDelivered(Protocol.RELIABLE_UDP, 0, this.receive(this.receiver,
+                this.send(Protocol.RELIABLE_UDP, 0)));
+        
+        this.receive(this.receiver, ReliableChannelTest.forgeOrdered(1, 0));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testOrderAlreadyHeldRejected() throws IOException {
+        assertNull(this.receive(this.receiver, ReliableChannelTest.forgeOrdered(1, 1)));
+        this.receive(this.receiver, ReliableChannelTest.forgeOrdered(2, 1));
+    }
+    
+    @Test
+    public void testSelectiveAcknowledgement() throws IOException {
+        CompletableFuture<Void> first = this.add(Protocol.RELIABLE_UNORDERED_UDP, 0);
+        ByteBuffer firstDatagram = ReliableChannelTest.writeNext(this.sender);
+        CompletableFuture<Void> second = this.add(Protocol.RELIABLE_UNORDERED_UDP, 1);
+        ReliableChannelTest.writeNext(this.sender);
+        CompletableFuture<Void> third = this.add(Protocol.RELIABLE_UNORDERED_UDP, 2);
+        ByteBuffer thirdDatagram = ReliableChannelTest.writeNext(this.sender);
+        
+        // The second frame is lost.
+        this.receive(this.receiver, firstDatagram);
+        this.receive(this.receiver, thirdDatagram);
+        this.acknowledge();
+        
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertTrue(third.isDone());
+        assertTrue(this.sender.getRtt() >= 0);
+    }
+    
+    @Test
+    public void testResendsUntilAcknowledged() throws IOException {
+        ReliableChannel.INITIAL_RETRANSMISSION_TIMEOUT = 0;
+        this.sender = ReliableChannelTest.createChannel();
+        
+        CompletableFuture<Void> future = this.add(Protocol.RELIABLE_UDP, 0);
+        ByteBuffer datagram = ReliableChannelTest.writeNext(this.sender);
+        ByteBuffer resent = ReliableChannelTest.writeNext(this.sender);
+        
+        this.assertDelivered(Protocol.RELIABLE_UDP, 0, this.receive(this.receiver, resent));
+        assertNull(this.receive(this.receiver, datagram));
+        assertFalse(future.isDone());
+        
+        this.acknowledge();
+        assertTrue(future.isDone());
+        assertNull(ReliableChannelTest.writeNext(this.sender));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testFailsAfterMaxRetransmissions() throws IOException {
+        ReliableChannel.INITIAL_RETRANSMISSION_TIMEOUT = 0;
+        ReliableChannel.MAX_RETRANSMISSIONS = 2;
+        this.sender = ReliableChannelTest.createChannel();
+        
+        this.add(Protocol.RELIABLE_UDP, 0);
+        for(int i = 0; i <= ReliableChannel.MAX_RETRANSMISSIONS; i++) {
+            assertNotNull(ReliableChannelTest.writeNext(this.sender));
+        }
+        
+        ReliableChannelTest.writeNext(this.sender);
+    }
+    
+    @Test
+    public void testFailingTickKeepsTicking() throws IOException, InterruptedException {
+        final CountDownLatch failingTicks = new CountDownLatch(3);
+        this.sender.close();
+        this.sender = new ReliableChannel(new Runnable() {
+            @Override
+            public void run() {
+                failingTicks.countDown();
+                throw new RuntimeException("Listener failed.");
+            }
+        });
+        
+        this.add(Protocol.RELIABLE_UDP, 0);
+        assertTrue(failingTicks.await(5, TimeUnit.SECONDS));
+        
+        // Other channels share the timer and are still ticked.
+        final CountDownLatch ticks = new CountDownLatch(1);
+        ReliableChannel other = new ReliableChannel(new Runnable() {
+            @Override
+            public void run() {
+                ticks.countDown();
+            }
+        });
+        
+        try {
+            Connection connection = ReliableChannelTest.createConnection();
+            connection.sendInteger(0);
+            other.add(Protocol.RELIABLE_UDP, connection);
+            assertTrue(ticks.await(5, TimeUnit.SECONDS));
+        } finally {
+            other.close();
+        }
+    }
+    
+    @Test
+    public void testCloseFailsPendingFrames() throws IOException {
+        CompletableFuture<Void> future = this.add(Protocol.RELIABLE_UDP, 0);
+        this.sender.close();
+        
+        assertTrue(future.isCompletedExceptionally());
+        assertTrue(this.add(Protocol.RELIABLE_UDP, 1).isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link net.neto_framework.ReplayWindow ReplayWindow}.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class ReplayWindowTest {
+    
+    /**
+     * Window under test.
+     */
+    private ReplayWindow window;
+    
+    @Before
+    public void setUp() {
+        this.window = new ReplayWindow();
+    }
+    
+    /**
+     * Check and update the window with the given sequence number.
+     * 
+     * @param sequence Sequence number received.
+     * @return If the sequence number was accepted.
+     */
+    private boolean receive(long sequence) {
+        if(!this.window.check(sequence)) {
+            return false;
+        }
+        
+        this.window.update(sequence);
+        return true;
+    }
+    
+    @Test
+    public void testAcceptsFirstSequence() {
+        assertTrue(this.receive(0));
+        assertTrue(this.receive(1));
+        assertFalse(this.window.check(-1));
+    }
+    
+    @Test
+    public void testRejectsDuplicate() {
+        assertTrue(this.receive(5));
+        assertFalse(this.receive(5));
+        
+        assertTrue(this.receive(6));
+        assertFalse(this.receive(5));
+        assertFalse(this.receive(6));
+    }
+    
+    @Test
+    public void testRejectsTooOld() {
+        assertTrue(this.receive(100));
+        
+        assertFalse(this.window.check(100 - ReplayWindow.SIZE));
+        assertFalse(this.window.check(0));
+        assertTrue(this.receive(100 - ReplayWindow.SIZE + 1));
+    }
+    
+    @Test
+    public void testJumpOfWindowSize() {
+        for(long sequence = 0; sequence < 4; sequence++) {
+            assertTrue(this.receive(sequence));
+        }
+        
+        // Every bit shifts out of the window, nothing below the new top has been received.
+        long top = 3 + ReplayWindow.SIZE;
+        assertTrue(this.receive(top));
+        assertFalse(this.receive(top));
+        assertFalse(this.window.check(3));
+        
+        for(long sequence = 4; sequence < top; sequence++) {
+            assertTrue(this.window.check(sequence));
+        }
+    }
+    
+    @Test
+    public void testJumpBeyondWindowSize() {
+        assertTrue(this.receive(0));
+        assertTrue(this.receive(1));
+        assertTrue(this.receive(1000));
+        
+        assertFalse(this.receive(1000));
+        assertFalse(this.window.check(1));
+        assertTrue(this.receive(999));
+        assertTrue(this.receive(1000 - ReplayWindow.SIZE + 1));
+    }
+    
+    @Test
+    public void testOutOfOrderInsideWindow() {
+        assertTrue(this.receive(10));
+        assertTrue(this.receive(8));
+        assertTrue(this.receive(12));
+        assertTrue(this.receive(9));
+        assertTrue(this.receive(11));
+        
+        for(long sequence = 8; sequence <= 12; sequence++) {
+            assertFalse(this.receive(sequence));
+        }
+        
+        assertTrue(this.receive(7));
+    }
+}
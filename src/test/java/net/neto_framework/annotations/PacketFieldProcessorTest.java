@@ -0,0 +1,255 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.neto_framework.annotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import net.neto_framework.Connection;
+import net.neto_framework.Packet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link net.neto_framework.annotations.PacketFieldProcessor PacketFieldProcessor}.
+ * The processor runs over this class when tests are compiled, generating the codec of
+ * {@link AllTypesPacket}.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class PacketFieldProcessorTest {
+    
+    /**
+     * Folder sources are compiled into.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void testGeneratedCodecRoundTrip() throws IOException {
+        AllTypesPacket packet = new AllTypesPacket();
+        packet.flag = true;
+        packet.small = -2;
+        packet.name = "Caf\u00e9 \ud83d\ude00";
+        packet.count = 123456789;
+        packet.letter = 'x';
+        packet.data = new byte[] {1, 2, 3};
+        packet.shortValue = -300;
+        packet.floatValue = 1.5F;
+        packet.longValue = Long.MIN_VALUE;
+        packet.doubleValue = Math.PI;
+        
+        Connection sender = new Connection((DatagramSocket) null,
+                InetAddress.getLoopbackAddress(), 0);
+        Connection receiver = new Connection((DatagramSocket) null,
+                InetAddress.getLoopbackAddress(), 0);
+        
+        packet.send(sender);
+        assertTrue(receiver.receiveDatagram(sender.getBufferedFrame()));
+        
+        AllTypesPacket received = new AllTypesPacket();
+        received.receive(receiver);
+        
+        assertFalse(receiver.hasRemaining());
+        assertEquals(packet.flag, received.flag);
+        assertEquals(packet.small, received.small);
+        assertEquals(packet.name, received.name);
+        assertEquals(packet.count, received.count);
+        assertEquals(packet.letter, received.letter);
+        assertArrayEquals(packet.data, received.data);
+        assertEquals(packet.shortValue, received.shortValue);
+        assertEquals(packet.floatValue, received.floatValue, 0);
+        assertEquals(packet.longValue, received.longValue);
+        assertEquals(packet.doubleValue, received.doubleValue, 0);
+    }
+    
+    @Test
+    public void testGeneratedCodecCompiles() throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = this.compile("test.ValidPacket",
+                "package test;\n"
+                + "import net.neto_framework.annotations.PacketField;\n"
+                + "public class ValidPacket {\n"
+                + "    @PacketField(order = 1) long b;\n"
+                + "    @PacketField(order = 0) int a;\n"
+                + "    @PacketField(order = 2) String c;\n"
+                + "}\n");
+        
+        assertEquals(Collections.emptyList(), errors);
+        assertTrue(new File(this.folder.getRoot(), "test/ValidPacketCodec.java").isFile());
+        assertTrue(new File(this.folder.getRoot(), "test/ValidPacketCodec.class").isFile());
+    }
+    
+    @Test
+    public void testRejectsInaccessibleFields() throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = this.compile("test.BadPacket",
+                "package test;\n"
+                + "import net.neto_framework.annotations.PacketField;\n"
+                + "public class BadPacket {\n"
+                + "    @PacketField(order = 0) private int a;\n"
+                + "    @PacketField(order = 1) static int b;\n"
+                + "    @PacketField(order = 2) final int c = 0;\n"
+                + "}\n");
+        
+        assertEquals(3, errors.size());
+        for(Diagnostic<? extends JavaFileObject> error : errors) {
+            assertTrue(error.getMessage(null).contains("must not be private, static or final"));
+        }
+        
+        assertFalse(new File(this.folder.getRoot(), "test/BadPacketCodec.java").exists());
+    }
+    
+    @Test
+    public void testRejectsUnsupportedType() throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = this.compile("test.BadPacket",
+                "package test;\n"
+                + "import net.neto_framework.annotations.PacketField;\n"
+                + "public class BadPacket {\n"
+                + "    @PacketField(order = 0) int[] a;\n"
+                + "}\n");
+        
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getMessage(null).contains("does not support fields of type"));
+    }
+    
+    @Test
+    public void testRejectsDuplicateOrder() throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = this.compile("test.BadPacket",
+                "package test;\n"
+                + "import net.neto_framework.annotations.PacketField;\n"
+                + "public class BadPacket {\n"
+                + "    @PacketField(order = 0) int a;\n"
+                + "    @PacketField(order = 0) int b;\n"
+                + "}\n");
+        
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getMessage(null).contains("order 0 is already used by a"));
+    }
+    
+    /**
+     * Compile the given source with the processor into the temporary folder.
+     * 
+     * @param className Qualified name of the class.
+     * @param source Source of the class.
+     * @return Errors reported.
+     * @throws Exception If fails to find the framework's classes.
+     */
+    private List<Diagnostic<? extends JavaFileObject>> compile(String className, String source)
+            throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        
+        String classPath = new File(PacketField.class.getProtectionDomain().getCodeSource()
+                .getLocation().toURI()).getPath();
+        String output = this.folder.getRoot().getPath();
+        
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///"
+                + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                Arrays.asList("-classpath", classPath, "-d", output, "-s", output),
+                null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new PacketFieldProcessor()));
+        task.call();
+        
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if(diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic);
+            }
+        }
+        
+        return errors;
+    }
+    
+    /**
+     * A packet with a field of every supported type, out of order and mixing fixed and variable
+     * size fields.
+     */
+    public static class AllTypesPacket implements Packet {
+        
+        @PacketField(order = 0)
+        boolean flag;
+        
+        @PacketField(order = 1)
+        byte small;
+        
+        @PacketField(order = 2)
+        String name;
+        
+        @PacketField(order = 4)
+        char letter;
+        
+        @PacketField(order = 3)
+        int count;
+        
+        @PacketField(order = 5)
+        byte[] data;
+        
+        @PacketField(order = 6)
+        short shortValue;
+        
+        @PacketField(order = 7)
+        float floatValue;
+        
+        @PacketField(order = 8)
+        long longValue;
+        
+        @PacketField(order = 9)
+        double doubleValue;
+        
+        @Override
+        public void send(Connection connection) throws IOException {
+            PacketFieldProcessorTest_AllTypesPacketCodec.send(this, connection);
+        }
+        
+        @Override
+        public void receive(Connection connection) throws IOException {
+            PacketFieldProcessorTest_AllTypesPacketCodec.receive(this, connection);
+        }
+        
+        @Override
+        public int getId() {
+            return 1;
+        }
+    }
+}
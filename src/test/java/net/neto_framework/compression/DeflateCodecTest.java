@@ -0,0 +1,212 @@
+/*
+    Neto-Framework, a lightweight, event driven network application framework.
+    Copyright (C) 2014  BleedObsidian (Jesse Prescott)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.neto_framework.compression;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import net.neto_framework.Connection;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link net.neto_framework.compression.DeflateCodec DeflateCodec}, on its own and as
+ * used by {@link net.neto_framework.Connection Connection} to compress frames over the
+ * compression threshold.
+ *
+ * @author BleedObsidian (Jesse Prescott)
+ */
+public class DeflateCodecTest {
+    
+    /**
+     * Compression threshold used by connections under test.
+     */
+    private static final int THRESHOLD = 64;
+    
+    /**
+     * The offset of the compression header in plain datagrams, after the sequence number.
+     */
+    private static final int HEADER_OFFSET = 8;
+    
+    @After
+    public void tearDown() {
+        Connection.COMPRESSION_THRESHOLD = -1;
+    }
+    
+    /**
+     * @param length The number of bytes.
+     * @return Bytes that compress well.
+     */
+    private static byte[] compressible(int length) {
+        byte[] data = new byte[length];
+        
+        for(int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 4);
+        }
+        
+        return data;
+    }
+    
+    /**
+     * @param length The number of bytes.
+     * @return Random bytes that do not compress.
+     */
+    private static byte[] incompressible(int length) {
+        byte[] data = new byte[length];
+        new Random(0).nextBytes(data);
+        return data;
+    }
+    
+    /**
+     * Compress the given data.
+     * 
+     * @param codec Codec to compress with.
+     * @param data Data to compress.
+     * @return Compressed data in read mode.
+     */
+    private static ByteBuffer compress(DeflateCodec codec, byte[] data) {
+        ByteBuffer output = ByteBuffer.allocate(data.length + 64);
+        assertTrue(codec.compress(ByteBuffer.wrap(data), output));
+        output.flip();
+        return output;
+    }
+    
+    /**
+     * Send the given data as the whole payload of a frame over a pair of buffered UDP
+     * connections with compression enabled.
+     * 
+     * @param data Data to send.
+     * @param compressed If the frame is expected to be compressed.
+     * @throws IOException If fails to send or receive the frame.
+     */
+    private static void assertSent(byte[] data, boolean compressed) throws IOException {
+        Connection.COMPRESSION_THRESHOLD = DeflateCodecTest.THRESHOLD;
+        Connection sender = new Connection((DatagramSocket) null,
+                InetAddress.getLoopbackAddress(), 0);
+        Connection receiver = new Connection((DatagramSocket) null,
+                InetAddress.getLoopbackAddress(), 0);
+        
+        sender.sendSection(data.length).put(data);
+        ByteBuffer datagram = sender.getBufferedFrame();
+        
+        int codecId = datagram.get(DeflateCodecTest.HEADER_OFFSET) & 0xFF;
+        assertEquals(compressed ? DeflateCodec.ID : 0, codecId);
+        if(compressed) {
+            assertTrue(datagram.remaining() < DeflateCodecTest.HEADER_OFFSET + 1 + data.length);
+        } else {
+            assertEquals(DeflateCodecTest.HEADER_OFFSET + 1 + data.length, datagram.remaining());
+        }
+        
+        assertTrue(receiver.receiveDatagram(datagram));
+        ByteBuffer received = receiver.receiveRemaining();
+        assertEquals(ByteBuffer.wrap(data), received);
+    }
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        
+        // The same codec is reused for every frame.
+        for(int length : new int[] {0, 1, 1000, 100000}) {
+            byte[] data = DeflateCodecTest.compressible(length);
+            ByteBuffer compressed = DeflateCodecTest.compress(codec, data);
+            
+            ByteBuffer output = ByteBuffer.allocate(length);
+            codec.decompress(compressed, output);
+            assertFalse(output.hasRemaining());
+            assertFalse(compressed.hasRemaining());
+            assertArrayEquals(data, output.array());
+        }
+    }
+    
+    @Test
+    public void testCompressFailsWhenOutputFull() {
+        byte[] data = DeflateCodecTest.incompressible(1000);
+        ByteBuffer input = ByteBuffer.wrap(data);
+        
+        assertFalse(new DeflateCodec().compress(input, ByteBuffer.allocate(data.length)));
+        assertEquals(0, input.position());
+    }
+    
+    @Test(expected = IOException.class)
+    public void testDecompressRejectsLongerFrame() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        ByteBuffer compressed = DeflateCodecTest.compress(codec,
+                DeflateCodecTest.compressible(1000));
+        
+        codec.decompress(compressed, ByteBuffer.allocate(999));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testDecompressRejectsShorterFrame() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        ByteBuffer compressed = DeflateCodecTest.compress(codec,
+                DeflateCodecTest.compressible(1000));
+        
+        codec.decompress(compressed, ByteBuffer.allocate(1001));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testDecompressRejectsTruncatedData() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        ByteBuffer compressed = DeflateCodecTest.compress(codec,
+                DeflateCodecTest.incompressible(1000));
+        compressed.limit(compressed.limit() / 2);
+        
+        codec.decompress(compressed, ByteBuffer.allocate(1000));
+    }
+    
+    @Test
+    public void testBelowThresholdNotCompressed() throws IOException {
+        DeflateCodecTest.assertSent(DeflateCodecTest.compressible(DeflateCodecTest.THRESHOLD - 1),
+                false);
+    }
+    
+    @Test
+    public void testAtThresholdCompressed() throws IOException {
+        DeflateCodecTest.assertSent(DeflateCodecTest.compressible(DeflateCodecTest.THRESHOLD),
+                true);
+        DeflateCodecTest.assertSent(DeflateCodecTest.compressible(10000), true);
+    }
+    
+    @Test
+    public void testIncompressibleSentUncompressed() throws IOException {
+        DeflateCodecTest.assertSent(DeflateCodecTest.incompressible(1000), false);
+    }
+    
+    @Test
+    public void testDisabledWithoutHeader() throws IOException {
+        Connection sender = new Connection((DatagramSocket) null,
+                InetAddress.getLoopbackAddress(), 0);
+        
+        byte[] data = DeflateCodecTest.compressible(1000);
+        sender.sendSection(data.length).put(data);
+        
+        assertEquals(DeflateCodecTest.HEADER_OFFSET + data.length,
+                sender.getBufferedFrame().remaining());
+    }
+}